@@ -0,0 +1,96 @@
+package com.github.jacktasia.javarepl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of turning the session's code lines into java source: the snippet sources the chain compiles changed lines
+ * from, and the single class template of scripts and the forked javac fallback.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CodeGenBenchmark {
+
+	/** Number of code lines in the session. */
+	@Param({ "10", "100", "1000" })
+	private int lines;
+
+	/** Snippet compiler generating the snippet sources. */
+	private SnippetCompiler compiler;
+
+	/** Snippet id of each line. */
+	private List<Integer> ids;
+
+	/** Each line as the code of its snippet. */
+	private List<List<String>> snippetLines;
+
+	/** The lines, for rendering the template directly. */
+	private List<String> codeLines;
+
+	/**
+	 * Fill a session with code lines.
+	 */
+	@Setup
+	public void setup() {
+		compiler = new SnippetCompiler(InMemoryCompiler.create());
+		ids = new ArrayList<Integer>();
+		snippetLines = new ArrayList<List<String>>();
+		codeLines = new ArrayList<String>();
+		for (int i = 0; i < lines; i++) {
+			String line = "int v" + i + " = " + i + ";";
+			ids.add(i + 1);
+			snippetLines.add(Collections.singletonList(line));
+			codeLines.add(line);
+		}
+	}
+
+	/**
+	 * Generate the snippet source of every line: the parse and render the chain does for the lines it compiles, all
+	 * of them on a cold start or a replayed session.
+	 *
+	 * @return generated snippets
+	 * @throws IOException
+	 *             when template file isn't found
+	 */
+	@Benchmark
+	public List<Snippet> generateSnippets() throws IOException {
+		return compiler.generateAll(ids, snippetLines, Collections.<String> emptyList(), null);
+	}
+
+	/**
+	 * Render the single class template with the parsed-once emitter, as done once per script run, or per evaluation
+	 * when javac is forked.
+	 *
+	 * @return generated source
+	 * @throws IOException
+	 *             when template file isn't found
+	 */
+	@Benchmark
+	public String renderTemplate() throws IOException {
+		Map<String, Object> context = new HashMap<String, Object>();
+		context.put("importLines", Collections.emptyList());
+		context.put("codeLines", codeLines);
+		return CodeFile.renderTemplate("repl.vm", context);
+	}
+}
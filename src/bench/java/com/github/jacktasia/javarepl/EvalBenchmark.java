@@ -0,0 +1,61 @@
+package com.github.jacktasia.javarepl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of a whole evaluation (generate, compile, load, run) on top of sessions of different sizes, the time
+ * between pressing enter and the next prompt.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EvalBenchmark {
+
+	/** Number of valid code lines in the session. */
+	@Param({ "10", "100", "1000" })
+	private int lines;
+
+	/** Code file holding the session. */
+	private CodeFile code;
+
+	/**
+	 * Build up a session of valid code lines.
+	 */
+	@Setup
+	public void setup() {
+		code = new CodeFile();
+		code.clearFileOnExit();
+		for (int i = 0; i < lines; i++) {
+			code.addTrialCode("int v" + i + " = " + i + ";");
+		}
+		code.generateCompileAndRun();
+
+		if (code.getValidCode().size() != lines) {
+			throw new IllegalStateException("session code didn't compile");
+		}
+	}
+
+	/**
+	 * Evaluate a run once line, the session stays the same size.
+	 */
+	@Benchmark
+	public void generateCompileAndRun() {
+		code.addOnceCode("int once = v0 + 1;");
+		code.generateCompileAndRun();
+	}
+}
@@ -0,0 +1,96 @@
+package com.github.jacktasia.javarepl;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the work done on every line typed at the prompt, before any code is compiled.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+
+	/** A typical code line. */
+	private static final String CODE_LINE = "Map<String, Integer> counts = new HashMap<String, Integer>();";
+
+	/** A typical colon command. */
+	private static final String COLON_LINE = "r:3 int x = 5;";
+
+	/** javac output as the forked compile reports it. */
+	private String compileError;
+
+	/** Code file with generated code, cleanErrorOutput depends on it. */
+	private CodeFile code;
+
+	/**
+	 * Generate code once so cleanErrorOutput has its auto toString code.
+	 *
+	 * @throws IOException
+	 *             when template file isn't found
+	 */
+	@Setup
+	public void setup() throws IOException {
+		code = new CodeFile();
+		code.clearFileOnExit();
+		code.addTrialCode("int x = 5;");
+		code.addTrialCode("x");
+		code.generateCode();
+		compileError = "/tmp/ReplTmpInstance.java:12: error: cannot find symbol\n\t\tint y = z;\n\t\t        ^\n\n"
+				+ "  symbol:   variable z\n  location: class ReplTmpInstance\n1 error\n";
+	}
+
+	/**
+	 * Parse a code line.
+	 *
+	 * @return parsed line
+	 */
+	@Benchmark
+	public LineParser lineParserCode() {
+		return new LineParser(CODE_LINE);
+	}
+
+	/**
+	 * Parse a colon command.
+	 *
+	 * @return parsed line
+	 */
+	@Benchmark
+	public LineParser lineParserColon() {
+		return new LineParser(COLON_LINE);
+	}
+
+	/**
+	 * Split a space command, as LineParser does for every line.
+	 *
+	 * @return matches
+	 */
+	@Benchmark
+	public String[] getMatches() {
+		return StringUtil.getMatches("^([^ ]+)[ ](.*)$", CODE_LINE);
+	}
+
+	/**
+	 * Clean up javac output for display.
+	 *
+	 * @return cleaned output
+	 */
+	@Benchmark
+	public String cleanErrorOutput() {
+		return code.cleanErrorOutput(compileError);
+	}
+}
@@ -0,0 +1,416 @@
+package com.github.jacktasia.javarepl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * BytecodeCache is a content addressed on-disk cache of compiled code. Keys are hashes of everything the compile
+ * depends on (source, imports, class path fingerprint), so a hit can skip javac entirely. The least recently used
+ * entries are evicted to keep the cache under its size limit.
+ */
+public final class BytecodeCache {
+
+	private final static Logger logger = Logger.getLogger(BytecodeCache.class.getName());
+
+	/** Extension of cache entry files. */
+	private static final String ENTRY_EXTENSION = ".bin";
+
+	/** Directory holding the entries. */
+	private final File dir;
+
+	/** Max total size of the entries in bytes. */
+	private final long maxBytes;
+
+	/** Entry key to size, least recently used first. */
+	private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+	/** Total size of the entries. */
+	private long totalBytes = 0;
+
+	/** Lookups that found an entry. */
+	private int hits = 0;
+
+	/** Lookups that didn't. */
+	private int misses = 0;
+
+	/**
+	 * Open (or create) a cache directory. Entries already in it are used, oldest access first in the LRU order.
+	 *
+	 * @param dir
+	 *            cache directory
+	 * @param maxBytes
+	 *            max total size of the entries
+	 */
+	public BytecodeCache(final File dir, final long maxBytes) {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(final File a, final File b) {
+				return Long.valueOf(a.lastModified()).compareTo(b.lastModified());
+			}
+		});
+
+		for (final File f : files) {
+			String name = f.getName();
+			if (name.endsWith(ENTRY_EXTENSION)) {
+				entries.put(name.substring(0, name.length() - ENTRY_EXTENSION.length()), f.length());
+				totalBytes += f.length();
+			}
+		}
+	}
+
+	/**
+	 * Open the cache in the first directory that exists or can be created.
+	 *
+	 * @param maxBytes
+	 *            max total size of the entries
+	 * @param dirs
+	 *            candidate directories
+	 * @return cache, null if no directory is usable
+	 */
+	public static BytecodeCache open(final long maxBytes, final File... dirs) {
+		for (final File d : dirs) {
+			if ((d.isDirectory() || d.mkdirs()) && d.canWrite()) {
+				return new BytecodeCache(d, maxBytes);
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Hash the parts of a key.
+	 *
+	 * @param parts
+	 *            everything the cached value depends on
+	 * @return hex key
+	 */
+	public static String key(final Object... parts) {
+		Hasher hasher = Hashing.sha1().newHasher();
+		for (final Object part : parts) {
+			hasher.putString(String.valueOf(part), Charsets.UTF_8).putByte((byte) 0);
+		}
+
+		return hasher.hash().toString();
+	}
+
+	/**
+	 * Fingerprint a class path by its entries' paths and modification times, a rebuilt jar changes the fingerprint.
+	 *
+	 * @param paths
+	 *            class path entries
+	 * @return fingerprint
+	 */
+	public static String classPathFingerprint(final List<String> paths) {
+		StringBuilder sb = new StringBuilder(System.getProperty("java.version"));
+		for (final String p : paths) {
+			sb.append(File.pathSeparatorChar).append(p).append('@').append(new File(p).lastModified());
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Get a cached value. A key missing from the index is looked up on disk too, other sessions (and the JVMs of a
+	 * --test run) may have written it since the cache was opened; it is then added to the index.
+	 *
+	 * @param key
+	 *            entry key
+	 * @return the value, null if not cached
+	 */
+	public synchronized byte[] get(final String key) {
+		File f = entryFile(key);
+		boolean indexed = entries.get(key) != null;
+		if (indexed || f.isFile()) {
+			try {
+				byte[] value = Files.toByteArray(f);
+				f.setLastModified(System.currentTimeMillis());
+				if (!indexed) {
+					index(key, value.length);
+				}
+				hits++;
+				return value;
+			} catch (IOException e) {
+				// another session may have evicted it
+				logger.log(Level.FINE, "cache entry gone: " + key, e);
+				remove(key);
+			}
+		}
+
+		misses++;
+		return null;
+	}
+
+	/**
+	 * Cache a value, evicting least recently used entries if the cache gets too big.
+	 *
+	 * @param key
+	 *            entry key
+	 * @param value
+	 *            value to cache
+	 */
+	public synchronized void put(final String key, final byte[] value) {
+		if (value.length > maxBytes) {
+			return;
+		}
+
+		try {
+			// write then rename, other sessions never see half an entry
+			File tmp = File.createTempFile(key, ".tmp", dir);
+			Files.write(value, tmp);
+			if (!tmp.renameTo(entryFile(key))) {
+				tmp.delete();
+				return;
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "could not write cache entry", e);
+			return;
+		}
+
+		index(key, value.length);
+	}
+
+	/**
+	 * Add an entry on disk to the index as the most recently used, evicting least recently used entries if the cache
+	 * gets too big.
+	 *
+	 * @param key
+	 *            entry key
+	 * @param size
+	 *            entry size
+	 */
+	private void index(final String key, final long size) {
+		remove(key);
+		entries.put(key, size);
+		totalBytes += size;
+
+		Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+		while (totalBytes > maxBytes && eldest.hasNext()) {
+			Map.Entry<String, Long> e = eldest.next();
+			if (!e.getKey().equals(key)) {
+				totalBytes -= e.getValue();
+				entryFile(e.getKey()).delete();
+				eldest.remove();
+			}
+		}
+	}
+
+	/**
+	 * Drop an entry from the index.
+	 *
+	 * @param key
+	 *            entry key
+	 */
+	private void remove(final String key) {
+		Long size = entries.remove(key);
+		if (size != null) {
+			totalBytes -= size;
+		}
+	}
+
+	/**
+	 * Get the file of an entry.
+	 *
+	 * @param key
+	 *            entry key
+	 * @return entry file
+	 */
+	private File entryFile(final String key) {
+		return new File(dir, key + ENTRY_EXTENSION);
+	}
+
+	/**
+	 * Get the number of lookups that found an entry.
+	 *
+	 * @return hit count
+	 */
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	/**
+	 * Get the number of lookups that didn't find an entry.
+	 *
+	 * @return miss count
+	 */
+	public synchronized int getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Get the total size of the cached entries.
+	 *
+	 * @return size in bytes
+	 */
+	public synchronized long getSize() {
+		return totalBytes;
+	}
+
+	/**
+	 * Encode compiled classes as a cache value.
+	 *
+	 * @param classes
+	 *            binary class name to bytecode
+	 * @return cache value
+	 * @throws IOException
+	 *             never, writes to memory
+	 */
+	public static byte[] encodeClasses(final Map<String, byte[]> classes) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		writeClasses(out, classes);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decode compiled classes from a cache value.
+	 *
+	 * @param value
+	 *            cache value
+	 * @return binary class name to bytecode
+	 * @throws IOException
+	 *             if the value is corrupt
+	 */
+	public static Map<String, byte[]> decodeClasses(final byte[] value) throws IOException {
+		return readClasses(new DataInputStream(new ByteArrayInputStream(value)));
+	}
+
+	/**
+	 * Write compiled classes.
+	 *
+	 * @param out
+	 *            stream to write to
+	 * @param classes
+	 *            binary class name to bytecode
+	 * @throws IOException
+	 *             if the stream fails
+	 */
+	static void writeClasses(final DataOutputStream out, final Map<String, byte[]> classes) throws IOException {
+		out.writeInt(classes.size());
+		for (final Map.Entry<String, byte[]> entry : classes.entrySet()) {
+			out.writeUTF(entry.getKey());
+			out.writeInt(entry.getValue().length);
+			out.write(entry.getValue());
+		}
+	}
+
+	/**
+	 * Read compiled classes.
+	 *
+	 * @param in
+	 *            stream to read from
+	 * @return binary class name to bytecode
+	 * @throws IOException
+	 *             if the stream is corrupt
+	 */
+	static Map<String, byte[]> readClasses(final DataInputStream in) throws IOException {
+		int count = in.readInt();
+		Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+		for (int i = 0; i < count; i++) {
+			String name = in.readUTF();
+			byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			classes.put(name, bytes);
+		}
+
+		return classes;
+	}
+
+	/**
+	 * Write a list of strings.
+	 *
+	 * @param out
+	 *            stream to write to
+	 * @param strings
+	 *            strings to write
+	 * @throws IOException
+	 *             if the stream fails
+	 */
+	static void writeStrings(final DataOutputStream out, final Iterable<String> strings) throws IOException {
+		List<String> list = new ArrayList<String>();
+		for (final String s : strings) {
+			list.add(s);
+		}
+
+		out.writeInt(list.size());
+		for (final String s : list) {
+			writeLongUTF(out, s);
+		}
+	}
+
+	/**
+	 * Read a list of strings.
+	 *
+	 * @param in
+	 *            stream to read from
+	 * @return the strings
+	 * @throws IOException
+	 *             if the stream is corrupt
+	 */
+	static List<String> readStrings(final DataInputStream in) throws IOException {
+		int count = in.readInt();
+		List<String> list = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			list.add(readLongUTF(in));
+		}
+
+		return list;
+	}
+
+	/**
+	 * Write a string of any length (writeUTF is limited to 64k).
+	 *
+	 * @param out
+	 *            stream to write to
+	 * @param s
+	 *            string to write
+	 * @throws IOException
+	 *             if the stream fails
+	 */
+	static void writeLongUTF(final DataOutputStream out, final String s) throws IOException {
+		byte[] bytes = s.getBytes(Charsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Read a string written by writeLongUTF.
+	 *
+	 * @param in
+	 *            stream to read from
+	 * @return the string
+	 * @throws IOException
+	 *             if the stream is corrupt
+	 */
+	static String readLongUTF(final DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, Charsets.UTF_8);
+	}
+}
@@ -0,0 +1,364 @@
+package com.github.jacktasia.javarepl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * ClassDataSharing keeps AppCDS archives of the classes our JVMs load, one per JVM and class path, so a JVM started
+ * with an archive maps those classes instead of loading and verifying them again. The first JVM launched for a class
+ * path records the archive when it exits (-XX:ArchiveClassesAtExit); later ones use it (-XX:SharedArchiveFile). A
+ * changed class path (an added or rebuilt jar) is a new archive. Needs Java 13+ and a class path of jars only.
+ */
+public final class ClassDataSharing {
+
+	private final static Logger logger = Logger.getLogger(ClassDataSharing.class.getName());
+
+	/** First Java version with dynamic archives. */
+	static final int MIN_JAVA_VERSION = 13;
+
+	/** Extension of archives. */
+	private static final String ARCHIVE_EXTENSION = ".jsa";
+
+	/** Extension of archives being recorded, renamed once the recording JVM exited. */
+	private static final String PART_EXTENSION = ".part";
+
+	/** Age of a recorded part nobody renamed (its REPL died) before it's deleted. */
+	private static final long STALE_PART_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+	/** CDS warnings (e.g. classes too old to archive) go to stdout, which is the code's output. */
+	private static final List<String> QUIET_OPTIONS = Arrays.asList("-Xlog:cds=off", "-Xlog:cds+dynamic=off");
+
+	/** Directory of the archives, null if sharing is off. */
+	private final File dir;
+
+	/** JVMs recording archives. */
+	private final List<Recording> recordings = new ArrayList<Recording>();
+
+	/**
+	 * ClassDataSharing constructor.
+	 *
+	 * @param dir
+	 *            directory of the archives, null to turn sharing off
+	 */
+	public ClassDataSharing(final File dir) {
+		this.dir = dir;
+		if (dir != null) {
+			deleteStaleParts();
+		}
+	}
+
+	/**
+	 * Open the archives in the first directory that exists or can be created.
+	 *
+	 * @param dirs
+	 *            candidate directories
+	 * @return sharing, off if this JVM doesn't support it or no directory is usable
+	 */
+	public static ClassDataSharing open(final File... dirs) {
+		if (javaVersion() >= MIN_JAVA_VERSION) {
+			for (final File d : dirs) {
+				if ((d.isDirectory() || d.mkdirs()) && d.canWrite()) {
+					return new ClassDataSharing(d);
+				}
+			}
+		}
+
+		return new ClassDataSharing(null);
+	}
+
+	/**
+	 * Get the feature version of this JVM.
+	 *
+	 * @return e.g. 8 for 1.8, 17 for 17
+	 */
+	static int javaVersion() {
+		String version = System.getProperty("java.specification.version", "");
+		if (version.startsWith("1.")) {
+			version = version.substring(2);
+		}
+
+		try {
+			return Integer.parseInt(version.replaceAll("\\..*", ""));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Can a JVM with this class path use an archive: the JVM refuses archives with a non-empty directory on the class
+	 * path (e.g. target/classes while developing), so only jars are.
+	 *
+	 * @param classPath
+	 *            class path of the JVM
+	 * @return true if every entry is a jar
+	 */
+	static boolean isShareable(final String classPath) {
+		if (classPath.length() == 0) {
+			return false;
+		}
+
+		for (final String entry : classPath.split(File.pathSeparator)) {
+			if (!entry.endsWith(".jar") || !new File(entry).isFile()) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Get the archive of a JVM: this JVM's java, its main class and class path, and the session jars it loads classes
+	 * from.
+	 *
+	 * @param mainClass
+	 *            main class of the JVM
+	 * @param classPath
+	 *            class path of the JVM
+	 * @param sessionPaths
+	 *            jars and directories the JVM's code loads classes from
+	 * @return archive file
+	 */
+	File archiveFor(final String mainClass, final String classPath, final List<String> sessionPaths) {
+		String key = BytecodeCache.key("cds", System.getProperty("java.home"), System.getProperty("java.vm.version"),
+				mainClass, BytecodeCache.classPathFingerprint(Arrays.asList(classPath.split(File.pathSeparator))),
+				BytecodeCache.classPathFingerprint(sessionPaths));
+		return new File(dir, key + ARCHIVE_EXTENSION);
+	}
+
+	/**
+	 * Plan a JVM launch: use the archive of its class path, or record it if there is none yet (one JVM at a time).
+	 *
+	 * @param mainClass
+	 *            main class of the JVM
+	 * @param classPath
+	 *            class path of the JVM
+	 * @param sessionPaths
+	 *            jars and directories the JVM's code loads classes from
+	 * @return the launch, its options go before the main class
+	 */
+	public synchronized Launch launch(final String mainClass, final String classPath,
+			final List<String> sessionPaths) {
+		finishRecordings();
+		if (dir == null || !isShareable(classPath)) {
+			return new Launch(Collections.<String> emptyList(), null, null);
+		}
+
+		File archive = archiveFor(mainClass, classPath, sessionPaths);
+		List<String> options = new ArrayList<String>();
+		if (archive.isFile()) {
+			options.add("-XX:SharedArchiveFile=" + archive.getPath());
+			options.addAll(QUIET_OPTIONS);
+			return new Launch(options, null, null);
+		}
+
+		for (final Recording r : recordings) {
+			if (r.archive.equals(archive)) {
+				return new Launch(Collections.<String> emptyList(), null, null);
+			}
+		}
+
+		File part = new File(dir, archive.getName() + "." + System.nanoTime() + PART_EXTENSION);
+		options.add("-XX:ArchiveClassesAtExit=" + part.getPath());
+		options.addAll(QUIET_OPTIONS);
+		return new Launch(options, archive, part);
+	}
+
+	/**
+	 * Wait for the recording JVMs to exit (they write their archive as they do), then rename the archives in place.
+	 *
+	 * @param timeoutMillis
+	 *            longest wait
+	 */
+	public synchronized void awaitRecordings(final long timeoutMillis) {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		for (final Recording r : recordings) {
+			while (!r.isDone() && System.currentTimeMillis() < deadline) {
+				try {
+					Thread.sleep(10);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+
+		finishRecordings();
+	}
+
+	/**
+	 * Rename the parts of recording JVMs that exited to their archives.
+	 */
+	private void finishRecordings() {
+		Iterator<Recording> it = recordings.iterator();
+		while (it.hasNext()) {
+			Recording r = it.next();
+			if (!r.isDone()) {
+				continue;
+			}
+
+			it.remove();
+			finish(r.part, r.archive);
+		}
+	}
+
+	/**
+	 * Rename a recorded part to its archive, or drop it if the JVM didn't write it.
+	 *
+	 * @param part
+	 *            file the archive was recorded to
+	 * @param archive
+	 *            archive file
+	 */
+	private static void finish(final File part, final File archive) {
+		if (part.length() == 0 || !part.renameTo(archive)) {
+			part.delete();
+		} else {
+			logger.fine("recorded class data sharing archive " + archive);
+		}
+	}
+
+	/**
+	 * Delete parts left by REPLs that died before renaming them.
+	 */
+	private void deleteStaleParts() {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+
+		long cutoff = System.currentTimeMillis() - STALE_PART_MILLIS;
+		for (final File f : files) {
+			if (f.getName().endsWith(PART_EXTENSION) && f.lastModified() < cutoff) {
+				f.delete();
+			}
+		}
+	}
+
+	/**
+	 * Is sharing on.
+	 *
+	 * @return false if this JVM doesn't support it or there is no archive directory
+	 */
+	public boolean isEnabled() {
+		return dir != null;
+	}
+
+	/** A JVM recording an archive. */
+	private static final class Recording {
+
+		/** The recording JVM. */
+		private final Process process;
+
+		/** File it writes the archive to when it exits. */
+		private final File part;
+
+		/** Archive the part becomes. */
+		private final File archive;
+
+		/**
+		 * Recording constructor.
+		 *
+		 * @param process
+		 *            the recording JVM
+		 * @param part
+		 *            file it writes the archive to
+		 * @param archive
+		 *            archive the part becomes
+		 */
+		Recording(final Process process, final File part, final File archive) {
+			this.process = process;
+			this.part = part;
+			this.archive = archive;
+		}
+
+		/**
+		 * Has the JVM exited (and so written the part).
+		 *
+		 * @return true if exited
+		 */
+		boolean isDone() {
+			try {
+				process.exitValue();
+				return true;
+			} catch (IllegalThreadStateException e) {
+				return false;
+			}
+		}
+	}
+
+	/** Options and archive of a JVM launch. */
+	public final class Launch {
+
+		/** JVM options, empty if no archive is used or recorded. */
+		private final List<String> options;
+
+		/** Archive being recorded, null if none. */
+		private final File archive;
+
+		/** File the archive is recorded to, null if none. */
+		private final File part;
+
+		/**
+		 * Launch constructor.
+		 *
+		 * @param options
+		 *            JVM options
+		 * @param archive
+		 *            archive being recorded, null if none
+		 * @param part
+		 *            file the archive is recorded to, null if none
+		 */
+		private Launch(final List<String> options, final File archive, final File part) {
+			this.options = options;
+			this.archive = archive;
+			this.part = part;
+		}
+
+		/**
+		 * Get the JVM options to add before the main class.
+		 *
+		 * @return options, empty if no archive is used or recorded
+		 */
+		public List<String> getOptions() {
+			return options;
+		}
+
+		/**
+		 * Does the JVM map an archive.
+		 *
+		 * @return true if sharing
+		 */
+		public boolean isSharing() {
+			return !options.isEmpty() && part == null;
+		}
+
+		/**
+		 * Tell the JVM was started, a recording one has its archive renamed in place once it exits.
+		 *
+		 * @param process
+		 *            the started JVM
+		 */
+		public void started(final Process process) {
+			if (part != null) {
+				synchronized (ClassDataSharing.this) {
+					recordings.add(new Recording(process, part, archive));
+				}
+			}
+		}
+
+		/**
+		 * Tell the JVM exited, a recording one wrote its archive.
+		 */
+		public void exited() {
+			if (part != null) {
+				finish(part, archive);
+			}
+		}
+	}
+}
@@ -0,0 +1,589 @@
+package com.github.jacktasia.javarepl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ClassIndex maps simple class names to the classes of the JDK and the class path entries added to the session, for
+ * lookups like "which package has Joiner" and tab completion. Entries are scanned in parallel in the background as
+ * they are added, lookups wait for scans still running while completion uses what is indexed so far. The class list
+ * of a jar is persisted keyed by its path, size and modification time, so reopening a big class path reads the lists
+ * instead of the jars.
+ */
+public final class ClassIndex {
+
+	private final static Logger logger = Logger.getLogger(ClassIndex.class.getName());
+
+	/** Version of the persisted format, bump when it changes. */
+	private static final int FORMAT_VERSION = 1;
+
+	/** Extension of persisted jar lists. */
+	private static final String INDEX_EXTENSION = ".idx";
+
+	/** Packages of the JDK's public API, the rest of its classes are implementation. */
+	private static final String[] JDK_PACKAGES = { "java.", "javax.", "org.w3c.", "org.xml." };
+
+	/** Sorts after any character of a class name, for skipping all names under a prefix. */
+	private static final char AFTER_NAME_CHARS = '\uffff';
+
+	/** Directory of the persisted jar lists, null to not persist. */
+	private final File dir;
+
+	/** Scans the entries. */
+	private final ExecutorService scanners;
+
+	/** Class path entry to its scan, in the order added. */
+	private final Map<String, Future<?>> scans = new LinkedHashMap<String, Future<?>>();
+
+	/** Entries of the JDK, only their public API is indexed. */
+	private final Set<String> jdkEntries = new HashSet<String>();
+
+	/** Simple name to pairs of fully qualified name and class path entry. */
+	private final Map<String, List<String[]>> bySimpleName = new HashMap<String, List<String[]>>();
+
+	/** Number of scans still running. */
+	private int pending = 0;
+
+	/** Sorted simple names, for prefix completion (binary search finds the range of names under a prefix). */
+	private String[] simpleNames = new String[0];
+
+	/** Sorted fully qualified names, for prefix completion. */
+	private String[] qualifiedNames = new String[0];
+
+	/**
+	 * ClassIndex constructor.
+	 *
+	 * @param dir
+	 *            directory for the persisted jar lists, null to not persist
+	 */
+	public ClassIndex(final File dir) {
+		this.dir = dir;
+		this.scanners = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable r) {
+						Thread t = new Thread(r, "class-index");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+
+	/**
+	 * Open an index persisted in the first directory that exists or can be created.
+	 *
+	 * @param dirs
+	 *            candidate directories
+	 * @return the index, not persisted if no directory is usable
+	 */
+	public static ClassIndex open(final File... dirs) {
+		for (final File d : dirs) {
+			if ((d.isDirectory() || d.mkdirs()) && d.canWrite()) {
+				return new ClassIndex(d);
+			}
+		}
+
+		return new ClassIndex(null);
+	}
+
+	/**
+	 * Start scanning a class path entry (jar or directory) in the background.
+	 *
+	 * @param path
+	 *            class path entry
+	 */
+	public synchronized void add(final String path) {
+		if (scans.containsKey(path)) {
+			return;
+		}
+
+		pending++;
+		scans.put(path, scanners.submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				List<String> classes = Collections.emptyList();
+				try {
+					classes = classesOf(new File(path));
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "could not index " + path, e);
+				} finally {
+					merge(path, classes);
+				}
+				return null;
+			}
+		}));
+	}
+
+	/**
+	 * Start scanning the JDK's classes in the background: the boot class path jars up to Java 8, the runtime image
+	 * after.
+	 */
+	public synchronized void addJdk() {
+		String bootClassPath = System.getProperty("sun.boot.class.path");
+		List<String> entries = new ArrayList<String>();
+		if (bootClassPath != null) {
+			for (final String path : bootClassPath.split(File.pathSeparator)) {
+				if (path.endsWith(".jar") && new File(path).isFile()) {
+					entries.add(path);
+				}
+			}
+		} else {
+			File modules = new File(System.getProperty("java.home"), "lib" + File.separator + "modules");
+			if (modules.isFile()) {
+				entries.add(modules.getPath());
+			}
+		}
+
+		for (final String path : entries) {
+			jdkEntries.add(path);
+			add(path);
+		}
+	}
+
+	/**
+	 * Wait for the scans still running.
+	 */
+	private void await() {
+		List<Future<?>> running;
+		synchronized (this) {
+			running = new ArrayList<Future<?>>(scans.values());
+		}
+
+		for (final Future<?> scan : running) {
+			try {
+				scan.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				logger.log(Level.WARNING, "class index scan failed", e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Find the classes with a simple name.
+	 *
+	 * @param simpleName
+	 *            e.g. Joiner
+	 * @return pairs of fully qualified name and class path entry, empty if none
+	 */
+	public List<String[]> which(final String simpleName) {
+		await();
+		return indexed(simpleName);
+	}
+
+	/**
+	 * Find the classes with a simple name among those indexed so far, without waiting for scans.
+	 *
+	 * @param simpleName
+	 *            e.g. Joiner
+	 * @return pairs of fully qualified name and class path entry, empty if none
+	 */
+	public synchronized List<String[]> indexed(final String simpleName) {
+		List<String[]> found = bySimpleName.get(simpleName);
+		return found == null ? Collections.<String[]> emptyList() : new ArrayList<String[]>(found);
+	}
+
+	/**
+	 * Check if a class is indexed so far, without waiting for scans.
+	 *
+	 * @param className
+	 *            fully qualified name
+	 * @return true if indexed
+	 */
+	public synchronized boolean isIndexed(final String className) {
+		int i = Arrays.binarySearch(qualifiedNames, className);
+		return i >= 0;
+	}
+
+	/**
+	 * Get the simple names of the classes in a package.
+	 *
+	 * @param pkg
+	 *            package name, e.g. java.util
+	 * @return simple names, sorted
+	 */
+	public List<String> classesIn(final String pkg) {
+		await();
+		List<String> names = new ArrayList<String>();
+		synchronized (this) {
+			for (final String name : completeQualifiedName(pkg + ".", Integer.MAX_VALUE)) {
+				if (!name.endsWith(".")) {
+					names.add(name.substring(pkg.length() + 1));
+				}
+			}
+		}
+
+		return names;
+	}
+
+	/**
+	 * Get the number of classes indexed.
+	 *
+	 * @return class count
+	 */
+	public int size() {
+		await();
+		synchronized (this) {
+			return qualifiedNames.length;
+		}
+	}
+
+	/**
+	 * Complete a simple class name from the classes indexed so far.
+	 *
+	 * @param prefix
+	 *            start of the name
+	 * @param max
+	 *            most names returned
+	 * @return matching simple names, sorted
+	 */
+	public synchronized List<String> completeSimpleName(final String prefix, final int max) {
+		List<String> names = new ArrayList<String>();
+		for (int i = lowerBound(simpleNames, prefix); i < simpleNames.length && names.size() < max
+				&& simpleNames[i].startsWith(prefix); i++) {
+			names.add(simpleNames[i]);
+		}
+
+		return names;
+	}
+
+	/**
+	 * Complete a qualified name from the classes indexed so far, one package level at a time: java.ut completes to
+	 * java.util. and java.util.Ha to java.util.HashMap.
+	 *
+	 * @param prefix
+	 *            start of the qualified name
+	 * @param max
+	 *            most names returned
+	 * @return matching packages (ending in a dot) and classes, sorted
+	 */
+	public synchronized List<String> completeQualifiedName(final String prefix, final int max) {
+		List<String> names = new ArrayList<String>();
+		int i = lowerBound(qualifiedNames, prefix);
+		while (i < qualifiedNames.length && names.size() < max && qualifiedNames[i].startsWith(prefix)) {
+			String name = qualifiedNames[i];
+			int dot = name.indexOf('.', prefix.length());
+			if (dot < 0) {
+				names.add(name);
+				i++;
+			} else {
+				// a package, skip every name under it
+				String pkg = name.substring(0, dot + 1);
+				names.add(pkg);
+				i = lowerBound(qualifiedNames, pkg + AFTER_NAME_CHARS);
+			}
+		}
+
+		return names;
+	}
+
+	/**
+	 * Find the first element not less than a key.
+	 *
+	 * @param sorted
+	 *            sorted names
+	 * @param key
+	 *            key
+	 * @return index of the first element >= key, the length if none
+	 */
+	private static int lowerBound(final String[] sorted, final String key) {
+		int i = Arrays.binarySearch(sorted, key);
+		return i >= 0 ? i : -i - 1;
+	}
+
+	/**
+	 * Add the classes of a finished scan, the sorted names are rebuilt once the last running scan finishes.
+	 *
+	 * @param path
+	 *            class path entry
+	 * @param classes
+	 *            its fully qualified class names
+	 */
+	private synchronized void merge(final String path, final List<String> classes) {
+		boolean jdk = jdkEntries.contains(path);
+		for (final String className : classes) {
+			if (jdk && !isJdkApi(className)) {
+				continue;
+			}
+
+			String simpleName = className.substring(className.lastIndexOf('.') + 1);
+			List<String[]> named = bySimpleName.get(simpleName);
+			if (named == null) {
+				named = new ArrayList<String[]>(1);
+				bySimpleName.put(simpleName, named);
+			}
+			named.add(new String[] { className, path });
+		}
+
+		if (--pending == 0) {
+			simpleNames = bySimpleName.keySet().toArray(new String[bySimpleName.size()]);
+			Arrays.sort(simpleNames);
+
+			Set<String> qualified = new HashSet<String>();
+			for (final List<String[]> named : bySimpleName.values()) {
+				for (final String[] c : named) {
+					qualified.add(c[0]);
+				}
+			}
+			qualifiedNames = qualified.toArray(new String[qualified.size()]);
+			Arrays.sort(qualifiedNames);
+		}
+	}
+
+	/**
+	 * Check if a JDK class is in its public API packages.
+	 *
+	 * @param className
+	 *            fully qualified name
+	 * @return true if public API
+	 */
+	private static boolean isJdkApi(final String className) {
+		for (final String pkg : JDK_PACKAGES) {
+			if (className.startsWith(pkg)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Get the top level classes of a class path entry, from the persisted list if the jar didn't change.
+	 *
+	 * @param f
+	 *            jar or directory
+	 * @return fully qualified class names
+	 * @throws IOException
+	 *             if the jar can't be read
+	 */
+	List<String> classesOf(final File f) throws IOException {
+		if (f.isDirectory()) {
+			List<String> classes = new ArrayList<String>();
+			scanDirectory(f, "", classes);
+			return classes;
+		}
+
+		File indexFile = dir == null ? null : new File(dir, BytecodeCache.key(f.getAbsolutePath()) + INDEX_EXTENSION);
+		if (indexFile != null && indexFile.isFile()) {
+			List<String> classes = readIndex(indexFile, f);
+			if (classes != null) {
+				return classes;
+			}
+		}
+
+		List<String> classes = jdkEntries.contains(f.getPath()) && f.getName().equals("modules") ? scanRuntimeImage()
+				: scanJar(f);
+		if (indexFile != null) {
+			writeIndex(indexFile, f, classes);
+		}
+
+		return classes;
+	}
+
+	/**
+	 * Get the class name of a class file path, null if it isn't a top level class.
+	 *
+	 * @param path
+	 *            path in a jar or directory, / separated
+	 * @return fully qualified class name or null
+	 */
+	static String className(final String path) {
+		if (!path.endsWith(".class") || path.indexOf('$') >= 0 || path.endsWith("-info.class")
+				|| path.startsWith("META-INF/")) {
+			return null;
+		}
+
+		return path.substring(0, path.length() - ".class".length()).replace('/', '.');
+	}
+
+	/**
+	 * Get the top level classes of a jar.
+	 *
+	 * @param jar
+	 *            jar file
+	 * @return fully qualified class names
+	 * @throws IOException
+	 *             if the jar can't be read
+	 */
+	private static List<String> scanJar(final File jar) throws IOException {
+		List<String> classes = new ArrayList<String>();
+		JarFile jarFile = new JarFile(jar);
+		try {
+			Enumeration<JarEntry> entries = jarFile.entries();
+			while (entries.hasMoreElements()) {
+				String name = className(entries.nextElement().getName());
+				if (name != null) {
+					classes.add(name);
+				}
+			}
+		} finally {
+			jarFile.close();
+		}
+
+		return classes;
+	}
+
+	/**
+	 * Get the top level classes of the JDK runtime image (Java 9 and later).
+	 *
+	 * @return fully qualified class names
+	 * @throws IOException
+	 *             if the image can't be read
+	 */
+	private static List<String> scanRuntimeImage() throws IOException {
+		final List<String> classes = new ArrayList<String>();
+		final Path modules = FileSystems.getFileSystem(URI.create("jrt:/")).getPath("/modules");
+		Files.walkFileTree(modules, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+				// /modules/java.base/java/lang/Object.class, drop the module
+				Path inModule = modules.relativize(file);
+				if (inModule.getNameCount() > 1) {
+					String name = className(inModule.subpath(1, inModule.getNameCount()).toString());
+					if (name != null) {
+						classes.add(name);
+					}
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+
+		return classes;
+	}
+
+	/**
+	 * Add the top level classes under a directory.
+	 *
+	 * @param d
+	 *            directory
+	 * @param prefix
+	 *            path of d under the class path entry, / separated
+	 * @param classes
+	 *            fully qualified class names found
+	 */
+	private static void scanDirectory(final File d, final String prefix, final List<String> classes) {
+		File[] files = d.listFiles();
+		if (files == null) {
+			return;
+		}
+
+		for (final File f : files) {
+			if (f.isDirectory()) {
+				scanDirectory(f, prefix + f.getName() + "/", classes);
+			} else {
+				String name = className(prefix + f.getName());
+				if (name != null) {
+					classes.add(name);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read a persisted class list if it is for the jar as it is now.
+	 *
+	 * @param indexFile
+	 *            persisted list
+	 * @param jar
+	 *            the jar
+	 * @return class names, null if the list is stale or unreadable
+	 */
+	private static List<String> readIndex(final File indexFile, final File jar) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+			try {
+				if (in.readInt() != FORMAT_VERSION || !in.readUTF().equals(jar.getAbsolutePath())
+						|| in.readLong() != jar.length() || in.readLong() != jar.lastModified()) {
+					return null;
+				}
+
+				int count = in.readInt();
+				List<String> classes = new ArrayList<String>(count);
+				for (int i = 0; i < count; i++) {
+					classes.add(in.readUTF());
+				}
+
+				return classes;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			logger.log(Level.FINE, "unreadable class index " + indexFile, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Persist the class list of a jar.
+	 *
+	 * @param indexFile
+	 *            where to write it
+	 * @param jar
+	 *            the jar
+	 * @param classes
+	 *            its class names
+	 */
+	private static void writeIndex(final File indexFile, final File jar, final List<String> classes) {
+		try {
+			// write then rename, other sessions never see half a list
+			File tmp = File.createTempFile(indexFile.getName(), ".tmp", indexFile.getParentFile());
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeInt(FORMAT_VERSION);
+				out.writeUTF(jar.getAbsolutePath());
+				out.writeLong(jar.length());
+				out.writeLong(jar.lastModified());
+				out.writeInt(classes.size());
+				for (final String c : classes) {
+					out.writeUTF(c);
+				}
+			} finally {
+				out.close();
+			}
+
+			if (!tmp.renameTo(indexFile)) {
+				indexFile.delete();
+				if (!tmp.renameTo(indexFile)) {
+					tmp.delete();
+				}
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "could not write class index " + indexFile, e);
+		}
+	}
+}
@@ -1,23 +1,38 @@
 package com.github.jacktasia.javarepl;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.apache.velocity.Template;
-import org.apache.velocity.VelocityContext;
-import org.apache.velocity.app.VelocityEngine;
-import org.apache.velocity.runtime.RuntimeConstants;
-import org.apache.velocity.runtime.resource.loader.ClasspathResourceLoader;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
 
 import com.github.jacktasia.javarepl.Repl.SliceMode;
 import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 
 /** CodeFile is our abstraction for the temporary java file running the REPL code */
@@ -37,8 +52,23 @@ public final class CodeFile {
 	/** Trial code lines (compiled/run successfully moves to validCode). */
 	private List<String> trialCode = new LinkedList<String>();
 
-	/** Valid code lines (validated through trial process). */
-	private final List<String> validCode = new LinkedList<String>();
+	/** Valid code lines (validated through trial process), edits make a new version. */
+	private CodeLines validCode = CodeLines.EMPTY;
+
+	/** Valid code before an insert or replace was applied, restored if it fails. */
+	private CodeLines sliceBase;
+
+	/** Earlier versions of the valid code, the newest last. */
+	private final LinkedList<CodeLines> undoCode = new LinkedList<CodeLines>();
+
+	/** Versions undone, the most recently undone last. */
+	private final LinkedList<CodeLines> redoCode = new LinkedList<CodeLines>();
+
+	/** Most versions kept for undo. */
+	private static final int MAX_UNDO = 100;
+
+	/** Code templates, parsed on the boot thread. */
+	private static final String[] TEMPLATES = { "repl.vm", "runner.vm", "snippet.vm" };
 
 	/** Lines of code to only be run once. */
 	private List<String> onceCode = new LinkedList<String>();
@@ -49,9 +79,6 @@ public final class CodeFile {
 	/** The new line of code for the insert or replace command. */
 	private String trialSliceCode;
 
-	/** The line of code that will be replaced if successfully compiled. */
-	private String trialReplaceLoser;
-
 	/**
 	 * Generated java code to get the auto toString functionality. This is when you put in a var by itself and see its
 	 * contents
@@ -61,6 +88,128 @@ public final class CodeFile {
 	/** Path/command for java compiler (probably javac unless windows). */
 	private String javaCompilerCmd = "javac";
 
+	/** In-process compiler, null when not running on a JDK (falls back to javaCompilerCmd). */
+	private InMemoryCompiler inMemoryCompiler;
+
+	/** Last generated java source. */
+	private String generatedSource = "";
+
+	/** Classes from the last in-process compile. */
+	private Map<String, byte[]> compiledClasses = new HashMap<String, byte[]>();
+
+	/** Resident worker JVM that runs the in-process compiled classes. */
+	private final WorkerClient worker = new WorkerClient();
+
+	/** Time, CPU, output and heap limits of running code. */
+	private final RunLimits runLimits = new RunLimits();
+
+	/** Is an evaluation in progress (Ctrl-C cancels it rather than quitting). */
+	private volatile boolean evaluating = false;
+
+	/** Sets up the compiler, then checks the config code and warms the compiler up, off the prompt's path. */
+	private final ExecutorService booter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(final Runnable r) {
+			Thread t = new Thread(r, "repl-boot");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/** Compiler setup, the compiler fields are set once it's done. */
+	private Future<?> compilerSetup;
+
+	/** Background boot started by {@link #bootInBackground()}, null if there is none. */
+	private Future<?> boot;
+
+	/** JVM uptime when the background boot finished, 0 until it has. */
+	private volatile long bootDoneMillis = 0;
+
+	/** Source compiled to warm the compiler up: loading and JIT compiling javac is most of a first compile. */
+	private static final String WARMUP_SOURCE = "import java.util.*;\n"
+			+ "class ReplWarmup { public static void main(String[] args) {"
+			+ " List<String> l = new ArrayList<String>(); l.add(String.valueOf(args.length));"
+			+ " Object o = l.get(0); System.out.println(o); } }\n";
+
+	/** Stateful mode: declared vars live on in the worker and each line is only run once. */
+	private boolean stateful = false;
+
+	/** Compiler for stateful session snippets. */
+	private SnippetCompiler snippetCompiler;
+
+	/** Snippet chain the valid code is compiled to, reusing bytecode of unchanged lines. */
+	private SnippetChain snippetChain;
+
+	/** Nanoseconds per millisecond, Command times are in milliseconds. */
+	private static final double NANOS_PER_MILLI = 1e6;
+
+	/** Max size of the on-disk bytecode cache. */
+	private static final long BYTECODE_CACHE_BYTES = 64L * 1024 * 1024;
+
+	/** Compiled code from earlier evaluations and sessions, null if no cache directory is usable. */
+	private BytecodeCache bytecodeCache;
+
+	/** Classes of the added class path entries, for the which command. */
+	private ClassIndex classIndex;
+
+	/** Snippet classes the compiled runner calls, in order (null before the first runner compile). */
+	private List<String> runnerClasses;
+
+	/** Compiled runner class (main calling each snippet). */
+	private Map<String, byte[]> runnerBytecode = Collections.emptyMap();
+
+	/** Import lines of the evaluation in progress. */
+	private List<String> runImport = Collections.emptyList();
+
+	/** Code lines of the evaluation in progress (valid and trial code), a snippet each. */
+	private List<String> runLines = Collections.emptyList();
+
+	/** Run once code lines of the evaluation in progress. */
+	private List<String> runOnceLines = Collections.emptyList();
+
+	/** Chain build of the evaluation in progress, becomes the reused chain if it runs without errors. */
+	private SnippetChain.Build chainBuild;
+
+	/** Compile the code as one class instead of a snippet chain, for code that runs once (a script). */
+	private boolean oneClass = false;
+
+	/** Bench harness classes the bench code is compiled against, copied to the tmp directory on first use. */
+	private static final Class<?>[] BENCH_CLASSES = { ReplBench.class, ReplBench.Task.class,
+			ReplBench.Blackhole.class, ReplBench.Stats.class };
+
+	/** Were the bench harness classes copied to the tmp directory. */
+	private boolean benchClassesExported = false;
+
+	/** Stage timings of the last evaluation. */
+	private EvalTimings lastTimings = new EvalTimings();
+
+	/** Stage timings of the session's evaluations. */
+	private final EvalStats evalStats = new EvalStats();
+
+	/** Print the stage timings after each evaluation. */
+	private boolean showTimings = false;
+
+	/** Time spent parsing prompt lines since the last evaluation. */
+	private long parseNanos = 0;
+
+	/** Valid snippets of the stateful session, the last one is the head of the snippet class chain. */
+	private final List<Snippet> sessionSnippets = new LinkedList<Snippet>();
+
+	/** Bytecode of the valid session snippets, for compiling the next one against. */
+	private final Map<String, byte[]> sessionClasses = new HashMap<String, byte[]>();
+
+	/** Id for the next snippet class. */
+	private int nextSnippetId = 1;
+
+	/** Snippets of a restored stateful session, run again (not compiled) while they match the valid code. */
+	private List<Snippet> restoredSnippets = Collections.emptyList();
+
+	/** Worker start count the stateful session lives in (if the worker restarts the state is gone). */
+	private int sessionWorkerStarts;
+
+	/** Valid code changed outside of a trial (e.g. line removed), stateful session must be rebuilt. */
+	private boolean sessionStale = false;
+
 	/** What slice mode are we in? (i or r commands). */
 	private SliceMode currentMode = SliceMode.NONE;
 
@@ -76,6 +225,15 @@ public final class CodeFile {
 	/** Filename of temp code file (tmpClassName + .java). */
 	private String tmpCompileFilename;
 
+	/** Status of an evaluation that didn't compile. */
+	public static final int COMPILE_ERROR_STATUS = 1;
+
+	/** Status of the last evaluation: 0 if it compiled and ran, else the run's exit status. */
+	private int lastStatus = 0;
+
+	/** Class compiled to validate a new import. */
+	private static final String IMPORT_CHECK_CLASS = "ReplImportCheck";
+
 	/** Regex for matching an import line. */
 	private final String importLineMatchRegex = "^import ([a-zA-z0-9\\.]+\\*?);";
 
@@ -100,18 +258,32 @@ public final class CodeFile {
 	 * Remove tmp directory holding the tmp code file.
 	 */
 	public void clearFileOnExit() {
+		clearFileOnExit(true);
+	}
+
+	/**
+	 * Remove tmp directory holding the tmp code file.
+	 * 
+	 * @param sayBye
+	 *            if a goodbye should be printed on exit, not for scripts
+	 */
+	public void clearFileOnExit(final boolean sayBye) {
 		final String killDir = tmpCompileDir;
 		Runtime.getRuntime().addShutdownHook(new Thread() {
 			@Override
 			public void run() {
 
+				worker.shutdown();
+
 				try {
 					Command.deletePath(new File(killDir));
 				} catch (IOException e) {
 					logger.log(Level.WARNING, "Could NOT delete temp directory: " + killDir, e);
 				}
 
-				System.out.println("\n\nBye.\n");
+				if (sayBye) {
+					System.out.println("\n\nBye.\n");
+				}
 			}
 		});
 	}
@@ -136,6 +308,77 @@ public final class CodeFile {
 		onceCode.add(line);
 	}
 
+	/**
+	 * Add run once code benchmarking an expression in the session (see {@link ReplBench}). An expression ending with
+	 * ; is run as a statement, its result isn't consumed (needed for void methods).
+	 * 
+	 * @param expr
+	 *            expression to benchmark
+	 * @param warmup
+	 *            warmup iterations
+	 * @param iterations
+	 *            measured iterations
+	 */
+	public void addBenchCode(final String expr, final int warmup, final int iterations) {
+		exportBenchClasses();
+		onceCode.add(benchCode(expr.trim(), warmup, iterations));
+	}
+
+	/**
+	 * Generate the code of a benchmark: a ReplBench.Task looping over the expression, passed to ReplBench.run. The
+	 * loop is in the generated code so the JIT can inline the expression into it.
+	 * 
+	 * @param expr
+	 *            expression (or statement ending with ;) to benchmark
+	 * @param warmup
+	 *            warmup iterations
+	 * @param iterations
+	 *            measured iterations
+	 * @return code line
+	 */
+	static String benchCode(final String expr, final int warmup, final int iterations) {
+		String harness = ReplBench.class.getName();
+		String body = expr.endsWith(";") ? expr : "benchHole.consume(" + expr + ");";
+		String name = expr.replace("\\", "\\\\").replace("\"", "\\\"");
+
+		return harness + ".run(\"" + name + "\", " + warmup + ", " + iterations + ", new " + harness + ".Task() {"
+				+ " public long run(final int benchOps, final " + harness + ".Blackhole benchHole) throws Exception {"
+				+ " long benchStart = System.nanoTime();"
+				+ " for (int benchOp = 0; benchOp < benchOps; benchOp++) { " + body + " }"
+				+ " return System.nanoTime() - benchStart; } });";
+	}
+
+	/**
+	 * Copy the bench harness classes to the tmp directory, it's on the compile class path. The worker loads the same
+	 * classes from its own class path.
+	 */
+	private void exportBenchClasses() {
+		if (benchClassesExported) {
+			return;
+		}
+
+		try {
+			for (final Class<?> c : BENCH_CLASSES) {
+				String resource = c.getName().replace('.', '/') + ".class";
+				InputStream in = CodeFile.class.getClassLoader().getResourceAsStream(resource);
+				if (in == null) {
+					throw new IOException("missing " + resource);
+				}
+
+				try {
+					File f = new File(tmpCompileDir, resource);
+					Files.createParentDirs(f);
+					Files.write(ByteStreams.toByteArray(in), f);
+				} finally {
+					in.close();
+				}
+			}
+			benchClassesExported = true;
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "could not copy bench classes", e);
+		}
+	}
+
 	/**
 	 * Chanage a negative line number to a proper index. If we have 10 lines of code, and this is passed -2 we get 7
 	 * (not 8, 0-based index). Any 0+ num is returned as-is
@@ -162,13 +405,66 @@ public final class CodeFile {
 	public boolean removeValidCodeLine(final int i) {
 		int processedIndex = changeNegative(i);
 		if (validCode.size() > processedIndex) {
-			validCode.remove(processedIndex);
+			CodeLines before = validCode;
+			validCode = validCode.remove(processedIndex);
+			commitCode(before);
+			sessionStale = true;
 			return true;
 		}
 
 		return false;
 	}
 
+	/**
+	 * Go back to the valid code before its last change (a line added, edited or removed, or a restore).
+	 * 
+	 * @return false if there is nothing to undo
+	 */
+	public boolean undo() {
+		if (undoCode.isEmpty()) {
+			return false;
+		}
+
+		redoCode.add(validCode);
+		validCode = undoCode.removeLast();
+		sessionStale = true;
+		return true;
+	}
+
+	/**
+	 * Make the last undone change again.
+	 * 
+	 * @return false if there is nothing to redo
+	 */
+	public boolean redo() {
+		if (redoCode.isEmpty()) {
+			return false;
+		}
+
+		undoCode.add(validCode);
+		validCode = redoCode.removeLast();
+		sessionStale = true;
+		return true;
+	}
+
+	/**
+	 * Record a change of the valid code for undo, a new change can't be redone over.
+	 * 
+	 * @param before
+	 *            the valid code before the change
+	 */
+	private void commitCode(final CodeLines before) {
+		if (before == validCode) {
+			return;
+		}
+
+		undoCode.add(before);
+		if (undoCode.size() > MAX_UNDO) {
+			undoCode.removeFirst();
+		}
+		redoCode.clear();
+	}
+
 	/**
 	 * Add a trial insert line, will be valid if compiles/runs w/o errors. example: e.g.
 	 * i:1:System.out.println("this is new line");
@@ -215,6 +511,108 @@ public final class CodeFile {
 		return false;
 	}
 
+	/**
+	 * Validate an import on its own and add it to the valid imports, leaving the session code alone. Only the new
+	 * import (and earlier single type imports it could clash with) is compiled, so an import costs the same however
+	 * many came before it. An import of a name the session code uses could change what that code means, so then (and
+	 * without the in-process compiler) the session is evaluated with the import like any other code.
+	 * 
+	 * @param line
+	 *            import line
+	 * @return true if the import is valid
+	 */
+	public boolean addImport(final String line) {
+		if (validImport.contains(line)) {
+			return true;
+		}
+
+		awaitCompiler();
+		if (inMemoryCompiler == null || shadowsSessionName(line)) {
+			addTrialImport(line);
+			generateCompileAndRun();
+			return validImport.contains(line);
+		}
+
+		EvalTimings timings = new EvalTimings();
+		timings.add(EvalTimings.Stage.PARSE, parseNanos);
+		parseNanos = 0;
+		try {
+			String name = line.substring(line.lastIndexOf('.') + 1).replace(";", "").trim();
+			StringBuilder source = new StringBuilder();
+			for (final String valid : validImport) {
+				if (!name.equals("*") && valid.replace(";", "").trim().endsWith("." + name)) {
+					source.append(valid).append('\n');
+				}
+			}
+			source.append(line).append('\n').append("class ").append(IMPORT_CHECK_CLASS).append(" {}\n");
+
+			timings.start(EvalTimings.Stage.COMPILE);
+			inMemoryCompiler.setClassPath(cmdClassPaths);
+			InMemoryCompiler.Result result = inMemoryCompiler.compile(IMPORT_CHECK_CLASS, source.toString());
+			timings.stop();
+
+			if (!result.isSuccess()) {
+				StringBuilder sb = new StringBuilder();
+				for (final Diagnostic<? extends JavaFileObject> d : result.getDiagnostics()) {
+					if (d.getKind() == Diagnostic.Kind.ERROR) {
+						sb.append(d.getMessage(null).trim()).append('\n');
+					}
+				}
+				outputError("Compile Error", sb.append("     ").append(line).toString());
+				lastStatus = COMPILE_ERROR_STATUS;
+				return false;
+			}
+
+			validImport.add(line);
+			lastStatus = 0;
+			return true;
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "CodeFile import error", e);
+			return false;
+		} finally {
+			timings.stop();
+			lastTimings = timings;
+			evalStats.record(line, timings);
+			if (showTimings) {
+				System.out.println("[" + timings + "]");
+			}
+		}
+	}
+
+	/**
+	 * Check if an import brings in a name the valid code uses.
+	 * 
+	 * @param line
+	 *            import line
+	 * @return true if a class it imports has the simple name of a word in the valid code
+	 */
+	private boolean shadowsSessionName(final String line) {
+		String imported = StringUtil.getMatch(importLineMatchRegex, line);
+		int dot = imported.lastIndexOf('.');
+		String name = imported.substring(dot + 1);
+		if (validCode.isEmpty()) {
+			return false;
+		}
+
+		List<String> names = Collections.singletonList(name);
+		if (name.equals("*")) {
+			classIndex.addJdk();
+			names = classIndex.classesIn(imported.substring(0, dot));
+		}
+
+		Set<String> words = new HashSet<String>();
+		for (final String codeLine : validCode) {
+			words.addAll(Arrays.asList(codeLine.split("[^\\w$]+")));
+		}
+		for (final String n : names) {
+			if (words.contains(n)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
 	/**
 	 * Verifies a string looks like an import line.
 	 * 
@@ -247,6 +645,7 @@ public final class CodeFile {
 
 		if (f.exists()) {
 			cmdClassPaths.add(line);
+			classIndex.add(line);
 			return true;
 		}
 
@@ -262,14 +661,131 @@ public final class CodeFile {
 		tmpCompileFilename = tmpClassName + ".java";
 		tmpCompilePath = tmpCompileDir + File.separator + tmpCompileFilename;
 		cmdClassPaths.add(tmpCompileDir);
-		setupJavaCompiler();
+		classIndex = ClassIndex.open(new File(System.getProperty("user.home"), ".javarepl_cache" + File.separator
+				+ "classindex"), new File(tmpCompileDir, "classindex"));
+		compilerSetup = booter.submit(new Runnable() {
+			@Override
+			public void run() {
+				loadTemplates();
+				setupJavaCompiler();
+			}
+		});
+	}
+
+	/**
+	 * Parse the code templates ahead of the first evaluation. Runs on the boot thread.
+	 */
+	private static void loadTemplates() {
+		for (final String template : TEMPLATES) {
+			try {
+				SourceTemplate.get(template);
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "could not load template " + template, e);
+			}
+		}
+	}
+
+	/**
+	 * Wait for the compiler setup (started with the code file) to finish.
+	 */
+	private void awaitCompiler() {
+		await(compilerSetup);
+	}
+
+	/**
+	 * Wait for a boot task, a task that failed is logged (the REPL carries on without what it set up).
+	 * 
+	 * @param task
+	 *            the task, null for none
+	 */
+	private static void await(final Future<?> task) {
+		if (task == null) {
+			return;
+		}
+
+		try {
+			task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			logger.log(Level.WARNING, "REPL boot failed", e.getCause());
+		}
+	}
+
+	/**
+	 * Boot in the background so the prompt shows right away: evaluate the code loaded from the config file (to
+	 * validate it, booting the worker JVM as it does) then warm the compiler up. Evaluations wait for it with
+	 * {@link #awaitBoot()}.
+	 */
+	public void bootInBackground() {
+		boot = booter.submit(new Runnable() {
+			@Override
+			public void run() {
+				generateCompileAndRun(); // to validate the config contents...
+				warmUpCompiler();
+				bootDoneMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+			}
+		});
+	}
+
+	/**
+	 * Wait for the background boot, only the first evaluation after starting it can have to.
+	 */
+	public void awaitBoot() {
+		await(boot);
+	}
+
+	/**
+	 * Compile a throwaway class so the first real compile doesn't pay for loading the compiler's classes.
+	 */
+	private void warmUpCompiler() {
+		if (inMemoryCompiler == null) {
+			return;
+		}
+
+		long start = System.nanoTime();
+		try {
+			inMemoryCompiler.setClassPath(cmdClassPaths);
+		} catch (IOException e) {
+			logger.log(Level.FINE, "no compiler warm-up", e);
+			return;
+		}
+		inMemoryCompiler.compile("ReplWarmup", WARMUP_SOURCE);
+		logger.fine(String.format("compiler warm-up took %.0f ms", (System.nanoTime() - start) / NANOS_PER_MILLI));
+	}
+
+	/**
+	 * Describe how long the background boot took.
+	 * 
+	 * @return e.g. "background boot done 1350 ms after JVM start"
+	 */
+	public String describeBoot() {
+		if (boot == null) {
+			return "no background boot";
+		}
+
+		return bootDoneMillis == 0 ? "background boot still running" : "background boot done " + bootDoneMillis
+				+ " ms after JVM start";
 	}
 
 	/**
-	 * Search for javac if we're on windows and can't find one.
+	 * Use the in-process compiler if we can, otherwise search for javac if we're on windows and can't find one. Runs
+	 * on the boot thread, see {@link #awaitCompiler()}.
 	 * 
 	 */
 	private void setupJavaCompiler() {
+		inMemoryCompiler = InMemoryCompiler.create();
+		if (inMemoryCompiler != null) {
+			snippetCompiler = new SnippetCompiler(inMemoryCompiler);
+			snippetChain = new SnippetChain(snippetCompiler);
+			bytecodeCache = BytecodeCache.open(BYTECODE_CACHE_BYTES, new File(System.getProperty("user.home"),
+					".javarepl_cache" + File.separator + "bytecode"), new File(tmpCompileDir, "bytecode"));
+			snippetChain.setCache(bytecodeCache);
+			worker.setClassDataSharing(ClassDataSharing.open(new File(System.getProperty("user.home"),
+					".javarepl_cache" + File.separator + "cds"), new File(tmpCompileDir, "cds")));
+			return;
+		}
+
 		boolean foundJavaCompiler = Command.testJavaCompiler(javaCompilerCmd);
 		String cmd;
 
@@ -296,12 +812,11 @@ public final class CodeFile {
 		trialCode = new LinkedList<String>();
 		onceCode = new LinkedList<String>();
 
-		if (currentMode == SliceMode.INSERT) {
-			validCode.remove(trialSliceIndex);
-		} else if (currentMode == SliceMode.REPLACE) {
-			validCode.set(trialSliceIndex, trialReplaceLoser);
+		if (currentMode != SliceMode.NONE && sliceBase != null) {
+			validCode = sliceBase;
 		}
 
+		sliceBase = null;
 		currentMode = SliceMode.NONE;
 	}
 
@@ -314,117 +829,784 @@ public final class CodeFile {
 		validImport.addAll(trialImport);
 		trialImport = new LinkedList<String>();
 
-		validCode.addAll(trialCode);
+		CodeLines before = currentMode != SliceMode.NONE && sliceBase != null ? sliceBase : validCode;
+		validCode = validCode.appendAll(trialCode);
+		commitCode(before);
 		trialCode = new LinkedList<String>();
 
 		onceCode = new LinkedList<String>();
 
+		sliceBase = null;
 		currentMode = SliceMode.NONE;
 	}
 
 	/**
-	 * Executes and generates code.
+	 * Executes and generates code. An evaluation is a pipeline of generate, compile, load and run stages, a failing
+	 * stage stops the ones after it.
 	 * 
 	 */
 	public void generateCompileAndRun() {
+		awaitCompiler();
+		EvalTimings timings = new EvalTimings();
+		timings.add(EvalTimings.Stage.PARSE, parseNanos);
+		parseNanos = 0;
+		String label = evalLabel();
+		lastStatus = 0;
+		evaluating = true;
 		try {
-			generateCode();
-			compileAndRun();
+			if (inMemoryCompiler != null) {
+				// worker JVM boots while the code is generated and compiled
+				worker.prestart(libraryClassPaths());
+			}
+
+			if (stateful) {
+				runStateful(timings);
+			} else {
+				runPipeline(timings);
+			}
 		} catch (IOException e) {
 			logger.log(Level.WARNING, "CodeFile execute error", e);
 			System.out.println("ERROR OUT!");
+			lastStatus = COMPILE_ERROR_STATUS;
+		} finally {
+			evaluating = false;
+			timings.stop();
+			lastTimings = timings;
+			evalStats.record(label, timings);
+			logger.fine("evaluation took " + timings);
+			if (showTimings) {
+				System.out.println("[" + timings + "]");
+			}
 		}
 	}
 
 	/**
-	 * Get list of the valid code lines. Used for writing code to screen iva command.
+	 * Describe the code about to be evaluated, for the stats.
 	 * 
-	 * @return list of the valid code lines
+	 * @return the new code on one line, or "run"
 	 */
-	public List<String> getValidCode() {
-		return validCode;
+	private String evalLabel() {
+		List<String> lines = new ArrayList<String>(trialImport);
+		if (currentMode != SliceMode.NONE) {
+			lines.add(trialSliceCode);
+		}
+		lines.addAll(trialCode);
+		lines.addAll(onceCode);
+
+		return lines.isEmpty() ? "run" : Joiner.on(' ').join(lines).replaceAll("\\s+", " ");
 	}
 
 	/**
-	 * Generate code and write to tmp file.
+	 * Add time spent parsing a prompt line, it counts toward the next evaluation.
 	 * 
-	 * @throws IOException
-	 *             when template file isn't found.
+	 * @param nanos
+	 *            parse time
 	 */
-	public void generateCode() throws IOException {
+	public void addParseNanos(final long nanos) {
+		parseNanos += nanos;
+	}
 
-		String lastLine;
-		String lastLineChar;
-		List<String> runImport = new LinkedList<String>();
-		LinkedList<String> runCode = new LinkedList<String>();
+	/**
+	 * Get the stage timings of the session's evaluations.
+	 * 
+	 * @return session stats
+	 */
+	public EvalStats getEvalStats() {
+		return evalStats;
+	}
 
-		runImport.addAll(validImport);
-		runImport.addAll(trialImport);
+	/**
+	 * Get the index of the classes of the added class path entries.
+	 * 
+	 * @return class index
+	 */
+	public ClassIndex getClassIndex() {
+		return classIndex;
+	}
 
-		autoStringCode = "";
-		if (currentMode == SliceMode.INSERT) {
-			validCode.add(trialSliceIndex, trialSliceCode);
-		} else if (currentMode == SliceMode.REPLACE) {
-			validCode.set(trialSliceIndex, trialSliceCode);
-			trialReplaceLoser = validCode.get(trialSliceIndex);
-		}
+	/**
+	 * Print the stage timings after each evaluation, or stop.
+	 * 
+	 * @param on
+	 *            true to print them
+	 */
+	public void setShowTimings(final boolean on) {
+		showTimings = on;
+	}
 
-		runCode.addAll(validCode);
-		runCode.addAll(trialCode);
-		runCode.addAll(onceCode);
+	/**
+	 * Are the stage timings printed after each evaluation.
+	 * 
+	 * @return true if timings are shown
+	 */
+	public boolean isShowTimings() {
+		return showTimings;
+	}
 
-		// DEBUG
-		// System.out.println("MODE: " + this.currentMode);
-		// System.out.println(runCode.toString());
+	/**
+	 * Run each evaluation in a worker JVM of its own (taken from the booted spares), or share one worker.
+	 * 
+	 * @param on
+	 *            true to isolate runs
+	 */
+	public void setIsolated(final boolean on) {
+		worker.setIsolated(on);
+	}
 
-		// hack-y handle of last line to autoString if just var...
-		if (runCode.size() > 0) {
-			lastLine = runCode.get(runCode.size() - 1);
-			lastLineChar = lastLine.substring(lastLine.length() - 1);
-			if (!lastLineChar.equals(";") && !lastLineChar.equals("}") && lastLine.indexOf(" ") == -1) {
+	/**
+	 * Set how many spare worker JVMs are kept booted.
+	 * 
+	 * @param count
+	 *            0 to WorkerClient.MAX_SPARES
+	 * @return false if the count is out of range
+	 */
+	public boolean setSpareWorkers(final int count) {
+		return worker.setSpares(count);
+	}
 
-				runCode.removeLast();
-				if (trialCode.size() > 0) {
-					trialCode.remove(trialCode.size() - 1);
-				}
+	/**
+	 * Compile the code as one class rendered from repl.vm (long code split into chunk methods), not as a snippet
+	 * chain. For code that runs once: it is compiled in one go and there is no later evaluation to reuse snippets.
+	 * 
+	 * @param on
+	 *            true to compile one class
+	 */
+	public void setOneClass(final boolean on) {
+		oneClass = on;
+	}
 
-				autoStringCode = "outputToString(" + lastLine + ");";
-				runCode.add(autoStringCode);
+	/**
+	 * Describe the worker JVMs booted so far.
+	 * 
+	 * @return e.g. "3 worker JVMs booted, 2 with a class data sharing archive"
+	 */
+	public String describeWorkers() {
+		return worker.describeBoots();
+	}
+
+	/**
+	 * Cancel the running evaluation, its line is dropped like one that failed to compile. A forked java run gets the
+	 * terminal's interrupt itself.
+	 * 
+	 * @return false if nothing is being evaluated
+	 */
+	public boolean cancelRun() {
+		if (!evaluating) {
+			return false;
+		}
+
+		worker.cancel("cancelled");
+		return true;
+	}
+
+	/**
+	 * Change a run limit, see {@link RunLimits#set(String, String)}.
+	 * 
+	 * @param name
+	 *            timeout, cputime, maxoutput or heap
+	 * @param value
+	 *            new value or off
+	 * @return true if the limit exists and the value is valid
+	 */
+	public boolean setRunLimit(final String name, final String value) {
+		if (!runLimits.set(name, value)) {
+			return false;
+		}
+
+		worker.setLimits(runLimits);
+		return true;
+	}
+
+	/**
+	 * Get how long each stage of the last evaluation took.
+	 * 
+	 * @return stage timings
+	 */
+	public EvalTimings getLastTimings() {
+		return lastTimings;
+	}
+
+	/**
+	 * Get the status of the last evaluation, the exit status of a script.
+	 * 
+	 * @return 0 if it compiled and ran, COMPILE_ERROR_STATUS if it didn't compile, else the run's exit status
+	 */
+	public int getLastStatus() {
+		return lastStatus;
+	}
+
+	/**
+	 * Get list of the valid code lines. Used for writing code to screen iva command.
+	 * 
+	 * @return list of the valid code lines
+	 */
+	public List<String> getValidCode() {
+		return validCode.asList();
+	}
+
+	/**
+	 * Get list of the valid import lines.
+	 * 
+	 * @return list of the valid import lines
+	 */
+	public List<String> getValidImport() {
+		return validImport;
+	}
+
+	/**
+	 * Get the class path entries added to the session.
+	 * 
+	 * @return jars and directories
+	 */
+	public List<String> getClassPaths() {
+		return libraryClassPaths();
+	}
+
+	/**
+	 * Snapshot the session: class path, valid imports and code, and their compiled bytecode.
+	 * 
+	 * @return the snapshot
+	 * @throws IOException
+	 *             if the snippet chain can't be written
+	 */
+	public SessionSnapshot snapshot() throws IOException {
+		awaitCompiler();
+		List<String> paths = libraryClassPaths();
+		String fingerprint = "";
+		ByteArrayOutputStream chain = new ByteArrayOutputStream();
+		if (snippetChain != null) {
+			fingerprint = BytecodeCache.classPathFingerprint(paths);
+			DataOutputStream out = new DataOutputStream(chain);
+			snippetChain.write(out);
+			out.flush();
+		}
+
+		List<Snippet> snippets = !stateful ? Collections.<Snippet> emptyList() : sessionStale ? restoredSnippets
+				: sessionSnippets;
+		return new SessionSnapshot(paths, validImport, validCode.asList(), stateful, fingerprint, chain.toByteArray(),
+				runnerClasses == null ? Collections.<String> emptyList() : runnerClasses, runnerBytecode, snippets,
+				nextSnippetId);
+	}
+
+	/**
+	 * Replace the session with a snapshot. Nothing is compiled or run: while the class path is unchanged the next run
+	 * uses the saved bytecode, else the code is compiled again then.
+	 * 
+	 * @param snapshot
+	 *            saved session
+	 * @return true if the saved bytecode is used
+	 * @throws IOException
+	 *             if the saved snippet chain is corrupt
+	 */
+	public boolean restore(final SessionSnapshot snapshot) throws IOException {
+		awaitCompiler();
+		cmdClassPaths.clear();
+		cmdClassPaths.add(tmpCompileDir);
+		for (final String path : snapshot.getClassPaths()) {
+			if (!addClassPath(path)) {
+				System.out.println("Class path entry not found: " + path);
 			}
 		}
 
-		// System.out.println(runCode.toString()); // DEBUG
+		validImport.clear();
+		validImport.addAll(snapshot.getImports());
+		CodeLines before = validCode;
+		validCode = CodeLines.of(snapshot.getCode());
+		commitCode(before);
+		sliceBase = null;
+		trialImport = new LinkedList<String>();
+		trialCode = new LinkedList<String>();
+		onceCode = new LinkedList<String>();
+		currentMode = SliceMode.NONE;
 
-		VelocityEngine ve = new VelocityEngine();
-		ve.setProperty(RuntimeConstants.RESOURCE_LOADER, "classpath");
-		ve.setProperty("classpath.resource.loader.class", ClasspathResourceLoader.class.getName());
+		resetSession();
+		stateful = snapshot.isStateful() && snippetCompiler != null;
+		sessionStale = stateful;
+		restoredSnippets = Collections.emptyList();
+		runnerClasses = null;
+		runnerBytecode = Collections.emptyMap();
 
-		ve.init();
+		if (snippetChain == null || !snapshot.isBytecodeValid(libraryClassPaths())) {
+			if (snippetChain != null) {
+				snippetChain.clear();
+			}
+			return false;
+		}
 
-		final String templatePath = "repl.vm";
-		InputStream input = Repl.class.getClassLoader().getResourceAsStream(templatePath);
+		if (snapshot.getChain().length > 0) {
+			snippetChain.read(new DataInputStream(new ByteArrayInputStream(snapshot.getChain())));
+		} else {
+			snippetChain.clear();
+		}
+		if (!snapshot.getRunnerClasses().isEmpty()) {
+			runnerClasses = snapshot.getRunnerClasses();
+			runnerBytecode = snapshot.getRunnerBytecode();
+		}
+		restoredSnippets = snapshot.getSessionSnippets();
+		nextSnippetId = Math.max(nextSnippetId, snapshot.getNextSnippetId());
+		return true;
+	}
 
-		if (input == null) {
-			throw new IOException("Template file doesn't exist");
+	/**
+	 * Apply a pending insert/replace to the valid code.
+	 */
+	private void applySlice() {
+		if (currentMode == SliceMode.INSERT) {
+			sliceBase = validCode;
+			validCode = validCode.insert(trialSliceIndex, trialSliceCode);
+		} else if (currentMode == SliceMode.REPLACE) {
+			sliceBase = validCode;
+			validCode = validCode.set(trialSliceIndex, trialSliceCode);
 		}
+	}
 
-		VelocityContext context = new VelocityContext();
-		StringWriter writer = new StringWriter();
+	/**
+	 * Add the trial and run once code to the code to run. If the last line is just a var it's replaced with code
+	 * printing it.
+	 * 
+	 * @param runCode
+	 *            code lines to add to
+	 * @return the code lines to run
+	 */
+	private LinkedList<String> addTrialRunCode(final LinkedList<String> runCode) {
+		String lastLine;
+		String lastLineChar;
 
-		Template template = ve.getTemplate(templatePath, "UTF-8");
+		autoStringCode = "";
+		runCode.addAll(trialCode);
+		runCode.addAll(onceCode);
 
-		context.put("importLines", runImport);
-		context.put("codeLines", runCode);
+		// hack-y handle of last line to autoString if just var...
+		if (runCode.size() > 0) {
+			lastLine = runCode.get(runCode.size() - 1);
+			lastLineChar = lastLine.substring(lastLine.length() - 1);
+			if (!lastLineChar.equals(";") && !lastLineChar.equals("}") && lastLine.indexOf(" ") == -1) {
 
-		template.merge(context, writer);
+				runCode.removeLast();
+				if (trialCode.size() > 0) {
+					trialCode.remove(trialCode.size() - 1);
+				}
 
-		// System.out.println(writer.toString()); // DEBUG: print out generated out
+				autoStringCode = "outputToString(" + lastLine + ");";
+				runCode.add(autoStringCode);
+			}
+		}
 
+		return runCode;
+	}
+
+	/**
+	 * Render a code template from the class path, parsed on first use.
+	 * 
+	 * @param templatePath
+	 *            template resource name
+	 * @param context
+	 *            template variables
+	 * @return rendered template
+	 * @throws IOException
+	 *             when template file isn't found.
+	 */
+	static String renderTemplate(final String templatePath, final Map<String, ?> context) throws IOException {
+		return SourceTemplate.get(templatePath).render(context);
+	}
+
+	/**
+	 * Generate code and write to tmp file.
+	 * 
+	 * @throws IOException
+	 *             when template file isn't found.
+	 */
+	public void generateCode() throws IOException {
+		awaitCompiler();
+		generateCode(new EvalTimings());
+	}
+
+	/**
+	 * Generate code and write to tmp file, timing the file write.
+	 * 
+	 * @param timings
+	 *            stage timings of the evaluation, in the generate stage
+	 * @throws IOException
+	 *             when template file isn't found.
+	 */
+	private void generateCode(final EvalTimings timings) throws IOException {
+		runImport = new LinkedList<String>(validImport);
+		runImport.addAll(trialImport);
+
+		applySlice();
+		// the valid code isn't copied: the run lines are a new version with the trial lines appended
+		LinkedList<String> newCode = addTrialRunCode(new LinkedList<String>());
+		runLines = validCode.appendAll(trialCode).asList();
+		runOnceLines = newCode.subList(trialCode.size(), newCode.size());
+
+		if (inMemoryCompiler != null && !oneClass) {
+			// snippet sources are generated as the chain is compiled
+			return;
+		}
+
+		List<String> runCode = new ArrayList<String>(validCode.size() + newCode.size());
+		runCode.addAll(validCode.asList());
+		runCode.addAll(newCode);
+
+		Map<String, Object> context = new HashMap<String, Object>();
+		context.put("importLines", runImport);
+		// a long session is split into chunk methods, one main would be too large to compile or JIT compile
+		MethodSplitter.Split split = MethodSplitter.split(runCode, MethodSplitter.MAX_CHUNK_CHARS);
+		if (split == null) {
+			context.put("codeLines", runCode);
+		} else {
+			context.put("fields", split.getFields());
+			context.put("memberClasses", split.getMemberClasses());
+			context.put("chunks", split.getChunks());
+		}
+
+		generatedSource = renderTemplate("repl.vm", context);
+		if (inMemoryCompiler != null) {
+			return;
+		}
+
+		timings.start(EvalTimings.Stage.WRITE);
 		try {
-			Files.write(writer.toString(), new File(tmpCompilePath), Charsets.UTF_8);
+			Files.write(generatedSource, new File(tmpCompilePath), Charsets.UTF_8);
 		} catch (IOException e) {
 			logger.log(Level.WARNING, "write generated code to file error", e);
 		}
+		timings.stop();
+	}
+
+	/**
+	 * Turn stateful mode on or off. Turning it on runs the valid code once to build up the session state.
+	 * 
+	 * @param on
+	 *            true for stateful mode
+	 * @return true if the mode could be set (needs the in-process compiler)
+	 */
+	public boolean setStateful(final boolean on) {
+		awaitCompiler();
+		if (on && snippetCompiler == null) {
+			return false;
+		}
+
+		if (on != stateful) {
+			stateful = on;
+			sessionStale = on;
+			if (!on) {
+				resetSession();
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Is stateful mode on.
+	 * 
+	 * @return true if in stateful mode
+	 */
+	public boolean isStateful() {
+		return stateful;
+	}
+
+	/**
+	 * Drop the stateful session state.
+	 */
+	private void resetSession() {
+		worker.resetSession();
+		sessionSnippets.clear();
+		sessionClasses.clear();
+	}
+
+	/**
+	 * Get class path entries for the worker (everything but our tmp directory).
+	 * 
+	 * @return library class paths
+	 */
+	private List<String> libraryClassPaths() {
+		List<String> libraryPaths = new LinkedList<String>(cmdClassPaths);
+		libraryPaths.remove(tmpCompileDir);
+		return libraryPaths;
+	}
+
+	/**
+	 * Compile a stateful snippet on top of the session and run it in the worker.
+	 * 
+	 * @param lines
+	 *            code lines of the snippet
+	 * @param imports
+	 *            import lines
+	 * @param outputResult
+	 *            if the output of the snippet should be printed
+	 * @param timings
+	 *            stage timings of the evaluation
+	 * @return the snippet if it compiled and ran without errors, else null
+	 * @throws IOException
+	 *             when template file isn't found.
+	 */
+	private Snippet runSnippet(final List<String> lines, final List<String> imports, final boolean outputResult,
+			final EvalTimings timings) throws IOException {
+		String parentClass = sessionSnippets.isEmpty() ? null : sessionSnippets.get(sessionSnippets.size() - 1)
+				.getClassName();
+
+		timings.start(EvalTimings.Stage.COMPILE);
+		inMemoryCompiler.setClassPath(cmdClassPaths);
+		Snippet snippet = snippetCompiler.compile(nextSnippetId++, lines, imports, parentClass, sessionClasses);
+		generatedSource = snippet.getSource();
+		timings.stop();
+
+		if (!snippet.isCompiled()) {
+			outputError("Compile Error", formatDiagnostics(snippet.getResult().getDiagnostics()));
+			lastStatus = COMPILE_ERROR_STATUS;
+			return null;
+		}
+
+		return runCompiledSnippet(snippet, outputResult, timings);
+	}
+
+	/**
+	 * Run a compiled stateful snippet in the worker.
+	 * 
+	 * @param snippet
+	 *            compiled snippet
+	 * @param outputResult
+	 *            if the output of the snippet should be printed
+	 * @param timings
+	 *            stage timings of the evaluation
+	 * @return the snippet if it ran without errors, else null
+	 * @throws IOException
+	 *             if the worker can't be started
+	 */
+	private Snippet runCompiledSnippet(final Snippet snippet, final boolean outputResult,
+			final EvalTimings timings) throws IOException {
+		long start = System.nanoTime();
+		WorkerClient.Result runResult = worker.runSession(snippet.getClassName(), snippet.getClasses(),
+				libraryClassPaths(), outputResult ? System.out : null);
+		recordRun(timings, start, runResult);
+
+		return outputRunResult(runResult, outputResult) ? snippet : null;
+	}
+
+	/**
+	 * Add a snippet to the session, later snippets build on it.
+	 * 
+	 * @param snippet
+	 *            successfully run snippet
+	 */
+	private void addSessionSnippet(final Snippet snippet) {
+		sessionSnippets.add(snippet);
+		sessionClasses.putAll(snippet.getClasses());
+		sessionWorkerStarts = worker.getStarts();
+	}
+
+	/**
+	 * Start a fresh stateful session and run each valid code line once. Restored snippets run as they are while they
+	 * match the code. The session stays stale until a rebuild runs all of the valid code, a half built one is never
+	 * run against.
+	 * 
+	 * @param outputResult
+	 *            if the output of the code should be printed
+	 * @param timings
+	 *            stage timings of the evaluation
+	 * @return true if all valid code ran without errors
+	 * @throws IOException
+	 *             when template file isn't found.
+	 */
+	private boolean rebuildSession(final boolean outputResult, final EvalTimings timings) throws IOException {
+		resetSession();
+		sessionStale = true;
+		List<Snippet> restored = restoredSnippets;
+		restoredSnippets = Collections.emptyList();
+
+		List<String> code = validCode.asList();
+		int i = 0;
+		int reused = 0;
+		while (i < code.size()) {
+			List<String> lines = reused < restored.size() ? restored.get(reused).getLines() : null;
+			Snippet snippet;
+			if (lines != null && i + lines.size() <= code.size() && code.subList(i, i + lines.size()).equals(lines)) {
+				snippet = runCompiledSnippet(restored.get(reused++), outputResult, timings);
+				i += lines.size();
+			} else {
+				// later restored snippets extend this one, they can't be used either
+				reused = restored.size();
+				snippet = runSnippet(Collections.singletonList(code.get(i++)), validImport, outputResult,
+						timings);
+			}
+
+			if (snippet == null) {
+				return false;
+			}
+			addSessionSnippet(snippet);
+		}
+
+		sessionStale = false;
+		return true;
+	}
+
+	/**
+	 * Run the trial code once against the live stateful session. Edits to earlier lines (and "run" with no new code)
+	 * rebuild the session from the valid code.
+	 * 
+	 * @param timings
+	 *            stage timings of the evaluation
+	 * @throws IOException
+	 *             when template file isn't found.
+	 */
+	private void runStateful(final EvalTimings timings) throws IOException {
+		boolean lost = !sessionSnippets.isEmpty()
+				&& (!worker.isRunning() || worker.getStarts() != sessionWorkerStarts);
+		boolean noNewCode = trialCode.isEmpty() && onceCode.isEmpty() && trialImport.isEmpty();
+
+		if (lost) {
+			Command.outputTitle("Session state lost, replaying valid code...");
+		}
+
+		if (currentMode != SliceMode.NONE || sessionStale || lost || noNewCode) {
+			boolean edited = currentMode != SliceMode.NONE;
+			applySlice();
+			if (!rebuildSession(!lost, timings)) {
+				handleCompileFailure();
+				if (edited) {
+					rebuildSession(false, timings);
+				}
+				return;
+			}
+
+			if (edited) {
+				commitCode(sliceBase);
+			}
+			sliceBase = null;
+			currentMode = SliceMode.NONE;
+		}
+
+		if (noNewCode) {
+			return;
+		}
+
+		timings.start(EvalTimings.Stage.GENERATE);
+		List<String> imports = new LinkedList<String>(validImport);
+		imports.addAll(trialImport);
+		Snippet snippet = runSnippet(addTrialRunCode(new LinkedList<String>()), imports, true, timings);
+
+		if (snippet == null) {
+			handleCompileFailure();
+			return;
+		}
+
+		// just printing a var (or run once code) isn't kept in the session
+		if (!trialCode.isEmpty()) {
+			addSessionSnippet(snippet);
+		}
+		handleCompileSuccess();
+	}
+
+	/**
+	 * Run the valid and trial code through the generate, compile, load and run stages. In-process compiled code only
+	 * compiles new or edited lines and the lines depending on them.
+	 * 
+	 * @param timings
+	 *            stage timings of the evaluation
+	 * @throws IOException
+	 *             when template file isn't found.
+	 */
+	private void runPipeline(final EvalTimings timings) throws IOException {
+		timings.start(EvalTimings.Stage.GENERATE);
+		generateCode(timings);
+
+		timings.start(EvalTimings.Stage.COMPILE);
+		String classPathStr = generateClassPathArg(cmdClassPaths);
+		String compileError = compile(classPathStr);
+		timings.stop();
+
+		if (compileError != null) {
+			outputError("Compile Error", compileError);
+			lastStatus = COMPILE_ERROR_STATUS;
+			handleCompileFailure();
+			return;
+		}
+
+		if (!outputRunResult(run(classPathStr, timings), true)) {
+			handleCompileFailure();
+			return;
+		}
+
+		if (chainBuild != null) {
+			snippetChain.commit(chainBuild, libraryClassPaths());
+		}
+		handleCompileSuccess();
+	}
+
+	/**
+	 * Compile the runner class calling each snippet of the build, reused while the snippet classes are the same.
+	 * 
+	 * @param build
+	 *            successful chain build
+	 * @return compile error output, or null if the compile succeeded
+	 * @throws IOException
+	 *             when template file isn't found.
+	 */
+	private String compileRunner(final SnippetChain.Build build) throws IOException {
+		if (!build.getRunClasses().equals(runnerClasses)) {
+			Map<String, Object> context = new HashMap<String, Object>();
+			context.put("className", tmpClassName);
+			List<String> calls = new ArrayList<String>(build.getRunClasses().size());
+			for (final String runClass : build.getRunClasses()) {
+				calls.add(runClass + "." + Snippet.runMethod(runClass));
+			}
+			context.put("runChunks", MethodSplitter.chunkCalls(calls));
+			generatedSource = renderTemplate("runner.vm", context);
+
+			String key = BytecodeCache.key("runner", generatedSource,
+					BytecodeCache.classPathFingerprint(libraryClassPaths()));
+			byte[] cached = bytecodeCache == null ? null : bytecodeCache.get(key);
+			if (cached != null) {
+				runnerBytecode = BytecodeCache.decodeClasses(cached);
+			} else {
+				InMemoryCompiler.Result result = inMemoryCompiler.compile(tmpClassName, generatedSource,
+						build.getClasses());
+				if (!result.isSuccess()) {
+					return formatDiagnostics(result.getDiagnostics());
+				}
+
+				runnerBytecode = result.getClasses();
+				if (bytecodeCache != null) {
+					bytecodeCache.put(key, BytecodeCache.encodeClasses(runnerBytecode));
+				}
+			}
+
+			runnerClasses = new ArrayList<String>(build.getRunClasses());
+		}
+
+		compiledClasses = new HashMap<String, byte[]>(build.getClasses());
+		compiledClasses.putAll(runnerBytecode);
+		return null;
+	}
+
+	/**
+	 * Compile the generated repl.vm source in-process as one class, reused from the bytecode cache.
+	 * 
+	 * @return compile error output, or null if the compile succeeded
+	 * @throws IOException
+	 *             if a cached entry is corrupt
+	 */
+	private String compileOneClass() throws IOException {
+		String key = BytecodeCache.key("class", generatedSource,
+				BytecodeCache.classPathFingerprint(libraryClassPaths()));
+		byte[] cached = bytecodeCache == null ? null : bytecodeCache.get(key);
+		if (cached != null) {
+			compiledClasses = BytecodeCache.decodeClasses(cached);
+			return null;
+		}
+
+		InMemoryCompiler.Result result = inMemoryCompiler.compile(tmpClassName, generatedSource);
+		if (!result.isSuccess()) {
+			return formatDiagnostics(result.getDiagnostics());
+		}
+
+		compiledClasses = result.getClasses();
+		if (bytecodeCache != null) {
+			bytecodeCache.put(key, BytecodeCache.encodeClasses(compiledClasses));
+		}
+		return null;
 	}
 
 	/**
@@ -445,36 +1627,175 @@ public final class CodeFile {
 	}
 
 	/**
-	 * Try to compile and run the java code.
+	 * Format compiler error diagnostics for display, pointing at the offending code line.
+	 * 
+	 * @param diagnostics
+	 *            diagnostics reported by the in-process compiler
+	 * @return formatted error output
 	 */
-	public void compileAndRun() {
-		String classPathStr = generateClassPathArg(cmdClassPaths);
-		String[] compileCommand = new String[] { javaCompilerCmd, "-cp", classPathStr, tmpCompilePath };
-		String[] runCommand = new String[] { "java", "-cp", classPathStr, tmpClassName };
-		Command compileResult = Command.run(compileCommand);
-		Command runResult = Command.run(runCommand);
+	public String formatDiagnostics(final List<Diagnostic<? extends JavaFileObject>> diagnostics) {
+		String[] sourceLines = generatedSource.split("\n", -1);
+		StringBuilder sb = new StringBuilder();
 
-		String result;
-		Boolean successfulCompile = false;
+		for (final Diagnostic<? extends JavaFileObject> d : diagnostics) {
+			if (d.getKind() != Diagnostic.Kind.ERROR) {
+				continue;
+			}
 
-		if (!compileResult.isSuccess()) { // || cl.getResult().length() > 0
-			outputError("Compile Error", cleanErrorOutput(compileResult.getResult()));
-		} else {
-			if (!runResult.isSuccess()) {
-				outputError("Run Error", runResult.getResult());
-			} else {
-				result = runResult.getResult();
-				if (result.length() > 0) {
-					System.out.println(result);
+			String message = d.getMessage(null).replace("location: class " + tmpClassName, "");
+			message = message.replaceAll("location: class " + Snippet.CLASS_PREFIX + "[0-9]+", "");
+			sb.append(message.trim()).append('\n');
+
+			long lineNum = d.getLineNumber();
+			if (lineNum > 0 && lineNum <= sourceLines.length) {
+				String sourceLine = sourceLines[(int) lineNum - 1];
+				String trimmed = sourceLine.trim();
+				int indent = sourceLine.indexOf(trimmed);
+				// column from char offset, getColumnNumber() expands tabs
+				int lineStart = generatedSource.lastIndexOf('\n', (int) d.getPosition() - 1) + 1;
+				int caret = (int) d.getPosition() - lineStart - indent;
+
+				if (trimmed.length() > 0 && !trimmed.equals(autoStringCode)) {
+					sb.append("     ").append(trimmed).append('\n');
+					if (caret >= 0) {
+						sb.append("     ").append(Strings.repeat(" ", caret)).append("^\n");
+					}
 				}
-				successfulCompile = true;
-				handleCompileSuccess();
 			}
 		}
 
-		if (!successfulCompile) {
-			handleCompileFailure();
+		return sb.toString().trim();
+	}
+
+	/**
+	 * Compile the generated code, in-process to the snippet chain when possible.
+	 * 
+	 * @param classPathStr
+	 *            class path arg for the forked compiler
+	 * @return compile error output, or null if the compile succeeded
+	 * @throws IOException
+	 *             when template file isn't found.
+	 */
+	private String compile(final String classPathStr) throws IOException {
+		if (inMemoryCompiler == null) {
+			String[] compileCommand = new String[] { javaCompilerCmd, "-cp", classPathStr, tmpCompilePath };
+			Command compileResult = Command.run(compileCommand);
+			return compileResult.isSuccess() ? null : cleanErrorOutput(compileResult.getResult());
+		}
+
+		inMemoryCompiler.setClassPath(cmdClassPaths);
+		if (oneClass) {
+			chainBuild = null;
+			return compileOneClass();
 		}
+
+		chainBuild = snippetChain.build(runLines, runOnceLines, runImport, libraryClassPaths());
+		logger.fine("compiled " + chainBuild.getCompiledCount() + " of " + chainBuild.getRunClasses().size()
+				+ " snippets");
+
+		if (!chainBuild.isSuccess()) {
+			generatedSource = chainBuild.getFailed().getSource();
+			return formatDiagnostics(chainBuild.getFailed().getResult().getDiagnostics());
+		}
+
+		return compileRunner(chainBuild);
+	}
+
+	/**
+	 * Run the compiled code, in the resident worker JVM when it was compiled in-process.
+	 * 
+	 * @param classPathStr
+	 *            class path arg for the forked java
+	 * @param timings
+	 *            stage timings of the evaluation
+	 * @return result of the run
+	 */
+	private WorkerClient.Result run(final String classPathStr, final EvalTimings timings) {
+		if (inMemoryCompiler == null) {
+			List<String> cmd = new ArrayList<String>();
+			cmd.add("java");
+			if (runLimits.getHeap() != null) {
+				cmd.add("-Xmx" + runLimits.getHeap());
+			}
+			cmd.addAll(Arrays.asList("-cp", classPathStr, tmpClassName));
+
+			long timeout = runLimits.getTimeoutMillis();
+			Command runResult = Command.stream(cmd.toArray(new String[cmd.size()]), timeout);
+			timings.add(EvalTimings.Stage.RUN, (long) (runResult.getRunTime() * NANOS_PER_MILLI));
+			return new WorkerClient.Result(runResult.statusCode(), runResult.getOutput(), runResult.getErrorOutput(),
+					runResult.isTimedOut() ? "timed out after " + timeout + " ms" : null);
+		}
+
+		long start = System.nanoTime();
+		WorkerClient.Result runResult;
+		try {
+			runResult = worker.run(tmpClassName, compiledClasses, libraryClassPaths(), System.out);
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "could not start worker", e);
+			runResult = new WorkerClient.Result(ReplWorker.EXCEPTION_STATUS, "", e.toString(), null);
+		}
+
+		recordRun(timings, start, runResult);
+		return runResult;
+	}
+
+	/**
+	 * Split the time of a worker run into the load and run stages.
+	 * 
+	 * @param timings
+	 *            stage timings of the evaluation
+	 * @param start
+	 *            System.nanoTime() when the run request was sent
+	 * @param runResult
+	 *            result of the run
+	 */
+	private static void recordRun(final EvalTimings timings, final long start, final WorkerClient.Result runResult) {
+		long total = System.nanoTime() - start;
+		long load = Math.min(Math.max(runResult.getLoadNanos(), 0), total);
+		timings.add(EvalTimings.Stage.LOAD, load);
+		timings.add(EvalTimings.Stage.RUN, total - load);
+	}
+
+	/**
+	 * Finish the output of a run, or output the run error. stdout of a streamed run is already on the terminal, only
+	 * its stderr is left to show.
+	 * 
+	 * @param runResult
+	 *            result of the run
+	 * @param streamed
+	 *            if stdout was sent to the terminal as the code ran
+	 * @return true if the run succeeded
+	 */
+	private boolean outputRunResult(final WorkerClient.Result runResult, final boolean streamed) {
+		if (!runResult.isSuccess()) {
+			lastStatus = runResult.statusCode() != 0 ? runResult.statusCode() : ReplWorker.EXCEPTION_STATUS;
+		}
+
+		if (streamed && !runResult.outputEndsLine()) {
+			System.out.println();
+		}
+
+		String errors = streamed ? runResult.getErrorOutput().trim() : runResult.getResult();
+		if (runResult.getCancelReason() != null) {
+			if (errors.length() == 0) {
+				Command.outputTitle("Run Cancelled: " + runResult.getCancelReason());
+			} else {
+				outputError("Run Cancelled: " + runResult.getCancelReason(), errors);
+			}
+			return false;
+		}
+
+		if (!runResult.isSuccess()) {
+			outputError("Run Error", errors);
+			return false;
+		}
+
+		String errorOutput = runResult.getErrorOutput().trim();
+		if (streamed && errorOutput.length() > 0) {
+			System.out.println(errorOutput);
+		}
+
+		return true;
 	}
 
 	/**
@@ -0,0 +1,518 @@
+package com.github.jacktasia.javarepl;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CodeLines is an immutable sequence of session code lines, each with a stable id. Edits return a new version and
+ * share all but O(log n) nodes with the old one (a persistent balanced tree indexed by position), so an edit costs
+ * O(log n) however long the session is, and keeping old versions around for undo costs next to nothing.
+ */
+public final class CodeLines implements Iterable<String> {
+
+	/** No lines. */
+	public static final CodeLines EMPTY = new CodeLines(null);
+
+	/** Id of the next line. */
+	private static final AtomicLong NEXT_ID = new AtomicLong(1);
+
+	/** A code line, its id is kept as lines are inserted and removed around it. */
+	public static final class Line {
+
+		/** Line id, unique in the JVM. */
+		private final long id;
+
+		/** The code. */
+		private final String text;
+
+		/**
+		 * Line constructor, with a new id.
+		 *
+		 * @param text
+		 *            the code
+		 */
+		Line(final String text) {
+			this.id = NEXT_ID.getAndIncrement();
+			this.text = text;
+		}
+
+		/**
+		 * Get the line id.
+		 *
+		 * @return id, unique in the JVM
+		 */
+		public long getId() {
+			return id;
+		}
+
+		/**
+		 * Get the code.
+		 *
+		 * @return code line
+		 */
+		public String getText() {
+			return text;
+		}
+
+		@Override
+		public String toString() {
+			return id + ":" + text;
+		}
+	}
+
+	/** Tree node, the lines of the left subtree come before its line. */
+	private static final class Node {
+
+		/** Lines before this one. */
+		private final Node left;
+
+		/** This node's line. */
+		private final Line line;
+
+		/** Lines after this one. */
+		private final Node right;
+
+		/** Lines in this subtree. */
+		private final int size;
+
+		/** Height of this subtree. */
+		private final int height;
+
+		/**
+		 * Node constructor.
+		 *
+		 * @param left
+		 *            lines before, null for none
+		 * @param line
+		 *            the line
+		 * @param right
+		 *            lines after, null for none
+		 */
+		Node(final Node left, final Line line, final Node right) {
+			this.left = left;
+			this.line = line;
+			this.right = right;
+			this.size = size(left) + 1 + size(right);
+			this.height = Math.max(height(left), height(right)) + 1;
+		}
+	}
+
+	/** Root of the tree, null for no lines. */
+	private final Node root;
+
+	/** Cached list view. */
+	private List<String> list;
+
+	/**
+	 * CodeLines constructor.
+	 *
+	 * @param root
+	 *            root of the tree, null for no lines
+	 */
+	private CodeLines(final Node root) {
+		this.root = root;
+	}
+
+	/**
+	 * Make a sequence of lines.
+	 *
+	 * @param lines
+	 *            code lines
+	 * @return the sequence, each line with a new id
+	 */
+	public static CodeLines of(final List<String> lines) {
+		List<Line> all = new ArrayList<Line>(lines.size());
+		for (final String text : lines) {
+			all.add(new Line(text));
+		}
+
+		return new CodeLines(build(all, 0, all.size()));
+	}
+
+	/**
+	 * Build a balanced tree.
+	 *
+	 * @param lines
+	 *            the lines
+	 * @param from
+	 *            first index, inclusive
+	 * @param to
+	 *            last index, exclusive
+	 * @return root, null if the range is empty
+	 */
+	private static Node build(final List<Line> lines, final int from, final int to) {
+		if (from >= to) {
+			return null;
+		}
+
+		int mid = (from + to) >>> 1;
+		return new Node(build(lines, from, mid), lines.get(mid), build(lines, mid + 1, to));
+	}
+
+	/**
+	 * Get the number of lines.
+	 *
+	 * @return line count
+	 */
+	public int size() {
+		return size(root);
+	}
+
+	/**
+	 * Are there no lines.
+	 *
+	 * @return true if empty
+	 */
+	public boolean isEmpty() {
+		return root == null;
+	}
+
+	/**
+	 * Get a line.
+	 *
+	 * @param index
+	 *            0-based line index
+	 * @return the line
+	 */
+	public Line line(final int index) {
+		checkIndex(index, size());
+		Node n = root;
+		int i = index;
+		while (true) {
+			int leftSize = size(n.left);
+			if (i < leftSize) {
+				n = n.left;
+			} else if (i == leftSize) {
+				return n.line;
+			} else {
+				i -= leftSize + 1;
+				n = n.right;
+			}
+		}
+	}
+
+	/**
+	 * Get the code of a line.
+	 *
+	 * @param index
+	 *            0-based line index
+	 * @return code line
+	 */
+	public String get(final int index) {
+		return line(index).getText();
+	}
+
+	/**
+	 * Insert a line.
+	 *
+	 * @param index
+	 *            0-based index it will have, size() appends
+	 * @param text
+	 *            code line
+	 * @return the new version
+	 */
+	public CodeLines insert(final int index, final String text) {
+		checkIndex(index, size() + 1);
+		return new CodeLines(insert(root, index, new Line(text)));
+	}
+
+	/**
+	 * Append a line.
+	 *
+	 * @param text
+	 *            code line
+	 * @return the new version
+	 */
+	public CodeLines append(final String text) {
+		return insert(size(), text);
+	}
+
+	/**
+	 * Append lines.
+	 *
+	 * @param texts
+	 *            code lines
+	 * @return the new version, this one if there are none
+	 */
+	public CodeLines appendAll(final List<String> texts) {
+		Node n = root;
+		for (final String text : texts) {
+			n = insert(n, size(n), new Line(text));
+		}
+
+		return n == root ? this : new CodeLines(n);
+	}
+
+	/**
+	 * Replace a line, the new line gets a new id.
+	 *
+	 * @param index
+	 *            0-based line index
+	 * @param text
+	 *            code line
+	 * @return the new version
+	 */
+	public CodeLines set(final int index, final String text) {
+		checkIndex(index, size());
+		return new CodeLines(set(root, index, new Line(text)));
+	}
+
+	/**
+	 * Remove a line.
+	 *
+	 * @param index
+	 *            0-based line index
+	 * @return the new version
+	 */
+	public CodeLines remove(final int index) {
+		checkIndex(index, size());
+		return new CodeLines(remove(root, index));
+	}
+
+	/**
+	 * Get a read-only list view, its get is O(log n) and iterating it O(n).
+	 *
+	 * @return code lines
+	 */
+	public List<String> asList() {
+		if (list == null) {
+			list = new AbstractList<String>() {
+				@Override
+				public String get(final int index) {
+					return CodeLines.this.get(index);
+				}
+
+				@Override
+				public int size() {
+					return CodeLines.this.size();
+				}
+
+				@Override
+				public Iterator<String> iterator() {
+					return CodeLines.this.iterator();
+				}
+			};
+		}
+
+		return list;
+	}
+
+	/**
+	 * Iterate over the lines in order, keeping the path to the current line.
+	 *
+	 * @return iterator over the code lines
+	 */
+	@Override
+	public Iterator<String> iterator() {
+		return new Iterator<String>() {
+
+			/** Nodes whose line and right subtree are still to come, the next one on top. */
+			private final List<Node> path = pushLeft(new ArrayList<Node>(height(root)), root);
+
+			@Override
+			public boolean hasNext() {
+				return !path.isEmpty();
+			}
+
+			@Override
+			public String next() {
+				if (path.isEmpty()) {
+					throw new NoSuchElementException();
+				}
+
+				Node n = path.remove(path.size() - 1);
+				pushLeft(path, n.right);
+				return n.line.getText();
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		return asList().toString();
+	}
+
+	/**
+	 * Push a node and its left spine.
+	 *
+	 * @param path
+	 *            stack of nodes
+	 * @param node
+	 *            node, null for none
+	 * @return the stack
+	 */
+	private static List<Node> pushLeft(final List<Node> path, final Node node) {
+		for (Node n = node; n != null; n = n.left) {
+			path.add(n);
+		}
+
+		return path;
+	}
+
+	/**
+	 * Check an index.
+	 *
+	 * @param index
+	 *            index
+	 * @param bound
+	 *            exclusive upper bound
+	 */
+	private static void checkIndex(final int index, final int bound) {
+		if (index < 0 || index >= bound) {
+			throw new IndexOutOfBoundsException("line " + index + " of " + bound);
+		}
+	}
+
+	/**
+	 * Get the size of a subtree.
+	 *
+	 * @param n
+	 *            node, null for none
+	 * @return lines in the subtree
+	 */
+	private static int size(final Node n) {
+		return n == null ? 0 : n.size;
+	}
+
+	/**
+	 * Get the height of a subtree.
+	 *
+	 * @param n
+	 *            node, null for none
+	 * @return height, 0 for none
+	 */
+	private static int height(final Node n) {
+		return n == null ? 0 : n.height;
+	}
+
+	/**
+	 * Insert a line into a subtree.
+	 *
+	 * @param n
+	 *            subtree, null for none
+	 * @param index
+	 *            index in the subtree
+	 * @param line
+	 *            the line
+	 * @return new subtree
+	 */
+	private static Node insert(final Node n, final int index, final Line line) {
+		if (n == null) {
+			return new Node(null, line, null);
+		}
+
+		int leftSize = size(n.left);
+		if (index <= leftSize) {
+			return balance(insert(n.left, index, line), n.line, n.right);
+		}
+
+		return balance(n.left, n.line, insert(n.right, index - leftSize - 1, line));
+	}
+
+	/**
+	 * Replace a line of a subtree.
+	 *
+	 * @param n
+	 *            subtree
+	 * @param index
+	 *            index in the subtree
+	 * @param line
+	 *            the new line
+	 * @return new subtree
+	 */
+	private static Node set(final Node n, final int index, final Line line) {
+		int leftSize = size(n.left);
+		if (index < leftSize) {
+			return new Node(set(n.left, index, line), n.line, n.right);
+		} else if (index == leftSize) {
+			return new Node(n.left, line, n.right);
+		}
+
+		return new Node(n.left, n.line, set(n.right, index - leftSize - 1, line));
+	}
+
+	/**
+	 * Remove a line of a subtree.
+	 *
+	 * @param n
+	 *            subtree
+	 * @param index
+	 *            index in the subtree
+	 * @return new subtree, null if it's empty
+	 */
+	private static Node remove(final Node n, final int index) {
+		int leftSize = size(n.left);
+		if (index < leftSize) {
+			return balance(remove(n.left, index), n.line, n.right);
+		} else if (index > leftSize) {
+			return balance(n.left, n.line, remove(n.right, index - leftSize - 1));
+		}
+
+		if (n.left == null) {
+			return n.right;
+		} else if (n.right == null) {
+			return n.left;
+		}
+
+		// the next line takes this node's place
+		return balance(n.left, first(n.right), remove(n.right, 0));
+	}
+
+	/**
+	 * Get the first line of a subtree.
+	 *
+	 * @param n
+	 *            subtree
+	 * @return its first line
+	 */
+	private static Line first(final Node n) {
+		Node first = n;
+		while (first.left != null) {
+			first = first.left;
+		}
+
+		return first.line;
+	}
+
+	/**
+	 * Make a node, rotating to keep the heights of its subtrees within one of each other (AVL).
+	 *
+	 * @param left
+	 *            lines before
+	 * @param line
+	 *            the line
+	 * @param right
+	 *            lines after
+	 * @return balanced subtree
+	 */
+	private static Node balance(final Node left, final Line line, final Node right) {
+		if (height(left) > height(right) + 1) {
+			if (height(left.left) >= height(left.right)) {
+				return new Node(left.left, left.line, new Node(left.right, line, right));
+			}
+
+			return new Node(new Node(left.left, left.line, left.right.left), left.right.line, new Node(
+					left.right.right, line, right));
+		}
+
+		if (height(right) > height(left) + 1) {
+			if (height(right.right) >= height(right.left)) {
+				return new Node(new Node(left, line, right.left), right.line, right.right);
+			}
+
+			return new Node(new Node(left, line, right.left.left), right.left.line, new Node(right.left.right,
+					right.line, right.right));
+		}
+
+		return new Node(left, line, right);
+	}
+}
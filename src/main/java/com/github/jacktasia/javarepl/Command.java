@@ -1,12 +1,11 @@
 package com.github.jacktasia.javarepl;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import com.google.common.base.Strings;
-import com.google.common.io.CharStreams;
 
 /** A Command is used to execute command line program. */
 public final class Command {
@@ -20,8 +19,14 @@ public final class Command {
 	/** Running time for command. */
 	private double runningTime;
 
-	/** Result of command. */
-	private BufferedReader input;
+	/** Tail of the command's stdout. */
+	private final TailBuffer output = new TailBuffer();
+
+	/** Tail of the command's stderr. */
+	private final TailBuffer errorOutput = new TailBuffer();
+
+	/** Was the command killed for running too long. */
+	private volatile boolean timedOut = false;
 
 	/**
 	 * Look for javac.exe on windows.
@@ -114,7 +119,7 @@ public final class Command {
 	public static void deletePath(final File f) throws IOException {
 		if (f.isDirectory()) {
 			for (final File c : f.listFiles()) {
-				c.delete();
+				deletePath(c);
 			}
 		}
 
@@ -166,6 +171,19 @@ public final class Command {
 		return new Command(cmd);
 	}
 
+	/**
+	 * Run a command, sending its stdout to ours as it is produced, and kill it if it runs too long.
+	 * 
+	 * @param cmd
+	 *            command to run
+	 * @param timeoutMillis
+	 *            max running time, 0 for none
+	 * @return Command instance
+	 */
+	public static Command stream(final String[] cmd, final long timeoutMillis) {
+		return new Command(cmd, true, timeoutMillis);
+	}
+
 	/**
 	 * Convenience static constructor.
 	 * 
@@ -184,57 +202,96 @@ public final class Command {
 	 *            command to run
 	 */
 	public Command(final String[] cmd) {
-		runCmd(cmd);
+		this(cmd, false);
 	}
 
 	/**
-	 * Constructor object with String.
+	 * Constructor object with String array.
 	 * 
 	 * @param cmd
 	 *            command to run
+	 * @param stream
+	 *            if stdout should be sent to ours as it is produced
 	 */
-	public Command(final String cmd) {
-		String[] cmdl = { cmd };
-		runCmd(cmdl);
+	public Command(final String[] cmd, final boolean stream) {
+		runCmd(cmd, stream, 0);
 	}
 
 	/**
-	 * Proess command result by turning InputStream to string.
+	 * Constructor object with String array.
 	 * 
+	 * @param cmd
+	 *            command to run
+	 * @param stream
+	 *            if stdout should be sent to ours as it is produced
+	 * @param timeoutMillis
+	 *            max running time before the command is killed, 0 for none
 	 */
-	private void processResult() {
-		try {
-			result = CharStreams.toString(input);
-		} catch (Exception e) { // catch IOException
-			result = "runCmd error 1";
-		}
+	public Command(final String[] cmd, final boolean stream, final long timeoutMillis) {
+		runCmd(cmd, stream, timeoutMillis);
+	}
+
+	/**
+	 * Constructor object with String.
+	 * 
+	 * @param cmd
+	 *            command to run
+	 */
+	public Command(final String cmd) {
+		String[] cmdl = { cmd };
+		runCmd(cmdl, false, 0);
 	}
 
 	/**
-	 * Trigger running the command on OS.
+	 * Trigger running the command on OS. stdout and stderr are drained on their own threads while it runs, so a
+	 * command printing more than the pipe buffer can't block, and only their tails are kept.
 	 * 
 	 * @param cmd
 	 *            command to run
+	 * @param stream
+	 *            if stdout should be sent to ours as it is produced
+	 * @param timeoutMillis
+	 *            max running time before the command is killed, 0 for none
 	 */
-	private void runCmd(final String[] cmd) {
+	private void runCmd(final String[] cmd, final boolean stream, final long timeoutMillis) {
 		long t1 = System.nanoTime();
 		final double toDouble = 1e-6;
+		Timer timer = null;
 
 		try {
-			ProcessBuilder pb = new ProcessBuilder(cmd);
-			pb.redirectErrorStream(true);
-			Process proc = pb.start();
-			InputStreamReader isr = new InputStreamReader(proc.getInputStream(), "UTF-8");
-			input = new BufferedReader(isr);
-			exitVal = proc.waitFor();
+			final Process proc = new ProcessBuilder(cmd).start();
+			proc.getOutputStream().close();
+			if (timeoutMillis > 0) {
+				timer = new Timer("command-timeout", true);
+				timer.schedule(new TimerTask() {
+					@Override
+					public void run() {
+						timedOut = true;
+						proc.destroy();
+					}
+				}, timeoutMillis);
+			}
 
+			StreamPump outPump = StreamPump.start("command-stdout", proc.getInputStream(),
+					stream ? System.out : null, output);
+			StreamPump errPump = StreamPump.start("command-stderr", proc.getErrorStream(), null, errorOutput);
+			exitVal = proc.waitFor();
+			outPump.await();
+			errPump.await();
+			result = output.toString() + errorOutput.toString();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			result = "runCmd error 1";
 		} catch (Exception e) {
 			result = "runCmd error 2";
+		} finally {
+			if (timer != null) {
+				timer.cancel();
+			}
 		}
 
 		long t2 = System.nanoTime();
 		runningTime = (t2 - t1) * toDouble;
-		processResult();
 	}
 
 	/**
@@ -246,6 +303,33 @@ public final class Command {
 		return result.trim();
 	}
 
+	/**
+	 * Get the tail of what the command sent to stdout.
+	 * 
+	 * @return stdout (untrimmed)
+	 */
+	public String getOutput() {
+		return output.toString();
+	}
+
+	/**
+	 * Get the tail of what the command sent to stderr.
+	 * 
+	 * @return stderr (untrimmed)
+	 */
+	public String getErrorOutput() {
+		return errorOutput.toString();
+	}
+
+	/**
+	 * Was the command killed for running longer than its timeout.
+	 * 
+	 * @return true if timed out
+	 */
+	public boolean isTimedOut() {
+		return timedOut;
+	}
+
 	/**
 	 * Get status code returned from runnign command.
 	 * 
@@ -0,0 +1,239 @@
+package com.github.jacktasia.javarepl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.Files;
+
+/**
+ * EvalStats keeps the stage timings of the session's evaluations, for the stats command's latency histograms and
+ * CSV export.
+ */
+public final class EvalStats {
+
+	/** Most evaluations kept, the oldest are dropped. */
+	static final int MAX_EVALS = 10000;
+
+	/** Width of the longest histogram bar. */
+	private static final int BAR_WIDTH = 40;
+
+	/** Histogram buckets: under 1 ms, then doubling up to this many. */
+	private static final int BUCKETS = 16;
+
+	/** Nanoseconds per millisecond. */
+	private static final double NANOS_PER_MILLI = 1e6;
+
+	/** Labels of the evaluations (the code evaluated), oldest first. */
+	private final LinkedList<String> labels = new LinkedList<String>();
+
+	/** Timings of the evaluations, oldest first. */
+	private final LinkedList<EvalTimings> timings = new LinkedList<EvalTimings>();
+
+	/** Number of evaluations recorded, including dropped ones. */
+	private int recorded = 0;
+
+	/**
+	 * Record an evaluation.
+	 *
+	 * @param label
+	 *            what was evaluated
+	 * @param evalTimings
+	 *            its stage timings
+	 */
+	public void record(final String label, final EvalTimings evalTimings) {
+		labels.add(label);
+		timings.add(evalTimings);
+		recorded++;
+		if (timings.size() > MAX_EVALS) {
+			labels.removeFirst();
+			timings.removeFirst();
+		}
+	}
+
+	/**
+	 * Forget all evaluations.
+	 */
+	public void clear() {
+		labels.clear();
+		timings.clear();
+		recorded = 0;
+	}
+
+	/**
+	 * Get the number of evaluations kept.
+	 *
+	 * @return evaluation count
+	 */
+	public int size() {
+		return timings.size();
+	}
+
+	/**
+	 * Get the sorted times of a stage over the kept evaluations.
+	 *
+	 * @param stage
+	 *            the stage, null for the total
+	 * @return nanoseconds, ascending
+	 */
+	long[] sortedNanos(final EvalTimings.Stage stage) {
+		long[] nanos = new long[timings.size()];
+		int i = 0;
+		for (final EvalTimings t : timings) {
+			nanos[i++] = stage == null ? t.getTotalNanos() : t.getNanos(stage);
+		}
+		Arrays.sort(nanos);
+		return nanos;
+	}
+
+	/**
+	 * Get a percentile of sorted values (nearest rank).
+	 *
+	 * @param sorted
+	 *            ascending values, not empty
+	 * @param p
+	 *            percentile, 0 to 100
+	 * @return the value
+	 */
+	static long percentile(final long[] sorted, final double p) {
+		int rank = (int) Math.ceil(p / 100 * sorted.length);
+		return sorted[Math.min(sorted.length - 1, Math.max(0, rank - 1))];
+	}
+
+	/**
+	 * Get the histogram bucket of a time: 0 is under 1 ms, bucket b is 2^(b-1) to 2^b ms.
+	 *
+	 * @param nanos
+	 *            time
+	 * @return bucket index
+	 */
+	static int bucket(final long nanos) {
+		long millis = nanos / (long) NANOS_PER_MILLI;
+		int b = 0;
+		while (millis > 0 && b < BUCKETS - 1) {
+			millis >>= 1;
+			b++;
+		}
+
+		return b;
+	}
+
+	/**
+	 * Get the label of a bucket.
+	 *
+	 * @param b
+	 *            bucket index
+	 * @return e.g. "<1 ms" or "4-8 ms"
+	 */
+	private static String bucketLabel(final int b) {
+		if (b == 0) {
+			return "<1 ms";
+		} else if (b == BUCKETS - 1) {
+			return ">=" + (1L << (b - 1)) + " ms";
+		}
+
+		return (1L << (b - 1)) + "-" + (1L << b) + " ms";
+	}
+
+	/**
+	 * Format the latency report of the stats command: percentiles and a histogram per stage.
+	 *
+	 * @return report
+	 */
+	public String report() {
+		if (timings.isEmpty()) {
+			return "no evaluations yet";
+		}
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(timings.size()).append(" evaluations");
+		if (recorded > timings.size()) {
+			sb.append(" (last ").append(MAX_EVALS).append(" of ").append(recorded).append(')');
+		}
+		sb.append('\n');
+
+		List<EvalTimings.Stage> stages = new ArrayList<EvalTimings.Stage>(Arrays.asList(EvalTimings.Stage.values()));
+		stages.add(null);
+		for (final EvalTimings.Stage stage : stages) {
+			long[] sorted = sortedNanos(stage);
+			if (sorted[sorted.length - 1] == 0) {
+				continue;
+			}
+
+			sb.append('\n').append(String.format(Locale.US, "%-8s p50 %s  p90 %s  p99 %s  max %s\n",
+					stage == null ? "total" : stage.name().toLowerCase(), millis(percentile(sorted, 50)),
+					millis(percentile(sorted, 90)), millis(percentile(sorted, 99)), millis(sorted[sorted.length - 1])));
+
+			int[] counts = new int[BUCKETS];
+			int most = 0;
+			for (final long n : sorted) {
+				int b = bucket(n);
+				counts[b]++;
+				most = Math.max(most, counts[b]);
+			}
+
+			for (int b = bucket(sorted[0]); b <= bucket(sorted[sorted.length - 1]); b++) {
+				int bar = (int) Math.ceil((double) counts[b] * BAR_WIDTH / most);
+				sb.append(String.format(Locale.US, "  %12s | %-" + BAR_WIDTH + "s %d\n", bucketLabel(b),
+						Strings.repeat("#", bar), counts[b]));
+			}
+		}
+
+		return sb.toString().trim();
+	}
+
+	/**
+	 * Format a time in milliseconds.
+	 *
+	 * @param nanos
+	 *            time
+	 * @return e.g. "12.3 ms"
+	 */
+	private static String millis(final long nanos) {
+		return String.format(Locale.US, "%.1f ms", nanos / NANOS_PER_MILLI);
+	}
+
+	/**
+	 * Get the kept evaluations as CSV, one row per evaluation with the milliseconds of each stage.
+	 *
+	 * @return CSV text with a header row
+	 */
+	public String toCsv() {
+		StringBuilder sb = new StringBuilder("eval,code");
+		for (final EvalTimings.Stage stage : EvalTimings.Stage.values()) {
+			sb.append(',').append(stage.name().toLowerCase()).append("_ms");
+		}
+		sb.append(",total_ms\n");
+
+		int eval = recorded - timings.size() + 1;
+		Iterator<String> label = labels.iterator();
+		for (final EvalTimings t : timings) {
+			sb.append(eval++).append(",\"").append(label.next().replace("\"", "\"\"")).append('"');
+			for (final EvalTimings.Stage stage : EvalTimings.Stage.values()) {
+				sb.append(String.format(Locale.US, ",%.3f", t.getNanos(stage) / NANOS_PER_MILLI));
+			}
+			sb.append(String.format(Locale.US, ",%.3f\n", t.getTotalNanos() / NANOS_PER_MILLI));
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Write the kept evaluations to a CSV file.
+	 *
+	 * @param f
+	 *            file to write
+	 * @throws IOException
+	 *             if the file can't be written
+	 */
+	public void writeCsv(final File f) throws IOException {
+		Files.write(toCsv(), f, Charsets.UTF_8);
+	}
+}
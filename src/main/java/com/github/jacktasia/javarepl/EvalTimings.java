@@ -0,0 +1,104 @@
+package com.github.jacktasia.javarepl;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EvalTimings records how long each stage of one evaluation (parse, generate, write, compile, load, run) took.
+ */
+public final class EvalTimings {
+
+	/** Stages of an evaluation, in pipeline order. */
+	public enum Stage {
+		/** Parse the line(s) typed at the prompt. */
+		PARSE,
+		/** Turn the session code into java source. */
+		GENERATE,
+		/** Write the source file for a forked javac. */
+		WRITE,
+		/** Compile the source to bytecode. */
+		COMPILE,
+		/** Start the worker JVM if needed and define the classes in it. */
+		LOAD,
+		/** Run the code (a forked run includes its JVM launch). */
+		RUN
+	}
+
+	/** Nanoseconds spent in each stage, by ordinal. */
+	private final long[] nanos = new long[Stage.values().length];
+
+	/** Stage being timed, null if none. */
+	private Stage current;
+
+	/** System.nanoTime() when the current stage started. */
+	private long started;
+
+	/**
+	 * Start timing a stage, stops the one being timed.
+	 *
+	 * @param stage
+	 *            stage starting now
+	 */
+	public void start(final Stage stage) {
+		stop();
+		current = stage;
+		started = System.nanoTime();
+	}
+
+	/**
+	 * Stop timing the current stage (if any).
+	 */
+	public void stop() {
+		if (current != null) {
+			add(current, System.nanoTime() - started);
+			current = null;
+		}
+	}
+
+	/**
+	 * Add time measured elsewhere to a stage.
+	 *
+	 * @param stage
+	 *            the stage
+	 * @param stageNanos
+	 *            nanoseconds to add
+	 */
+	public void add(final Stage stage, final long stageNanos) {
+		nanos[stage.ordinal()] += stageNanos;
+	}
+
+	/**
+	 * Get time spent in a stage.
+	 *
+	 * @param stage
+	 *            the stage
+	 * @return nanoseconds
+	 */
+	public long getNanos(final Stage stage) {
+		return nanos[stage.ordinal()];
+	}
+
+	/**
+	 * Get time spent in all stages.
+	 *
+	 * @return nanoseconds
+	 */
+	public long getTotalNanos() {
+		long total = 0;
+		for (final long n : nanos) {
+			total += n;
+		}
+
+		return total;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (final Stage stage : Stage.values()) {
+			sb.append(stage.name().toLowerCase()).append(' ')
+					.append(TimeUnit.NANOSECONDS.toMillis(getNanos(stage))).append(" ms, ");
+		}
+
+		return sb.append("total ").append(TimeUnit.NANOSECONDS.toMillis(getTotalNanos())).append(" ms").toString();
+	}
+}
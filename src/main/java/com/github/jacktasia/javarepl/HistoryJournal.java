@@ -0,0 +1,288 @@
+package com.github.jacktasia.javarepl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.io.Files;
+
+/**
+ * HistoryJournal is the prompt history file, one entry per line. Entries are appended, a batch at a time, on a
+ * background thread, so entering a line never rewrites the file. Once the file grows past its cap it is compacted to
+ * its newest entries, and loading only reads the tail the prompt keeps.
+ */
+public final class HistoryJournal {
+
+	private final static Logger logger = Logger.getLogger(HistoryJournal.class.getName());
+
+	/** Entries kept when compacting, and the most loaded (jline's default history size). */
+	public static final int MAX_ENTRIES = 500;
+
+	/** Pending entries that trigger a write. */
+	static final int FLUSH_ENTRIES = 16;
+
+	/** Longest an entry waits to be written. */
+	static final long FLUSH_MILLIS = 1000;
+
+	/** File size that triggers compacting to the newest entries. */
+	static final long COMPACT_BYTES = 256 * 1024;
+
+	/** Bytes read at a time when reading the tail backwards. */
+	private static final int TAIL_CHUNK = 8192;
+
+	/** The history file. */
+	private final File file;
+
+	/** Most entries kept when compacting. */
+	private final int maxEntries;
+
+	/** Entries not written yet. */
+	private final List<String> pending = new ArrayList<String>();
+
+	/** Last entry appended, repeats aren't journaled (as in jline's history). */
+	private String last;
+
+	/** Writes and compacts, one job at a time. */
+	private final ScheduledThreadPoolExecutor writer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+		@Override
+		public Thread newThread(final Runnable r) {
+			Thread t = new Thread(r, "history-journal");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/** Is a timed flush scheduled. */
+	private boolean flushScheduled = false;
+
+	/** Was the end of the file checked for a line break (files written whole didn't end in one). */
+	private boolean endChecked = false;
+
+	/**
+	 * HistoryJournal constructor.
+	 *
+	 * @param file
+	 *            history file
+	 * @param maxEntries
+	 *            entries kept when compacting
+	 */
+	public HistoryJournal(final File file, final int maxEntries) {
+		this.file = file;
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Read the newest entries, reading the file backwards from its end.
+	 *
+	 * @return up to maxEntries entries, oldest first
+	 * @throws IOException
+	 *             if the file can't be read
+	 */
+	public List<String> loadTail() throws IOException {
+		List<String> entries = readTail();
+		synchronized (this) {
+			last = entries.isEmpty() ? null : entries.get(entries.size() - 1);
+		}
+
+		return entries;
+	}
+
+	/**
+	 * Read the newest entries of the file.
+	 *
+	 * @return up to maxEntries entries, oldest first
+	 * @throws IOException
+	 *             if the file can't be read
+	 */
+	private List<String> readTail() throws IOException {
+		if (!file.isFile()) {
+			return Collections.emptyList();
+		}
+
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			long end = in.length();
+			long pos = end;
+			long start = 0;
+			int lineBreaks = 0;
+			byte[] chunk = new byte[TAIL_CHUNK];
+			// the tail starts after the line break before the oldest entry wanted (the last line break ends the file)
+			tail: while (pos > 0) {
+				int size = (int) Math.min(TAIL_CHUNK, pos);
+				pos -= size;
+				in.seek(pos);
+				in.readFully(chunk, 0, size);
+				for (int i = size - 1; i >= 0; i--) {
+					if (chunk[i] == '\n' && pos + i != end - 1 && ++lineBreaks > maxEntries) {
+						start = pos + i + 1;
+						break tail;
+					}
+				}
+			}
+
+			byte[] tail = new byte[(int) (end - start)];
+			in.seek(start);
+			in.readFully(tail);
+			List<String> entries = new ArrayList<String>();
+			for (final String line : new String(tail, Charsets.UTF_8).split("\n")) {
+				if (line.trim().length() > 0) {
+					entries.add(line);
+				}
+			}
+
+			return entries.size() > maxEntries ? entries.subList(entries.size() - maxEntries, entries.size())
+					: entries;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Journal an entry. It's written with the next batch.
+	 *
+	 * @param entry
+	 *            line entered at the prompt
+	 */
+	public synchronized void append(final String entry) {
+		if (entry.trim().length() == 0 || entry.equals(last)) {
+			return;
+		}
+
+		last = entry;
+		pending.add(entry.replace('\n', ' '));
+		if (pending.size() >= FLUSH_ENTRIES) {
+			submitFlush();
+		} else if (!flushScheduled && !writer.isShutdown()) {
+			flushScheduled = true;
+			writer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					write();
+				}
+			}, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Write the pending entries and stop the writer, waiting for it.
+	 */
+	public void close() {
+		synchronized (this) {
+			submitFlush();
+		}
+
+		// drop the timed flush, the pending entries are written now
+		writer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		writer.shutdown();
+		try {
+			writer.awaitTermination(FLUSH_MILLIS * 2, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Queue a write of the pending entries.
+	 */
+	private void submitFlush() {
+		if (writer.isShutdown()) {
+			return;
+		}
+
+		writer.submit(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		});
+	}
+
+	/**
+	 * Append the pending entries to the file, compacting it if it got too big. Runs on the writer thread.
+	 */
+	private void write() {
+		List<String> batch;
+		synchronized (this) {
+			flushScheduled = false;
+			if (pending.isEmpty()) {
+				return;
+			}
+			batch = new ArrayList<String>(pending);
+			pending.clear();
+		}
+
+		try {
+			String separator = "";
+			if (!endChecked) {
+				endChecked = true;
+				separator = endsLine() ? "" : "\n";
+			}
+
+			OutputStream out = new FileOutputStream(file, true);
+			try {
+				out.write((separator + Joiner.on('\n').join(batch) + "\n").getBytes(Charsets.UTF_8));
+			} finally {
+				out.close();
+			}
+
+			if (file.length() > COMPACT_BYTES) {
+				compact();
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "could not write history to " + file, e);
+		}
+	}
+
+	/**
+	 * Check if the file is empty or ends with a line break.
+	 *
+	 * @return true if appending starts a new line
+	 * @throws IOException
+	 *             if the file can't be read
+	 */
+	private boolean endsLine() throws IOException {
+		if (!file.isFile() || file.length() == 0) {
+			return true;
+		}
+
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			in.seek(in.length() - 1);
+			return in.read() == '\n';
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Rewrite the file with only its newest entries.
+	 *
+	 * @throws IOException
+	 *             if the file can't be rewritten
+	 */
+	void compact() throws IOException {
+		List<String> entries = readTail();
+		// write then rename, a crash never leaves half a history
+		File tmp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		Files.write(Joiner.on('\n').join(entries) + "\n", tmp, Charsets.UTF_8);
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+				throw new IOException("could not replace " + file);
+			}
+		}
+	}
+}
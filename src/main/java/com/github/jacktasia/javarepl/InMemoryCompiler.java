@@ -0,0 +1,424 @@
+package com.github.jacktasia.javarepl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+import com.google.common.base.Charsets;
+import com.sun.source.util.JavacTask;
+
+/**
+ * InMemoryCompiler compiles generated code with javax.tools inside the REPL JVM. Sources and class files never touch
+ * the disk and the class path file manager is kept warm between evaluations.
+ */
+public final class InMemoryCompiler {
+
+	/** The system java compiler. */
+	private final JavaCompiler compiler;
+
+	/** Standard file manager, kept open so its class path index stays warm. */
+	private final StandardJavaFileManager standardManager;
+
+	/** Class path currently set on the standard file manager. */
+	private List<String> currentClassPath = Collections.emptyList();
+
+	/**
+	 * Create compiler around the system java compiler.
+	 *
+	 * @param compiler
+	 *            system java compiler
+	 */
+	private InMemoryCompiler(final JavaCompiler compiler) {
+		this.compiler = compiler;
+		this.standardManager = compiler.getStandardFileManager(null, null, Charsets.UTF_8);
+	}
+
+	/**
+	 * Create an in-process compiler if we are running on a JDK.
+	 *
+	 * @return compiler instance or null if no system java compiler (e.g. running on a JRE)
+	 */
+	public static InMemoryCompiler create() {
+		JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+		if (javac == null) {
+			return null;
+		}
+
+		return new InMemoryCompiler(javac);
+	}
+
+	/**
+	 * Set the class path used for compiling. Only touches the file manager when the paths changed.
+	 *
+	 * @param paths
+	 *            list of classpaths and jars
+	 * @throws IOException
+	 *             if a path can't be used
+	 */
+	public void setClassPath(final List<String> paths) throws IOException {
+		if (currentClassPath.equals(paths)) {
+			return;
+		}
+
+		List<File> files = new ArrayList<File>();
+		for (final String p : paths) {
+			files.add(new File(p));
+		}
+
+		standardManager.setLocation(StandardLocation.CLASS_PATH, files);
+		currentClassPath = new ArrayList<String>(paths);
+	}
+
+	/**
+	 * Compile a single source file in memory.
+	 *
+	 * @param className
+	 *            name of the top level class in the source
+	 * @param source
+	 *            java source code
+	 * @return compile result with diagnostics and generated bytecode
+	 */
+	public Result compile(final String className, final String source) {
+		return compile(className, source, Collections.<String, byte[]> emptyMap());
+	}
+
+	/**
+	 * Compile a single source file in memory against previously compiled session classes.
+	 *
+	 * @param className
+	 *            name of the top level class in the source
+	 * @param source
+	 *            java source code
+	 * @param sessionClasses
+	 *            binary class name to bytecode of classes (default package) the source may reference
+	 * @return compile result with diagnostics and generated bytecode
+	 */
+	public Result compile(final String className, final String source, final Map<String, byte[]> sessionClasses) {
+		return compile(Collections.singletonMap(className, source), sessionClasses);
+	}
+
+	/**
+	 * Compile several source files in memory in one javac task, against previously compiled session classes.
+	 *
+	 * @param sources
+	 *            name of the top level class to java source code, one compilation unit each
+	 * @param sessionClasses
+	 *            binary class name to bytecode of classes (default package) the sources may reference
+	 * @return compile result with diagnostics and generated bytecode of every source
+	 */
+	public Result compile(final Map<String, String> sources, final Map<String, byte[]> sessionClasses) {
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+		MemoryFileManager fileManager = new MemoryFileManager(standardManager, sessionClasses);
+		boolean success = newTask(fileManager, sources, diagnostics).call();
+
+		return new Result(success, diagnostics.getDiagnostics(), fileManager.getClasses());
+	}
+
+	/**
+	 * Create a javac task for a single source, used to parse or analyze code without generating classes.
+	 *
+	 * @param className
+	 *            name of the top level class in the source
+	 * @param source
+	 *            java source code
+	 * @param sessionClasses
+	 *            binary class name to bytecode of classes (default package) the source may reference
+	 * @param diagnostics
+	 *            collector for compiler diagnostics
+	 * @return javac task
+	 */
+	JavacTask newTask(final String className, final String source, final Map<String, byte[]> sessionClasses,
+			final DiagnosticCollector<JavaFileObject> diagnostics) {
+		return newTask(Collections.singletonMap(className, source), sessionClasses, diagnostics);
+	}
+
+	/**
+	 * Create a javac task for several sources, its units are parsed in the order given.
+	 *
+	 * @param sources
+	 *            name of the top level class to java source code
+	 * @param sessionClasses
+	 *            binary class name to bytecode of classes (default package) the sources may reference
+	 * @param diagnostics
+	 *            collector for compiler diagnostics
+	 * @return javac task
+	 */
+	JavacTask newTask(final Map<String, String> sources, final Map<String, byte[]> sessionClasses,
+			final DiagnosticCollector<JavaFileObject> diagnostics) {
+		return newTask(new MemoryFileManager(standardManager, sessionClasses), sources, diagnostics);
+	}
+
+	/**
+	 * Create a javac task for in-memory sources.
+	 *
+	 * @param fileManager
+	 *            in-memory file manager
+	 * @param sources
+	 *            name of the top level class to java source code
+	 * @param diagnostics
+	 *            collector for compiler diagnostics
+	 * @return javac task
+	 */
+	private JavacTask newTask(final MemoryFileManager fileManager, final Map<String, String> sources,
+			final DiagnosticCollector<JavaFileObject> diagnostics) {
+		List<JavaFileObject> units = new ArrayList<JavaFileObject>(sources.size());
+		for (final Map.Entry<String, String> source : sources.entrySet()) {
+			units.add(new MemorySource(source.getKey(), source.getValue()));
+		}
+
+		return (JavacTask) compiler.getTask(null, fileManager, diagnostics, null, null, units);
+	}
+
+	/**
+	 * Get the top level class of the source a diagnostic is about.
+	 *
+	 * @param diagnostic
+	 *            compiler diagnostic
+	 * @return class name the source was compiled as, null if it's not about an in-memory source
+	 */
+	static String sourceClass(final Diagnostic<? extends JavaFileObject> diagnostic) {
+		JavaFileObject source = diagnostic.getSource();
+		return source instanceof MemorySource ? ((MemorySource) source).className : null;
+	}
+
+	/** Result of an in-memory compile. */
+	public static final class Result {
+
+		/** Did javac report success. */
+		private final boolean success;
+
+		/** Structured compiler diagnostics (errors and warnings). */
+		private final List<Diagnostic<? extends JavaFileObject>> diagnostics;
+
+		/** Binary class name to bytecode. */
+		private final Map<String, byte[]> classes;
+
+		/**
+		 * Result constructor.
+		 *
+		 * @param success
+		 *            did compile succeed
+		 * @param diagnostics
+		 *            compiler diagnostics
+		 * @param classes
+		 *            compiled classes
+		 */
+		Result(final boolean success, final List<Diagnostic<? extends JavaFileObject>> diagnostics,
+				final Map<String, byte[]> classes) {
+			this.success = success;
+			this.diagnostics = diagnostics;
+			this.classes = classes;
+		}
+
+		/**
+		 * Did the code compile without errors.
+		 *
+		 * @return true if successful compile
+		 */
+		public boolean isSuccess() {
+			return success;
+		}
+
+		/**
+		 * Get the diagnostics reported by the compiler.
+		 *
+		 * @return list of diagnostics
+		 */
+		public List<Diagnostic<? extends JavaFileObject>> getDiagnostics() {
+			return diagnostics;
+		}
+
+		/**
+		 * Get the compiled classes.
+		 *
+		 * @return map of binary class name to bytecode
+		 */
+		public Map<String, byte[]> getClasses() {
+			return classes;
+		}
+	}
+
+	/** Source file held in a String. */
+	private static final class MemorySource extends SimpleJavaFileObject {
+
+		/** Top level class name. */
+		private final String className;
+
+		/** Java source code. */
+		private final String source;
+
+		/**
+		 * Source constructor.
+		 *
+		 * @param className
+		 *            top level class name
+		 * @param source
+		 *            java source code
+		 */
+		MemorySource(final String className, final String source) {
+			super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+			this.className = className;
+			this.source = source;
+		}
+
+		@Override
+		public CharSequence getCharContent(final boolean ignoreEncodingErrors) {
+			return source;
+		}
+	}
+
+	/** Class file held in a byte array, either javac output or a session class javac reads. */
+	private static final class MemoryClass extends SimpleJavaFileObject {
+
+		/** Binary class name. */
+		private final String className;
+
+		/** Bytecode written by javac. */
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		/**
+		 * Class file constructor.
+		 *
+		 * @param className
+		 *            binary class name
+		 */
+		MemoryClass(final String className) {
+			super(URI.create("mem:///" + className.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+			this.className = className;
+		}
+
+		/**
+		 * Class file constructor for an already compiled class.
+		 *
+		 * @param className
+		 *            binary class name
+		 * @param classBytes
+		 *            bytecode
+		 */
+		MemoryClass(final String className, final byte[] classBytes) {
+			this(className);
+			bytes.write(classBytes, 0, classBytes.length);
+		}
+
+		@Override
+		public InputStream openInputStream() {
+			return new ByteArrayInputStream(bytes.toByteArray());
+		}
+
+		@Override
+		public OutputStream openOutputStream() {
+			bytes.reset();
+			return bytes;
+		}
+
+		/**
+		 * Get the written bytecode.
+		 *
+		 * @return class file bytes
+		 */
+		byte[] getBytes() {
+			return bytes.toByteArray();
+		}
+	}
+
+	/** File manager that keeps class output in memory and forwards everything else. */
+	private static final class MemoryFileManager extends ForwardingJavaFileManager<JavaFileManager> {
+
+		/** Binary class name to output file object. */
+		private final Map<String, MemoryClass> output = new LinkedHashMap<String, MemoryClass>();
+
+		/** Previously compiled session classes visible on the class path (default package). */
+		private final List<JavaFileObject> sessionClasses = new ArrayList<JavaFileObject>();
+
+		/**
+		 * Wrap the shared standard file manager.
+		 *
+		 * @param fileManager
+		 *            standard file manager
+		 * @param sessionClasses
+		 *            binary class name to bytecode of classes to add to the class path
+		 */
+		MemoryFileManager(final JavaFileManager fileManager, final Map<String, byte[]> sessionClasses) {
+			super(fileManager);
+			for (final Map.Entry<String, byte[]> entry : sessionClasses.entrySet()) {
+				this.sessionClasses.add(new MemoryClass(entry.getKey(), entry.getValue()));
+			}
+		}
+
+		@Override
+		public Iterable<JavaFileObject> list(final Location location, final String packageName,
+				final Set<Kind> kinds, final boolean recurse) throws IOException {
+			Iterable<JavaFileObject> listed = super.list(location, packageName, kinds, recurse);
+			if (sessionClasses.isEmpty() || location != StandardLocation.CLASS_PATH || packageName.length() > 0
+					|| !kinds.contains(Kind.CLASS)) {
+				return listed;
+			}
+
+			List<JavaFileObject> result = new ArrayList<JavaFileObject>(sessionClasses);
+			for (final JavaFileObject f : listed) {
+				result.add(f);
+			}
+
+			return result;
+		}
+
+		@Override
+		public String inferBinaryName(final Location location, final JavaFileObject file) {
+			if (file instanceof MemoryClass) {
+				return ((MemoryClass) file).className;
+			}
+
+			return super.inferBinaryName(location, file);
+		}
+
+		@Override
+		public JavaFileObject getJavaFileForOutput(final Location location, final String className, final Kind kind,
+				final FileObject sibling) {
+			MemoryClass mc = new MemoryClass(className);
+			output.put(className, mc);
+			return mc;
+		}
+
+		@Override
+		public void close() {
+			// shared standard file manager stays open between compiles
+		}
+
+		/**
+		 * Get the classes written during the compile.
+		 *
+		 * @return map of binary class name to bytecode
+		 */
+		Map<String, byte[]> getClasses() {
+			Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+			for (final Map.Entry<String, MemoryClass> entry : output.entrySet()) {
+				classes.put(entry.getKey(), entry.getValue().getBytes());
+			}
+
+			return classes;
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package com.github.jacktasia.javarepl;
+
+/**
+ * InputLexer follows code entered a line at a time, keeping the open ( [ { and whether a block comment or text block
+ * is still open, so input goes to the compiler only once it is complete. Each line is scanned once, whatever was
+ * entered before it. String and char literals end with their line (one that doesn't is left for the compiler to
+ * report), // comments too.
+ */
+public final class InputLexer {
+
+	/** Closing brackets expected, the innermost last. */
+	private final StringBuilder open = new StringBuilder();
+
+	/** Is a block comment open. */
+	private boolean blockComment = false;
+
+	/** Is a text block open. */
+	private boolean textBlock = false;
+
+	/** Was a bracket closed that wasn't open (or by the wrong kind), the compiler will report it. */
+	private boolean mismatched = false;
+
+	/**
+	 * Scan a line of input.
+	 *
+	 * @param line
+	 *            input line, without its line break
+	 * @return this lexer
+	 */
+	public InputLexer feed(final String line) {
+		char quote = 0;
+		int i = 0;
+		while (i < line.length()) {
+			char c = line.charAt(i);
+			if (blockComment) {
+				if (line.startsWith("*/", i)) {
+					blockComment = false;
+					i++;
+				}
+			} else if (textBlock) {
+				if (c == '\\') {
+					i++;
+				} else if (line.startsWith("\"\"\"", i)) {
+					textBlock = false;
+					i += 2;
+				}
+			} else if (quote != 0) {
+				if (c == '\\') {
+					i++;
+				} else if (c == quote) {
+					quote = 0;
+				}
+			} else if (line.startsWith("\"\"\"", i)) {
+				textBlock = true;
+				i += 2;
+			} else if (c == '"' || c == '\'') {
+				quote = c;
+			} else if (line.startsWith("//", i)) {
+				break;
+			} else if (line.startsWith("/*", i)) {
+				blockComment = true;
+				i++;
+			} else {
+				bracket(c);
+			}
+			i++;
+		}
+
+		return this;
+	}
+
+	/**
+	 * Track a code character that may be a bracket.
+	 *
+	 * @param c
+	 *            code character, outside of literals and comments
+	 */
+	private void bracket(final char c) {
+		if (c == '(') {
+			open.append(')');
+		} else if (c == '[') {
+			open.append(']');
+		} else if (c == '{') {
+			open.append('}');
+		} else if (c == ')' || c == ']' || c == '}') {
+			int last = open.length() - 1;
+			if (last >= 0 && open.charAt(last) == c) {
+				open.setLength(last);
+			} else {
+				mismatched = true;
+			}
+		}
+	}
+
+	/**
+	 * Is the input so far complete: every bracket closed and no comment or text block open. Input with a stray
+	 * closing bracket counts as complete, more lines can't fix it.
+	 *
+	 * @return true if the input can go to the compiler
+	 */
+	public boolean isComplete() {
+		return !blockComment && !textBlock && (mismatched || open.length() == 0);
+	}
+
+	/**
+	 * Forget the input, for the next one.
+	 */
+	public void reset() {
+		open.setLength(0);
+		blockComment = false;
+		textBlock = false;
+		mismatched = false;
+	}
+}
@@ -0,0 +1,88 @@
+package com.github.jacktasia.javarepl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Interrupts sets what SIGINT (Ctrl-C) does to this JVM. It goes through sun.misc.Signal, looked up reflectively: it
+ * is internal JDK API that a JVM may not have, and naming it in code draws "internal proprietary API" warnings.
+ */
+public final class Interrupts {
+
+	private final static Logger logger = Logger.getLogger(Interrupts.class.getName());
+
+	/** Name of the interrupt signal. */
+	private static final String SIGINT = "INT";
+
+	/**
+	 * Not instantiable.
+	 */
+	private Interrupts() {
+	}
+
+	/**
+	 * Run a task on SIGINT instead of exiting.
+	 *
+	 * @param task
+	 *            run on each SIGINT, in the JVM's signal dispatch thread
+	 * @return false if SIGINT can't be handled on this JVM
+	 */
+	public static boolean handle(final Runnable task) {
+		try {
+			final Class<?> handlerClass = Class.forName("sun.misc.SignalHandler");
+			Object handler = Proxy.newProxyInstance(handlerClass.getClassLoader(), new Class<?>[] { handlerClass },
+					new InvocationHandler() {
+						@Override
+						public Object invoke(final Object proxy, final Method method, final Object[] args)
+								throws Throwable {
+							if (method.getDeclaringClass() == Object.class) {
+								return method.invoke(this, args);
+							}
+
+							task.run();
+							return null;
+						}
+					});
+			return setHandler(handlerClass, handler);
+		} catch (Exception e) {
+			logger.log(Level.FINE, "can't handle SIGINT", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Ignore SIGINT.
+	 *
+	 * @return false if SIGINT can't be handled on this JVM
+	 */
+	public static boolean ignore() {
+		try {
+			Class<?> handlerClass = Class.forName("sun.misc.SignalHandler");
+			return setHandler(handlerClass, handlerClass.getField("SIG_IGN").get(null));
+		} catch (Exception e) {
+			logger.log(Level.FINE, "can't ignore SIGINT", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Set the SIGINT handler.
+	 *
+	 * @param handlerClass
+	 *            sun.misc.SignalHandler
+	 * @param handler
+	 *            handler instance
+	 * @return true once set
+	 * @throws Exception
+	 *             if sun.misc.Signal is missing, or refuses SIGINT (e.g. the JVM was started with -Xrs)
+	 */
+	private static boolean setHandler(final Class<?> handlerClass, final Object handler) throws Exception {
+		Class<?> signalClass = Class.forName("sun.misc.Signal");
+		Object signal = signalClass.getConstructor(String.class).newInstance(SIGINT);
+		signalClass.getMethod("handle", signalClass, handlerClass).invoke(null, signal, handler);
+		return true;
+	}
+}
@@ -0,0 +1,363 @@
+package com.github.jacktasia.javarepl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * MethodSplitter splits the code lines of a generated main method into chunk methods called in order, so a long
+ * session stays under javac's 64 KB "code too large" limit and HotSpot's HugeMethodLimit (methods over 8000 bytes of
+ * bytecode are never JIT compiled). Top level variables become static fields assigned where they were declared, and
+ * top level classes static member classes, so every chunk sees them. Without a compiler to parse the code this works
+ * on its text: literals, comments and nesting are skipped, declarations are matched at the top level only.
+ */
+public final class MethodSplitter {
+
+	/** Source characters per chunk method, well under HugeMethodLimit for typical code. */
+	public static final int MAX_CHUNK_CHARS = 4000;
+
+	/** Calls per chunk method of a runner class (3 bytes of bytecode each). */
+	public static final int MAX_CHUNK_CALLS = 1000;
+
+	/** Top level declaration: modifiers (group 1), type (group 2), name (group 3), dimensions after the name (4). */
+	private static final Pattern DECLARATION = Pattern.compile("^\\s*((?:(?:final|@[\\w$.]+(?:\\([^)]*\\))?)\\s+)*)"
+			+ "([A-Za-z_$][\\w$.]*(?:<[^;=()]*>)?(?:\\s*\\[\\])*)\\s+([A-Za-z_$][\\w$]*)((?:\\s*\\[\\])*)\\s*(=|;|,)");
+
+	/** Further declarator of a declaration: name (group 1), dimensions (group 2). */
+	private static final Pattern DECLARATOR = Pattern.compile("^\\s*([A-Za-z_$][\\w$]*)((?:\\s*\\[\\])*)\\s*(=|;)?");
+
+	/** Start of a further declarator, to tell it from a comma of type arguments (e.g. new HashMap<K, V>()). */
+	private static final Pattern NEXT_DECLARATOR = Pattern
+			.compile("^\\s*[A-Za-z_$][\\w$]*(?:\\s*\\[\\])*\\s*(?:=(?!=)|,|;|$)");
+
+	/** Top level type declaration. */
+	private static final Pattern CLASS_DECLARATION = Pattern.compile("^\\s*(?:(?:public|protected|private|static"
+			+ "|final|abstract|strictfp|@[\\w$.]+(?:\\([^)]*\\))?)\\s+)*(?:class|interface|enum|@interface)\\s");
+
+	/** Words that start statements looking like declarations. */
+	private static final Set<String> NOT_TYPES = new HashSet<String>(Arrays.asList("return", "new", "throw", "else",
+			"case", "default", "do", "assert", "break", "continue", "yield", "import", "package"));
+
+	/** The split: fields, member classes and chunk methods. */
+	public static final class Split {
+
+		/** Static field declarations, e.g. "int[] rows". */
+		private final List<String> fields = new ArrayList<String>();
+
+		/** Static member class declarations. */
+		private final List<String> memberClasses = new ArrayList<String>();
+
+		/** Code lines of each chunk method. */
+		private final List<List<String>> chunks = new ArrayList<List<String>>();
+
+		/**
+		 * Get the static field declarations.
+		 *
+		 * @return e.g. "int[] rows", without the ;
+		 */
+		public List<String> getFields() {
+			return fields;
+		}
+
+		/**
+		 * Get the static member class declarations.
+		 *
+		 * @return class declarations
+		 */
+		public List<String> getMemberClasses() {
+			return memberClasses;
+		}
+
+		/**
+		 * Get the code lines of each chunk method.
+		 *
+		 * @return chunks in run order
+		 */
+		public List<List<String>> getChunks() {
+			return chunks;
+		}
+	}
+
+	/** Utility class. */
+	private MethodSplitter() {
+	}
+
+	/**
+	 * Split code lines into chunk methods if they are too long for one method.
+	 *
+	 * @param lines
+	 *            code lines of the method, each a complete statement or more
+	 * @param maxChunkChars
+	 *            source characters per chunk
+	 * @return the split, null if the lines fit one method or can't be split (a top level var declaration: its type
+	 *         can't be written as a field)
+	 */
+	public static Split split(final List<String> lines, final int maxChunkChars) {
+		int chars = 0;
+		for (final String line : lines) {
+			chars += line.length();
+		}
+		if (chars <= maxChunkChars) {
+			return null;
+		}
+
+		Split split = new Split();
+		Map<String, String> fields = new LinkedHashMap<String, String>();
+		List<String> chunk = new ArrayList<String>();
+		int chunkChars = 0;
+		for (final String line : lines) {
+			StringBuilder code = new StringBuilder();
+			for (final String statement : statements(line)) {
+				String declaration = statement.substring(codeStart(statement));
+				if (CLASS_DECLARATION.matcher(declaration).find()) {
+					split.memberClasses.add(declaration.matches("(?s).*\\bstatic\\s.*") ? declaration : "static "
+							+ declaration);
+				} else if (!hoist(statement, fields, code)) {
+					return null;
+				}
+			}
+
+			if (chunkChars > 0 && chunkChars + code.length() > maxChunkChars) {
+				split.chunks.add(chunk);
+				chunk = new ArrayList<String>();
+				chunkChars = 0;
+			}
+			chunk.add(code.toString());
+			chunkChars += code.length();
+		}
+		split.chunks.add(chunk);
+
+		for (final Map.Entry<String, String> field : fields.entrySet()) {
+			split.fields.add(field.getValue() + " " + field.getKey());
+		}
+
+		return split;
+	}
+
+	/**
+	 * Split calls into chunks of at most MAX_CHUNK_CALLS.
+	 *
+	 * @param calls
+	 *            calls in order
+	 * @return chunks in order, empty if there are no calls
+	 */
+	public static List<List<String>> chunkCalls(final List<String> calls) {
+		List<List<String>> chunks = new ArrayList<List<String>>();
+		for (int i = 0; i < calls.size(); i += MAX_CHUNK_CALLS) {
+			chunks.add(new ArrayList<String>(calls.subList(i, Math.min(calls.size(), i + MAX_CHUNK_CALLS))));
+		}
+
+		return chunks;
+	}
+
+	/**
+	 * Turn a top level variable declaration into assignments of static fields, anything else is kept as is.
+	 *
+	 * @param statement
+	 *            top level statement
+	 * @param fields
+	 *            field name to type, the declared ones are added
+	 * @param code
+	 *            code the statement becomes is appended to it
+	 * @return false if the declaration can't be hoisted (var)
+	 */
+	static boolean hoist(final String statement, final Map<String, String> fields, final StringBuilder code) {
+		int start = codeStart(statement);
+		Matcher m = DECLARATION.matcher(statement.substring(start));
+		if (!m.find() || NOT_TYPES.contains(m.group(2))) {
+			code.append(statement);
+			return true;
+		}
+
+		String type = m.group(2).replaceAll("\\s*\\[\\s*\\]", "[]");
+		if (type.equals("var")) {
+			return false;
+		}
+
+		code.append(statement.substring(0, start));
+		String name = m.group(3);
+		String dims = m.group(4).replaceAll("\\s+", "");
+		String rest = statement.substring(start + m.start(5));
+		while (true) {
+			fields.put(name, type + dims);
+			String end = rest.substring(0, 1);
+			rest = rest.substring(1);
+			if (end.equals("=")) {
+				int stop = topLevelEnd(rest);
+				String value = rest.substring(0, stop).trim();
+				if (value.startsWith("{")) {
+					value = "new " + type + dims + " " + value;
+				}
+				if (code.length() > 0 && code.charAt(code.length() - 1) == ';') {
+					code.append(' ');
+				}
+				code.append(name).append(" = ").append(value).append(';');
+				rest = rest.substring(stop);
+				end = rest.length() > 0 ? rest.substring(0, 1) : ";";
+				rest = rest.length() > 0 ? rest.substring(1) : "";
+			}
+
+			if (!end.equals(",")) {
+				break;
+			}
+
+			Matcher d = DECLARATOR.matcher(rest);
+			if (!d.find()) {
+				break;
+			}
+			name = d.group(1);
+			dims = d.group(2).replaceAll("\\s+", "");
+			rest = d.group(3) == null ? ";" : rest.substring(d.start(3));
+		}
+
+		code.append(rest.trim());
+		return true;
+	}
+
+	/**
+	 * Find where the code of a statement starts, after white space and comments.
+	 *
+	 * @param statement
+	 *            statement
+	 * @return index of the first code character, the length if there is none
+	 */
+	private static int codeStart(final String statement) {
+		int i = 0;
+		while (i < statement.length()) {
+			int skip = skipLiteral(statement, i);
+			if (Character.isWhitespace(statement.charAt(i))) {
+				i++;
+			} else if (skip > i && statement.charAt(i) == '/') {
+				i = skip;
+			} else {
+				break;
+			}
+		}
+
+		return i;
+	}
+
+	/**
+	 * Find the end of an initializer: the first ; outside of brackets, literals and comments, or , starting another
+	 * declarator.
+	 *
+	 * @param code
+	 *            code from the start of the initializer
+	 * @return index of the , or ;, or the length if there is none
+	 */
+	private static int topLevelEnd(final String code) {
+		int depth = 0;
+		for (int i = 0; i < code.length(); i++) {
+			char c = code.charAt(i);
+			int skip = skipLiteral(code, i);
+			if (skip > i) {
+				i = skip - 1;
+			} else if (c == '(' || c == '[' || c == '{') {
+				depth++;
+			} else if (c == ')' || c == ']' || c == '}') {
+				depth--;
+			} else if (depth == 0 && (c == ';' || c == ',' && NEXT_DECLARATOR.matcher(code.substring(i + 1)).find())) {
+				return i;
+			}
+		}
+
+		return code.length();
+	}
+
+	/**
+	 * Split a code line into its top level statements, a block (e.g. of a for loop) ending one. Joined they are the
+	 * line again.
+	 *
+	 * @param line
+	 *            code line
+	 * @return statements
+	 */
+	static List<String> statements(final String line) {
+		List<String> statements = new ArrayList<String>();
+		int depth = 0;
+		int start = 0;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			int skip = skipLiteral(line, i);
+			if (skip > i) {
+				i = skip - 1;
+				continue;
+			}
+
+			if (c == '(' || c == '[' || c == '{') {
+				depth++;
+			} else if (c == ')' || c == ']' || c == '}') {
+				depth--;
+			}
+
+			if (depth == 0 && (c == ';' || c == '}' && !continuesExpression(line, i + 1))) {
+				statements.add(line.substring(start, i + 1));
+				start = i + 1;
+			}
+		}
+
+		if (start < line.length()) {
+			statements.add(line.substring(start));
+		}
+
+		return statements;
+	}
+
+	/**
+	 * Does the code after a closing brace carry on its expression (e.g. an array initializer or anonymous class).
+	 *
+	 * @param code
+	 *            code
+	 * @param from
+	 *            index after the brace
+	 * @return true if the next character other than white space is one of ; , . ) ]
+	 */
+	private static boolean continuesExpression(final String code, final int from) {
+		for (int i = from; i < code.length(); i++) {
+			char c = code.charAt(i);
+			if (!Character.isWhitespace(c)) {
+				return ";,.)]".indexOf(c) >= 0;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Skip a string or char literal or a comment.
+	 *
+	 * @param code
+	 *            code
+	 * @param i
+	 *            index to look at
+	 * @return index after the literal or comment, i if there is none at i
+	 */
+	private static int skipLiteral(final String code, final int i) {
+		char c = code.charAt(i);
+		if (c == '"' || c == '\'') {
+			int j = i + 1;
+			while (j < code.length() && code.charAt(j) != c) {
+				j += code.charAt(j) == '\\' ? 2 : 1;
+			}
+			return Math.min(j + 1, code.length());
+		}
+
+		if (code.startsWith("//", i)) {
+			int end = code.indexOf('\n', i);
+			return end < 0 ? code.length() : end;
+		}
+
+		if (code.startsWith("/*", i)) {
+			int end = code.indexOf("*/", i + 2);
+			return end < 0 ? code.length() : end + 2;
+		}
+
+		return i;
+	}
+}
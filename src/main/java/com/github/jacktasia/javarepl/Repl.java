@@ -2,9 +2,13 @@ package com.github.jacktasia.javarepl;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
 import java.nio.charset.Charset;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -12,10 +16,9 @@ import java.util.logging.Logger;
 import jline.ConsoleReader;
 import jline.History;
 
-import com.google.common.base.Charsets;
 import com.google.common.base.Function;
-import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
+import com.google.common.io.CharStreams;
 import com.google.common.io.Files;
 
 /** Main class for the JavaRepl. */
@@ -40,23 +43,57 @@ public final class Repl {
 	private final String historyFilePath = System.getProperty("user.home") + File.separator + historyFilename;
 
 	/** History cmds from last session. */
-	private final List<String> oldHistory = new LinkedList<String>();
+	private List<String> oldHistory = Collections.emptyList();
+
+	/** Journal of the history cmds. */
+	private final HistoryJournal historyJournal = new HistoryJournal(new File(historyFilePath),
+			HistoryJournal.MAX_ENTRIES);
 
 	/** code file instance for compiling/running code. */
 	private final CodeFile code = new CodeFile();
 
-	/** Are we in multiline mode. */
-	private boolean multiLineMode = false;
+	/** Follows the brackets, comments and text blocks of the code being entered. */
+	private final InputLexer input = new InputLexer();
+
+	/** Current code in mutiline mode, empty when not in it. */
+	private final StringBuilder multiLineCode = new StringBuilder();
 
-	/** Current code in mutiline mode. */
-	private String multiLineCode = "";
+	/** Warmup iterations of the bench command. */
+	private int benchWarmup = ReplBench.DEFAULT_WARMUP;
+
+	/** Measured iterations of the bench command. */
+	private int benchIterations = ReplBench.DEFAULT_ITERATIONS;
 
 	/** path to default repl config file. */
 	private final static String defaultConfigName = System.getProperty("user.home") + File.separator + ".javarepl";
 
+	/** exit status when Ctrl-C quits the repl (same as the JVM's default for SIGINT). */
+	private final static int INTERRUPT_STATUS = 130;
+
+	/** command line option running a .repl file headless. */
+	private final static String SCRIPT_OPTION = "--script";
+
+	/** command line option running a directory of .repl files against their .expected output. */
+	private final static String TEST_OPTION = "--test";
+
+	/** --test option writing the .expected files instead of comparing. */
+	private final static String UPDATE_OPTION = "--update";
+
+	/** script file name reading the script from stdin. */
+	private final static String STDIN_SCRIPT = "-";
+
+	/** exit status when the script can't be read. */
+	private final static int SCRIPT_ERROR_STATUS = 2;
+
 	/** reader for jline prompt. */
 	private ConsoleReader reader;
 
+	/** JVM uptime when the prompt first showed. */
+	private long firstPromptMillis = 0;
+
+	/** Running a script: no prompt, only failed commands are reported. */
+	private final boolean headless;
+
 	/**
 	 * Repl file instance with default repl file.
 	 * 
@@ -75,6 +112,7 @@ public final class Repl {
 	 */
 	public Repl(final String replFileName) {
 		File replFile = new File(replFileName);
+		headless = false;
 
 		outputWelcomeTitle();
 		if (replFile.exists()) {
@@ -95,11 +133,28 @@ public final class Repl {
 	 */
 	public void firstBoot() throws IOException {
 		reader = new ConsoleReader();
+		reader.addCompletor(new ReplCompletor(code));
 		loadHistoryFile();
 		code.clearFileOnExit();
+		handleInterrupt();
 		bootRepl();
 	}
 
+	/**
+	 * Make Ctrl-C cancel the running code, the REPL only quits when it's pressed with nothing running.
+	 * 
+	 */
+	private void handleInterrupt() {
+		Interrupts.handle(new Runnable() {
+			@Override
+			public void run() {
+				if (!code.cancelRun()) {
+					System.exit(INTERRUPT_STATUS);
+				}
+			}
+		});
+	}
+
 	/**
 	 * Print out welcome title for boot.
 	 * 
@@ -110,12 +165,13 @@ public final class Repl {
 	}
 
 	/**
-	 * Boot the JavaRepl up.
+	 * Boot the JavaRepl up. The config code is validated and the compiler warmed up in the background, the prompt
+	 * doesn't wait for them.
 	 * 
 	 */
 	public void bootRepl() {
 		try {
-			code.generateCompileAndRun(); // to validate the config contents...
+			code.bootInBackground();
 			loadRepl();
 		} catch (IOException e) {
 			logger.log(Level.WARNING, "error loading repl", e);
@@ -123,36 +179,22 @@ public final class Repl {
 	}
 
 	/**
-	 * Save history for next session.
-	 * 
-	 * @param h
-	 *            history object
-	 */
-	public void saveHistoryFile(final History h) {
-		File historyFile = new File(historyFilePath);
-		List<String> history = getHistoryList(h);
-		try {
-			Files.write(Joiner.on("\n").join(history), historyFile, Charsets.UTF_8);
-		} catch (IOException e) {
-			System.err.println("Error saving '" + historyFilePath + "' - " + e.toString());
-			logger.log(Level.WARNING, "Error saving '" + historyFilePath + "'", e);
-		}
-	}
-
-	/**
-	 * Load history from last session.
+	 * Load history from last session (its newest entries), and write the entries not saved yet on exit.
 	 */
 	public void loadHistoryFile() {
 		File file = new File(historyFilePath);
 
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				historyJournal.close();
+			}
+		});
+
 		if (file.exists()) {
 			Command.outputTitle("Loading history...");
 			try {
-				final List<String> lines = Files.readLines(file, Charset.defaultCharset());
-				for (final String line : lines) {
-					oldHistory.add(line);
-				}
-
+				oldHistory = historyJournal.loadTail();
 			} catch (IOException e) {
 				System.err.println("Error opening '" + historyFilePath + "' - " + e.toString());
 				logger.log(Level.WARNING, "Error opening '" + historyFilePath + "'", e);
@@ -160,6 +202,73 @@ public final class Repl {
 		}
 	}
 
+	/**
+	 * Repl instance for running a script, skips the banner and config files.
+	 * 
+	 * @param headless
+	 *            true
+	 */
+	private Repl(final boolean headless) {
+		this.headless = headless;
+	}
+
+	/**
+	 * Run a .repl file headless: its commands are applied, its code lines compiled and run together once with the
+	 * output streamed, like a program.
+	 * 
+	 * @param fileName
+	 *            location of .repl file, - for stdin
+	 * @return exit status of the script
+	 */
+	public int runScript(final String fileName) {
+		List<String> lines;
+		try {
+			lines = fileName.equals(STDIN_SCRIPT) ? CharStreams.readLines(new InputStreamReader(System.in, Charset
+					.defaultCharset())) : Files.readLines(new File(fileName), Charset.defaultCharset());
+		} catch (IOException e) {
+			System.err.println("Error opening '" + fileName + "' - " + e.toString());
+			return SCRIPT_ERROR_STATUS;
+		}
+
+		code.clearFileOnExit(false);
+		// the code runs once, a spare worker would never be used
+		code.setSpareWorkers(0);
+		// the whole script is compiled in one go, as one class
+		code.setOneClass(true);
+		handleInterrupt();
+
+		StringBuilder block = new StringBuilder();
+		InputLexer lexer = new InputLexer();
+		for (final String rawLine : lines) {
+			String line = rawLine.trim();
+			if (block.length() == 0) {
+				if (line.length() == 0) {
+					continue;
+				} else if (code.isImportLine(line)) {
+					code.addTrialImport(line);
+					continue;
+				} else if (parseLine(line, false)) {
+					continue;
+				}
+			}
+
+			// code spanning lines (class, loop, call...) is one code line
+			block.append(block.length() > 0 ? "\n" : "").append(rawLine);
+			if (lexer.feed(rawLine).isComplete()) {
+				code.addTrialCode(block.toString());
+				block.setLength(0);
+				lexer.reset();
+			}
+		}
+
+		if (block.length() > 0) {
+			code.addTrialCode(block.toString());
+		}
+
+		code.generateCompileAndRun();
+		return code.getLastStatus();
+	}
+
 	/**
 	 * Load JavaRepl .repl file.
 	 * 
@@ -261,7 +370,9 @@ public final class Repl {
 		// split out some of the larger commands with some unnecessary complexity!
 		List<Function<LineParser, Integer>> blargs = new LinkedList<Function<LineParser, Integer>>();
 
+		long parseStart = System.nanoTime();
 		LineParser lp = new LineParser(line, executeNow);
+		code.addParseNanos(System.nanoTime() - parseStart);
 
 		blargs.add(isHelp(lp));
 		blargs.add(isClear(lp));
@@ -306,6 +417,45 @@ public final class Repl {
 			return true;
 		}
 
+		if (lp.getSpaceCmd().equals("stats") || line.trim().equals("stats")) {
+			outputStats(lp.getSpaceArgs().length > 0 ? lp.getSpaceArgs(0) : "");
+			return true;
+		}
+
+		if (lp.getSpaceCmd().equals("which")) {
+			outputWhich(lp.getSpaceArgs(0).trim());
+			return true;
+		}
+
+		if (lp.getSpaceCmd().equals("save")) {
+			saveSession(lp.getSpaceArgs(0).trim());
+			return true;
+		}
+
+		if (lp.getSpaceCmd().equals("restore")) {
+			String[] args = lp.getSpaceArgs(0).trim().split("\\s+");
+			restoreSession(args[0], args.length > 1 && args[1].equals("run"));
+			return true;
+		}
+
+		if (line.trim().equals("undo")) {
+			transmitSuccess(code.undo(), line);
+			return true;
+		}
+
+		if (line.trim().equals("redo")) {
+			transmitSuccess(code.redo(), line);
+			return true;
+		}
+
+		if (lp.getSpaceCmd().equals("bench")) {
+			code.addBenchCode(lp.getSpaceArgs(0), benchWarmup, benchIterations);
+			if (executeNow) {
+				code.generateCompileAndRun();
+			}
+			return true;
+		}
+
 		if (lp.getSpaceCmd().equals("addline")) {
 			code.addTrialCode(lp.getSpaceArgs(0));
 
@@ -316,6 +466,11 @@ public final class Repl {
 			return true;
 		}
 
+		if (lp.getSpaceCmd().equals("set")) {
+			transmitSuccess(applySetting(lp.getSpaceArgs(0)), line);
+			return true;
+		}
+
 		if (lp.getSpaceCmd().equals("import")) {
 			System.out.println("______");
 			transmitSuccess(code.addTrialImport(line), line);
@@ -330,6 +485,156 @@ public final class Repl {
 		return false;
 	}
 
+	/**
+	 * Change a REPL setting from a "set" command. e.g. set stateful on
+	 * 
+	 * @param args
+	 *            setting name and value
+	 * @return true if the setting was found and changed
+	 */
+	private boolean applySetting(final String args) {
+		String[] parts = args.trim().split("\\s+", 2);
+		String value = parts.length > 1 ? parts[1] : "";
+
+		if (parts[0].equals("stateful")) {
+			return (value.equals("on") || value.equals("off")) && code.setStateful(value.equals("on"));
+		}
+
+		if (parts[0].equals("timing") && (value.equals("on") || value.equals("off"))) {
+			code.setShowTimings(value.equals("on"));
+			return true;
+		}
+
+		if (parts[0].equals("isolate") && (value.equals("on") || value.equals("off"))) {
+			code.setIsolated(value.equals("on"));
+			return true;
+		}
+
+		if (parts[0].equals("spares")) {
+			try {
+				return code.setSpareWorkers(Integer.parseInt(value));
+			} catch (NumberFormatException e) {
+				return false;
+			}
+		}
+
+		if (parts[0].equals("benchwarmup") || parts[0].equals("benchiterations")) {
+			int count;
+			try {
+				count = Integer.parseInt(value);
+			} catch (NumberFormatException e) {
+				return false;
+			}
+
+			if (parts[0].equals("benchwarmup") && count >= 0) {
+				benchWarmup = count;
+				return true;
+			} else if (parts[0].equals("benchiterations") && count > 0) {
+				benchIterations = count;
+				return true;
+			}
+			return false;
+		}
+
+		return code.setRunLimit(parts[0], value);
+	}
+
+	/**
+	 * Show the session's evaluation timings, "stats csv file" exports them and "stats clear" resets them.
+	 * 
+	 * @param args
+	 *            stats command arguments, may be empty
+	 */
+	private void outputStats(final String args) {
+		String[] parts = args.trim().split("\\s+", 2);
+		EvalStats stats = code.getEvalStats();
+
+		if (parts[0].equals("csv") && parts.length > 1) {
+			File f = new File(parts[1]);
+			try {
+				stats.writeCsv(f);
+				System.out.println("wrote " + stats.size() + " evaluations to " + f.getAbsolutePath());
+			} catch (IOException e) {
+				System.out.println("Error writing '" + f + "' - " + e.toString());
+			}
+		} else if (parts[0].equals("clear")) {
+			stats.clear();
+		} else {
+			Command.outputTitle("Evaluation timings");
+			System.out.println(stats.report());
+			System.out.println(code.describeWorkers());
+			System.out.println("first prompt " + firstPromptMillis + " ms after JVM start, " + code.describeBoot());
+			Command.outputBar();
+		}
+	}
+
+	/**
+	 * Print the classes with a simple name in the added class path entries.
+	 * 
+	 * @param simpleName
+	 *            e.g. Joiner
+	 */
+	private void outputWhich(final String simpleName) {
+		List<String[]> found = code.getClassIndex().which(simpleName);
+		if (found.isEmpty()) {
+			System.out.println("no class named " + simpleName + " in " + code.getClassIndex().size()
+					+ " indexed classes");
+			return;
+		}
+
+		for (final String[] c : found) {
+			System.out.println("import " + c[0] + ";  // " + c[1]);
+		}
+	}
+
+	/**
+	 * Save the session to ~/.javarepl_sessions for the restore command.
+	 * 
+	 * @param name
+	 *            session name, or a file path
+	 */
+	private void saveSession(final String name) {
+		File f = SessionSnapshot.fileOf(name);
+		try {
+			SessionSnapshot snapshot = code.snapshot();
+			snapshot.write(f);
+			System.out.println("saved " + snapshot.getCode().size() + " code lines, " + snapshot.getImports().size()
+					+ " imports and " + snapshot.getClassPaths().size() + " class path entries to " + f);
+		} catch (IOException e) {
+			System.out.println("Error writing '" + f + "' - " + e.toString());
+			logger.log(Level.WARNING, "Error writing '" + f + "'", e);
+		}
+	}
+
+	/**
+	 * Replace the session with a saved one. Its code isn't run unless asked, and isn't compiled while the class path
+	 * is unchanged.
+	 * 
+	 * @param name
+	 *            session name, or a file path
+	 * @param run
+	 *            if the restored code should be run now
+	 */
+	private void restoreSession(final String name, final boolean run) {
+		File f = SessionSnapshot.fileOf(name);
+		long start = System.nanoTime();
+		boolean reused;
+		try {
+			reused = code.restore(SessionSnapshot.read(f));
+		} catch (IOException e) {
+			System.out.println("Error reading '" + f + "' - " + e.toString());
+			logger.log(Level.WARNING, "Error reading '" + f + "'", e);
+			return;
+		}
+
+		System.out.println(String.format(Locale.US, "restored %d code lines in %.1f ms (%s)",
+				code.getValidCode().size(), (System.nanoTime() - start) / 1e6,
+				reused ? "saved bytecode" : "class path changed, compiles on the next run"));
+		if (run) {
+			code.generateCompileAndRun();
+		}
+	}
+
 	/**
 	 * Output success/failture line based on passed functions result.
 	 * 
@@ -340,7 +645,9 @@ public final class Repl {
 	 */
 	private void transmitSuccess(final boolean wasSuccessful, final String line) {
 		if (wasSuccessful) {
-			outputSuccess(line);
+			if (!headless) {
+				outputSuccess(line);
+			}
 		} else {
 			outputFailure(line);
 		}
@@ -396,40 +703,29 @@ public final class Repl {
 		System.out.println(Strings.repeat("-", lineWidth));
 	}
 
-	private boolean handleMultiLineMode(String line) {
-		String lastChar;
-		lastChar = line.substring(line.length() - 1);
-
-		if (lastChar.equals("{")) {
-			multiLineMode = true;
-		}
-
-		if (multiLineMode) {
-			multiLineCode = multiLineCode + "\n" + line;
-		}
-
-		if (lastChar.equals("}")) {
-			multiLineMode = false;
+	/**
+	 * Handle a line of code or a command. Code is run once it is complete: brackets closed, no comment or text block
+	 * left open, until then its lines are collected.
+	 * 
+	 * @param line
+	 *            line entered, trimmed unless it continues code
+	 * @return true if more lines are needed (multiline mode)
+	 */
+	private boolean handleMultiLineMode(final String line) {
+		if (multiLineCode.length() == 0 && parseLine(line, true)) {
+			return false;
 		}
 
-		if (!multiLineMode) {
-			if (multiLineCode.length() > 0) {
-				code.addTrialCode(multiLineCode);
-				code.generateCompileAndRun();
-				multiLineCode = "";
-			} else {
-				if (!parseLine(line, true)) {
-					code.addTrialCode(line);
-					code.generateCompileAndRun();
-				}
-			}
-			saveHistoryFile(reader.getHistory());
-			return false;
-		} else {
+		multiLineCode.append(multiLineCode.length() > 0 ? "\n" : "").append(line);
+		if (!input.feed(line).isComplete()) {
 			return true;
-
 		}
 
+		input.reset();
+		code.addTrialCode(multiLineCode.toString());
+		multiLineCode.setLength(0);
+		code.generateCompileAndRun();
+		return false;
 	}
 
 	/**
@@ -439,15 +735,14 @@ public final class Repl {
 	 *             from reading line reader
 	 */
 	private void loadRepl() throws IOException {
+		String rawLine;
 		String line;
 
-		Boolean rebootRepl = false;
-
 		String prompt = "java> ";
 
 		reader.setBellEnabled(false);
 
-		if (oldHistory != null) {
+		if (!oldHistory.isEmpty()) {
 			History history = new History();
 			for (final String h : oldHistory) {
 				history.addToHistory(h);
@@ -455,16 +750,30 @@ public final class Repl {
 			reader.setHistory(history);
 		}
 
-		while ((line = reader.readLine(prompt)) != null) {
-			line = line.trim();
+		firstPromptMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+		logger.fine("first prompt " + firstPromptMillis + " ms after JVM start");
+		if (code.isShowTimings()) {
+			System.out.println("[first prompt " + firstPromptMillis + " ms after JVM start]");
+		}
+
+		while ((rawLine = reader.readLine(prompt)) != null) {
+			line = rawLine.trim();
+			boolean continued = multiLineCode.length() > 0;
 
-			if (line.length() > 0) {
-				if (code.isImportLine(line)) {
-					code.addTrialImport(line);
-					rebootRepl = true;
-					break;
-				} else if (line.equals("quit") || line.equals("exit")) {
+			if (line.length() > 0 || continued) {
+				if (line.length() > 0) {
+					historyJournal.append(line);
+				}
+				if (line.equals("quit") || line.equals("exit")) {
 					break;
+				}
+
+				code.awaitBoot();
+				if (continued) {
+					// keep the indentation, it matters in a text block
+					prompt = handleMultiLineMode(rawLine) ? "... " : "java> ";
+				} else if (code.isImportLine(line)) {
+					transmitSuccess(code.addImport(line), line);
 				} else { // "Normal" code line (not import, not multiline)
 					if (handleMultiLineMode(line)) {
 						prompt = "... ";
@@ -475,40 +784,6 @@ public final class Repl {
 			}
 
 		}
-
-		// new Import so lets reboot Repl so we can auto-complete the classes
-		// saves our history so far and reload that too
-
-		if (rebootRepl) {
-			recordHistory(reader.getHistory());
-			bootRepl();
-		}
-	}
-
-	/**
-	 * get history list from History object as List<String>.
-	 * 
-	 * @param h
-	 *            console reader's history obj
-	 * @return string list of history
-	 */
-	private List<String> getHistoryList(final History h) {
-		List<String> oh = new LinkedList<String>();
-		for (Object o : h.getHistoryList()) {
-			oh.add((String) o);
-		}
-
-		return oh;
-	}
-
-	/**
-	 * Record the history of the console reader up to now.
-	 * 
-	 * @param h
-	 *            console reader's history obj
-	 */
-	private void recordHistory(final History h) {
-		oldHistory.addAll(getHistoryList(h));
 	}
 
 	private static void loadLogger() {
@@ -529,12 +804,22 @@ public final class Repl {
 	 * Start up the Java Repl.
 	 * 
 	 * @param args
-	 *            .repl files to load
+	 *            .repl files to load, --script and a .repl file to run headless, or --test, a directory of .repl
+	 *            files to check and optionally --update
 	 * @throws IOException
 	 *             from reading line reader
 	 */
 	public static void main(final String[] args) throws IOException {
 
+		// headless runs leave no javarepl.log behind in the directory they were started from
+		if (args.length > 1 && args[0].equals(SCRIPT_OPTION)) {
+			System.exit(new Repl(true).runScript(args[1]));
+		}
+		if (args.length > 1 && args[0].equals(TEST_OPTION)) {
+			boolean update = args.length > 2 && args[2].equals(UPDATE_OPTION);
+			System.exit(new ScriptTestRunner(new File(args[1]), update).run());
+		}
+
 		loadLogger();
 		Repl r;
 		if (args.length > 0) {
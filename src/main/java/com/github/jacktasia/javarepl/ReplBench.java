@@ -0,0 +1,437 @@
+package com.github.jacktasia.javarepl;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * ReplBench is the harness behind the bench command. It runs in the worker JVM next to the session code: the
+ * benchmarked expression is compiled into a {@link Task} loop, calibrated so each measured iteration takes long enough
+ * for the timer, warmed up so the JIT has compiled it, then measured. Results go through a {@link Blackhole} so the
+ * JIT can't drop them as dead code. Like ReplWorker it only uses the JDK.
+ */
+public final class ReplBench {
+
+	/** Default number of warmup iterations. */
+	public static final int DEFAULT_WARMUP = 20;
+
+	/** Default number of measured iterations. */
+	public static final int DEFAULT_ITERATIONS = 100;
+
+	/** Time an iteration should take, long enough that timer resolution doesn't matter. */
+	static final long TARGET_ITERATION_NANOS = 10000000L;
+
+	/** Most ops run in one iteration. */
+	static final int MAX_OPS = 1 << 30;
+
+	/** Student's t critical values for a two sided 99% confidence interval, by degrees of freedom 1 to 30. */
+	private static final double[] T_99 = { 63.657, 9.925, 5.841, 4.604, 4.032, 3.707, 3.499, 3.355, 3.250, 3.169,
+			3.106, 3.055, 3.012, 2.977, 2.947, 2.921, 2.898, 2.878, 2.861, 2.845, 2.831, 2.819, 2.807, 2.797, 2.787,
+			2.779, 2.771, 2.763, 2.756, 2.750 };
+
+	/** Normal approximation of the t critical value for more degrees of freedom. */
+	private static final double Z_99 = 2.576;
+
+	/** The benchmarked code, a loop generated around the expression. */
+	public interface Task {
+
+		/**
+		 * Run the expression ops times.
+		 *
+		 * @param ops
+		 *            number of times to run it
+		 * @param bh
+		 *            blackhole for the results
+		 * @return nanoseconds the loop took
+		 * @throws Exception
+		 *             anything the expression throws
+		 */
+		long run(int ops, Blackhole bh) throws Exception;
+	}
+
+	/**
+	 * Blackhole consumes values in a way the JIT can't see through, so computing them can't be optimized away. The
+	 * comparisons against volatile fields never match, but the JIT has to do them.
+	 */
+	public static final class Blackhole {
+
+		/** Two different values, no value equals both. */
+		private volatile byte b1 = 1, b2 = 2;
+
+		/** Two different values. */
+		private volatile short s1 = 1, s2 = 2;
+
+		/** Two different values. */
+		private volatile char c1 = 'A', c2 = 'B';
+
+		/** Two different values. */
+		private volatile int i1 = 1, i2 = 2;
+
+		/** Two different values. */
+		private volatile long l1 = 1, l2 = 2;
+
+		/** Two different values. */
+		private volatile float f1 = 1, f2 = 2;
+
+		/** Two different values. */
+		private volatile double d1 = 1, d2 = 2;
+
+		/** Two different values. */
+		private volatile boolean z1 = false, z2 = true;
+
+		/** Objects are stored here now and then, so they can't be eliminated by escape analysis. */
+		private Object sink;
+
+		/** Random state deciding when to store an object. */
+		private int tlr = (int) System.nanoTime();
+
+		/** Stores happen when the random bits under the mask are zero, the mask grows so they get rarer. */
+		private int tlrMask = 1;
+
+		/**
+		 * Consume a value.
+		 *
+		 * @param v
+		 *            value
+		 */
+		public void consume(final byte v) {
+			if (v == b1 & v == b2) {
+				throw new IllegalStateException("blackhole failed");
+			}
+		}
+
+		/**
+		 * Consume a value.
+		 *
+		 * @param v
+		 *            value
+		 */
+		public void consume(final short v) {
+			if (v == s1 & v == s2) {
+				throw new IllegalStateException("blackhole failed");
+			}
+		}
+
+		/**
+		 * Consume a value.
+		 *
+		 * @param v
+		 *            value
+		 */
+		public void consume(final char v) {
+			if (v == c1 & v == c2) {
+				throw new IllegalStateException("blackhole failed");
+			}
+		}
+
+		/**
+		 * Consume a value.
+		 *
+		 * @param v
+		 *            value
+		 */
+		public void consume(final int v) {
+			if (v == i1 & v == i2) {
+				throw new IllegalStateException("blackhole failed");
+			}
+		}
+
+		/**
+		 * Consume a value.
+		 *
+		 * @param v
+		 *            value
+		 */
+		public void consume(final long v) {
+			if (v == l1 & v == l2) {
+				throw new IllegalStateException("blackhole failed");
+			}
+		}
+
+		/**
+		 * Consume a value.
+		 *
+		 * @param v
+		 *            value
+		 */
+		public void consume(final float v) {
+			if (v == f1 & v == f2) {
+				throw new IllegalStateException("blackhole failed");
+			}
+		}
+
+		/**
+		 * Consume a value.
+		 *
+		 * @param v
+		 *            value
+		 */
+		public void consume(final double v) {
+			if (v == d1 & v == d2) {
+				throw new IllegalStateException("blackhole failed");
+			}
+		}
+
+		/**
+		 * Consume a value.
+		 *
+		 * @param v
+		 *            value
+		 */
+		public void consume(final boolean v) {
+			if (v == z1 & v == z2) {
+				throw new IllegalStateException("blackhole failed");
+			}
+		}
+
+		/**
+		 * Consume a value.
+		 *
+		 * @param v
+		 *            value
+		 */
+		public void consume(final Object v) {
+			int t = tlr * 1664525 + 1013904223;
+			tlr = t;
+			if ((t & tlrMask) == 0) {
+				sink = v;
+				tlrMask = (tlrMask << 1) + 1;
+			}
+		}
+	}
+
+	/** Summary statistics of the measured iterations. */
+	static final class Stats {
+
+		/** Nanoseconds per op of each iteration, sorted. */
+		private final double[] sorted;
+
+		/** Mean nanoseconds per op. */
+		private final double mean;
+
+		/** Half width of the 99% confidence interval of the mean. */
+		private final double error;
+
+		/**
+		 * Stats constructor.
+		 *
+		 * @param nanosPerOp
+		 *            nanoseconds per op of each measured iteration
+		 */
+		Stats(final double[] nanosPerOp) {
+			sorted = nanosPerOp.clone();
+			Arrays.sort(sorted);
+
+			double sum = 0;
+			for (final double v : sorted) {
+				sum += v;
+			}
+			mean = sum / sorted.length;
+
+			if (sorted.length < 2) {
+				error = Double.NaN;
+			} else {
+				double squares = 0;
+				for (final double v : sorted) {
+					squares += (v - mean) * (v - mean);
+				}
+				double stdDev = Math.sqrt(squares / (sorted.length - 1));
+				error = tCritical(sorted.length - 1) * stdDev / Math.sqrt(sorted.length);
+			}
+		}
+
+		/**
+		 * Get the mean time of an op.
+		 *
+		 * @return nanoseconds
+		 */
+		double getMean() {
+			return mean;
+		}
+
+		/**
+		 * Get the half width of the 99% confidence interval of the mean.
+		 *
+		 * @return nanoseconds, NaN with fewer than 2 iterations
+		 */
+		double getError() {
+			return error;
+		}
+
+		/**
+		 * Get a percentile of the time of an op (nearest rank).
+		 *
+		 * @param p
+		 *            percentile, 0 to 100
+		 * @return nanoseconds
+		 */
+		double percentile(final double p) {
+			int rank = (int) Math.ceil(p / 100 * sorted.length);
+			return sorted[Math.min(sorted.length - 1, Math.max(0, rank - 1))];
+		}
+
+		/**
+		 * Format the report printed by the bench command.
+		 *
+		 * @param name
+		 *            what was benchmarked
+		 * @param warmup
+		 *            warmup iterations
+		 * @param ops
+		 *            ops per iteration
+		 * @return report
+		 */
+		String format(final String name, final int warmup, final int ops) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("bench ").append(name).append('\n');
+			sb.append(String.format(Locale.US, "  %d iterations of %d ops, %d warmup\n", sorted.length, ops, warmup));
+			sb.append("  mean   ").append(formatNanos(mean)).append("/op");
+			if (!Double.isNaN(error)) {
+				sb.append(" +/- ").append(formatNanos(error)).append(" (99% CI)");
+			}
+			sb.append('\n');
+			sb.append("  p50    ").append(formatNanos(percentile(50))).append("/op\n");
+			sb.append("  p99    ").append(formatNanos(percentile(99))).append("/op\n");
+			sb.append("  ops/s  ").append(formatRate(1e9 / mean));
+			if (!Double.isNaN(error) && error < mean) {
+				sb.append(" (").append(formatRate(1e9 / (mean + error))).append(" .. ")
+						.append(formatRate(1e9 / (mean - error))).append(')');
+			}
+
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Benchmark a task and print the results.
+	 *
+	 * @param name
+	 *            what is benchmarked, shown in the report
+	 * @param warmup
+	 *            iterations run before measuring
+	 * @param iterations
+	 *            measured iterations
+	 * @param task
+	 *            the benchmarked code
+	 */
+	public static void run(final String name, final int warmup, final int iterations, final Task task) {
+		Blackhole bh = new Blackhole();
+		try {
+			int ops = calibrate(task, bh);
+			for (int i = 0; i < warmup; i++) {
+				// the JIT speeds the code up while warming up, keep iterations near the target time
+				ops = rescale(ops, task.run(ops, bh));
+			}
+
+			double[] nanosPerOp = new double[iterations];
+			for (int i = 0; i < iterations; i++) {
+				nanosPerOp[i] = task.run(ops, bh) / (double) ops;
+			}
+
+			System.out.println(new Stats(nanosPerOp).format(name, warmup, ops));
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Find how many ops make an iteration take about TARGET_ITERATION_NANOS. Also the first warmup.
+	 *
+	 * @param task
+	 *            the benchmarked code
+	 * @param bh
+	 *            blackhole for the results
+	 * @return ops per iteration
+	 * @throws Exception
+	 *             anything the code throws
+	 */
+	static int calibrate(final Task task, final Blackhole bh) throws Exception {
+		int ops = 1;
+		while (ops < MAX_OPS) {
+			long nanos = task.run(ops, bh);
+			if (nanos >= TARGET_ITERATION_NANOS) {
+				break;
+			}
+
+			// grow fast while the loop is too quick to time, then close in on the target
+			long scale = nanos <= 0 ? 16 : Math.min(16, Math.max(2, TARGET_ITERATION_NANOS / nanos));
+			ops = (int) Math.min(MAX_OPS, ops * scale);
+		}
+
+		return ops;
+	}
+
+	/**
+	 * Grow the ops per iteration if an iteration took less than half the target time.
+	 *
+	 * @param ops
+	 *            ops of the iteration
+	 * @param nanos
+	 *            time it took
+	 * @return ops for the next iteration
+	 */
+	static int rescale(final int ops, final long nanos) {
+		if (nanos >= TARGET_ITERATION_NANOS / 2) {
+			return ops;
+		}
+
+		long scale = nanos <= 0 ? 16 : Math.min(16, TARGET_ITERATION_NANOS / nanos);
+		return (int) Math.min(MAX_OPS, ops * scale);
+	}
+
+	/**
+	 * Get the t critical value of a 99% confidence interval.
+	 *
+	 * @param degreesOfFreedom
+	 *            sample size - 1
+	 * @return critical value
+	 */
+	static double tCritical(final int degreesOfFreedom) {
+		return degreesOfFreedom <= T_99.length ? T_99[degreesOfFreedom - 1] : Z_99;
+	}
+
+	/**
+	 * Format a duration with a readable unit.
+	 *
+	 * @param nanos
+	 *            nanoseconds
+	 * @return e.g. 3.21 ns or 1.50 ms
+	 */
+	static String formatNanos(final double nanos) {
+		if (nanos < 1e3) {
+			return String.format(Locale.US, "%.3f ns", nanos);
+		} else if (nanos < 1e6) {
+			return String.format(Locale.US, "%.3f us", nanos / 1e3);
+		} else if (nanos < 1e9) {
+			return String.format(Locale.US, "%.3f ms", nanos / 1e6);
+		}
+
+		return String.format(Locale.US, "%.3f s", nanos / 1e9);
+	}
+
+	/**
+	 * Format a rate with a readable unit.
+	 *
+	 * @param perSecond
+	 *            ops per second
+	 * @return e.g. 311.2M
+	 */
+	static String formatRate(final double perSecond) {
+		if (perSecond >= 1e9) {
+			return String.format(Locale.US, "%.1fG", perSecond / 1e9);
+		} else if (perSecond >= 1e6) {
+			return String.format(Locale.US, "%.1fM", perSecond / 1e6);
+		} else if (perSecond >= 1e3) {
+			return String.format(Locale.US, "%.1fk", perSecond / 1e3);
+		}
+
+		return String.format(Locale.US, "%.1f", perSecond);
+	}
+
+	/**
+	 * Utility class.
+	 */
+	private ReplBench() {
+	}
+}
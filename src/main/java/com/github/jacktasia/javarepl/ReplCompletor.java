@@ -0,0 +1,335 @@
+package com.github.jacktasia.javarepl;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import jline.Completor;
+
+/**
+ * ReplCompletor is the tab completion of the prompt. Class names and packages come from the sorted names of the
+ * {@link ClassIndex}, so completing is a binary search however big the class path is. Members come from reflection
+ * on the class, cached per class. Session variables are found by their declarations in the valid code.
+ */
+public final class ReplCompletor implements Completor {
+
+	private final static Logger logger = Logger.getLogger(ReplCompletor.class.getName());
+
+	/** Most candidates offered. */
+	static final int MAX_CANDIDATES = 200;
+
+	/** Declaration of a variable: type (group 1) and name (group 2). */
+	private static final Pattern DECLARATION = Pattern.compile("(?:^|[;{(,\\s])"
+			+ "([A-Za-z_$][\\w$.]*(?:<[^;=()]*>)?(?:\\[\\])*)\\s+([A-Za-z_$][\\w$]*)\\s*(?:=|;|$)");
+
+	/** Import line: name (group 2), wildcard (group 3). */
+	private static final Pattern IMPORT = Pattern.compile("^\\s*import\\s+(static\\s+)?([\\w$.]+?)(\\.\\*)?\\s*;");
+
+	/** Words the declaration pattern matches that aren't types. */
+	private static final Set<String> NOT_TYPES = new HashSet<String>(Arrays.asList("return", "new", "throw", "else",
+			"case", "instanceof", "import", "package", "extends", "implements"));
+
+	/** Code file holding the session. */
+	private final CodeFile code;
+
+	/** Class name to its sorted members, "S:" prefixed keys for static members, "I:" for instance members. */
+	private final Map<String, String[]> members = new HashMap<String, String[]>();
+
+	/** Class path the loader was made for. */
+	private List<String> loaderClassPaths;
+
+	/** Loads classes for their members, without initializing them. */
+	private ClassLoader loader;
+
+	/**
+	 * ReplCompletor constructor, starts indexing the JDK's classes.
+	 *
+	 * @param code
+	 *            code file holding the session
+	 */
+	public ReplCompletor(final CodeFile code) {
+		this.code = code;
+		code.getClassIndex().addJdk();
+	}
+
+	/**
+	 * Complete the name before the cursor.
+	 *
+	 * @param buffer
+	 *            line being edited
+	 * @param cursor
+	 *            cursor position
+	 * @param candidates
+	 *            completions are added here, each replacing the text from the returned position to the cursor
+	 * @return position the completions start at, -1 if there are none
+	 */
+	@Override
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public int complete(final String buffer, final int cursor, final List candidates) {
+		String text = buffer == null ? "" : buffer.substring(0, cursor);
+		int start = text.length();
+		while (start > 0 && (Character.isJavaIdentifierPart(text.charAt(start - 1)) || text.charAt(start - 1) == '.')) {
+			start--;
+		}
+
+		String token = text.substring(start);
+		int dot = token.lastIndexOf('.');
+		List<String> found;
+		if (dot < 0) {
+			found = completeName(token);
+		} else if (dot == 0) {
+			// "text".len
+			found = start > 0 && text.charAt(start - 1) == '"' ? completeMember("java.lang.String", false, token
+					.substring(1)) : new ArrayList<String>();
+		} else {
+			found = completeQualified(token.substring(0, dot), token.substring(dot + 1));
+		}
+
+		if (found.isEmpty()) {
+			return -1;
+		}
+
+		candidates.addAll(found);
+		return start + dot + 1;
+	}
+
+	/**
+	 * Complete a variable or class name.
+	 *
+	 * @param prefix
+	 *            start of the name
+	 * @return completions
+	 */
+	private List<String> completeName(final String prefix) {
+		if (prefix.length() == 0) {
+			return new ArrayList<String>();
+		}
+
+		TreeSet<String> names = new TreeSet<String>();
+		for (final String var : variables().keySet()) {
+			if (var.startsWith(prefix)) {
+				names.add(var);
+			}
+		}
+		names.addAll(code.getClassIndex().completeSimpleName(prefix, MAX_CANDIDATES));
+
+		return limit(names);
+	}
+
+	/**
+	 * Complete after a dot: a member of a variable or class, else a package or class name.
+	 *
+	 * @param qualifier
+	 *            text before the last dot
+	 * @param prefix
+	 *            text after it
+	 * @return completions of the text after the dot
+	 */
+	private List<String> completeQualified(final String qualifier, final String prefix) {
+		String type = variables().get(qualifier);
+		if (type != null) {
+			if (type.endsWith("]")) {
+				return "length".startsWith(prefix) ? Arrays.asList("length") : new ArrayList<String>();
+			}
+
+			String className = resolve(type);
+			return className == null ? new ArrayList<String>() : completeMember(className, false, prefix);
+		}
+
+		String className = resolve(qualifier);
+		if (className != null) {
+			return completeMember(className, true, prefix);
+		}
+
+		List<String> names = new ArrayList<String>();
+		for (final String name : code.getClassIndex().completeQualifiedName(qualifier + "." + prefix,
+				MAX_CANDIDATES)) {
+			names.add(name.substring(qualifier.length() + 1));
+		}
+
+		return names;
+	}
+
+	/**
+	 * Complete a member of a class.
+	 *
+	 * @param className
+	 *            fully qualified class name
+	 * @param statics
+	 *            true for static members, false for instance members
+	 * @param prefix
+	 *            start of the member name
+	 * @return completions, methods end in (
+	 */
+	private List<String> completeMember(final String className, final boolean statics, final String prefix) {
+		String[] sorted = membersOf(className, statics);
+		List<String> names = new ArrayList<String>();
+		int i = Arrays.binarySearch(sorted, prefix);
+		for (i = i >= 0 ? i : -i - 1; i < sorted.length && sorted[i].startsWith(prefix)
+				&& names.size() < MAX_CANDIDATES; i++) {
+			names.add(sorted[i]);
+		}
+
+		return names;
+	}
+
+	/**
+	 * Get the public members of a class, reflecting on it the first time.
+	 *
+	 * @param className
+	 *            fully qualified class name
+	 * @param statics
+	 *            true for static members, false for instance members
+	 * @return sorted member names, methods end in (
+	 */
+	String[] membersOf(final String className, final boolean statics) {
+		ClassLoader classLoader = loader();
+		String key = (statics ? "S:" : "I:") + className;
+		String[] cached = members.get(key);
+		if (cached != null) {
+			return cached;
+		}
+
+		TreeSet<String> names = new TreeSet<String>();
+		try {
+			Class<?> c = Class.forName(className, false, classLoader);
+			for (final Method m : c.getMethods()) {
+				if (Modifier.isStatic(m.getModifiers()) == statics) {
+					names.add(m.getName() + "(");
+				}
+			}
+			for (final Field f : c.getFields()) {
+				if (Modifier.isStatic(f.getModifiers()) == statics) {
+					names.add(f.getName());
+				}
+			}
+			if (statics) {
+				names.add("class");
+			}
+		} catch (ClassNotFoundException e) {
+			logger.log(Level.FINE, "can't load " + className + " for completion", e);
+		} catch (LinkageError e) {
+			logger.log(Level.FINE, "can't load " + className + " for completion", e);
+		}
+
+		String[] sorted = names.toArray(new String[names.size()]);
+		members.put(key, sorted);
+		return sorted;
+	}
+
+	/**
+	 * Get the loader of the session's class path, made again (dropping the cached members) when entries are added.
+	 *
+	 * @return class loader
+	 */
+	private ClassLoader loader() {
+		List<String> classPaths = code.getClassPaths();
+		if (loader == null || !classPaths.equals(loaderClassPaths)) {
+			List<URL> urls = new ArrayList<URL>();
+			for (final String path : classPaths) {
+				try {
+					urls.add(new File(path).toURI().toURL());
+				} catch (MalformedURLException e) {
+					logger.log(Level.FINE, "bad class path entry " + path, e);
+				}
+			}
+
+			// the JDK and the session's class path, not the REPL's own libraries
+			loader = new URLClassLoader(urls.toArray(new URL[urls.size()]), ClassLoader.getSystemClassLoader()
+					.getParent());
+			loaderClassPaths = new ArrayList<String>(classPaths);
+			members.clear();
+		}
+
+		return loader;
+	}
+
+	/**
+	 * Resolve a type name as the session code would: qualified names, imports, java.lang, else the only class with
+	 * that simple name.
+	 *
+	 * @param type
+	 *            type name, generics and arrays are dropped
+	 * @return fully qualified class name, null if unknown
+	 */
+	String resolve(final String type) {
+		String name = type.replaceAll("<.*", "").replaceAll("\\[\\]", "").trim();
+		ClassIndex index = code.getClassIndex();
+		if (name.indexOf('.') >= 0) {
+			return index.isIndexed(name) ? name : null;
+		}
+
+		Set<String> packages = new HashSet<String>();
+		packages.add("java.lang");
+		code.awaitBoot(); // the config imports are only valid once checked
+		for (final String line : code.getValidImport()) {
+			Matcher m = IMPORT.matcher(line);
+			if (!m.find() || m.group(1) != null) {
+				continue;
+			}
+
+			if (m.group(3) != null) {
+				packages.add(m.group(2));
+			} else if (m.group(2).endsWith("." + name)) {
+				return m.group(2);
+			}
+		}
+
+		List<String[]> classes = index.indexed(name);
+		for (final String[] c : classes) {
+			if (packages.contains(c[0].substring(0, c[0].lastIndexOf('.')))) {
+				return c[0];
+			}
+		}
+
+		return classes.size() == 1 ? classes.get(0)[0] : null;
+	}
+
+	/**
+	 * Find the variables declared in the valid code, a later declaration of a name wins.
+	 *
+	 * @return variable name to declared type
+	 */
+	Map<String, String> variables() {
+		Map<String, String> vars = new HashMap<String, String>();
+		code.awaitBoot();
+		for (final String line : code.getValidCode()) {
+			Matcher m = DECLARATION.matcher(line);
+			while (m.find()) {
+				if (!NOT_TYPES.contains(m.group(1))) {
+					vars.put(m.group(2), m.group(1));
+				}
+			}
+		}
+
+		return vars;
+	}
+
+	/**
+	 * Cap the number of candidates.
+	 *
+	 * @param names
+	 *            sorted candidates
+	 * @return the first MAX_CANDIDATES of them
+	 */
+	private static List<String> limit(final TreeSet<String> names) {
+		List<String> limited = new ArrayList<String>(names);
+		return limited.size() > MAX_CANDIDATES ? limited.subList(0, MAX_CANDIDATES) : limited;
+	}
+}
@@ -0,0 +1,502 @@
+package com.github.jacktasia.javarepl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ReplWorker is the main class of the long-lived worker JVM that runs compiled code for the REPL. It reads requests
+ * from stdin and writes framed stdout/stderr/exit status back on stdout. Keep this class free of third party
+ * dependencies so the worker starts fast.
+ */
+public final class ReplWorker {
+
+	/** Request: add a jar/directory to the persistent class path. */
+	static final byte ADD_CLASSPATH = 1;
+
+	/** Request: define classes in a throwaway loader and run main. */
+	static final byte RUN = 2;
+
+	/** Request: define classes in the persistent session loader and run the snippet's run method. */
+	static final byte SESSION_RUN = 3;
+
+	/** Request: drop the session loader and all state held in its classes. */
+	static final byte SESSION_RESET = 4;
+
+	/** Request: interrupt the running code (the only request read while code runs). */
+	static final byte CANCEL = 5;
+
+	/** Request: set the CPU time limit of runs, in milliseconds (0 for none). */
+	static final byte LIMITS = 6;
+
+	/** Response frame: stdout bytes. */
+	static final byte OUT = 1;
+
+	/** Response frame: stderr bytes. */
+	static final byte ERR = 2;
+
+	/** Response frame: run finished with status code. */
+	static final byte EXIT = 3;
+
+	/** Response frame: classes are loaded, the code starts running. */
+	static final byte LOADED = 4;
+
+	/** Status code used when the main method throws (same as the java launcher). */
+	static final int EXCEPTION_STATUS = 1;
+
+	/** Exit status of the worker when it had to stop code over its CPU time limit (128 + SIGXCPU). */
+	static final int CPU_LIMIT_STATUS = 152;
+
+	/** How often the running code is checked for cancel requests and its CPU time. */
+	private static final long POLL_MILLIS = 20;
+
+	/** Time code over its CPU limit gets to stop after being interrupted, before the worker exits. */
+	private static final long CPU_LIMIT_GRACE_MILLIS = 1000;
+
+	/** Protocol output, the real stdout of this JVM. */
+	private final DataOutputStream protocolOut;
+
+	/** Persistent loader holding classes from addjar/addcp, grows as paths are added. */
+	private ClassLoader libraryLoader = new HarnessLoader();
+
+	/** Loader holding the stateful session's snippet classes, their static fields are the session state. */
+	private SnippetLoader sessionLoader = new SnippetLoader(this);
+
+	/** Max CPU time of the code's main thread per run, 0 for none. */
+	private long cpuMillis = 0;
+
+	/**
+	 * Worker constructor.
+	 *
+	 * @param protocolOut
+	 *            stream for response frames
+	 */
+	private ReplWorker(final DataOutputStream protocolOut) {
+		this.protocolOut = protocolOut;
+	}
+
+	/**
+	 * Add a class path entry. Existing classes stay loaded, the new entry is layered on top.
+	 *
+	 * @param path
+	 *            jar or directory path
+	 * @throws IOException
+	 *             if the path is not a valid url
+	 */
+	private void addClassPath(final String path) throws IOException {
+		URL url = new File(path).toURI().toURL();
+		libraryLoader = new URLClassLoader(new URL[] { url }, libraryLoader);
+	}
+
+	/**
+	 * Load the request's classes, then run main of mainClass (or the static no-arg run method for session snippets).
+	 *
+	 * @param loader
+	 *            loader holding the compiled classes
+	 * @param classNames
+	 *            binary names of the classes sent with the request
+	 * @param mainClass
+	 *            binary name of class to run
+	 * @param method
+	 *            name of method to run, "main" or a snippet's run method
+	 * @return status code
+	 */
+	private int run(final SnippetLoader loader, final Iterable<String> classNames, final String mainClass,
+			final String method) {
+		Thread current = Thread.currentThread();
+		ClassLoader previous = current.getContextClassLoader();
+		current.setContextClassLoader(loader);
+
+		try {
+			for (final String name : classNames) {
+				Class.forName(name, false, loader);
+			}
+			Class<?> c = Class.forName(mainClass, true, loader);
+			Method m = method.equals("main") ? c.getMethod(method, String[].class) : c.getMethod(method);
+			writeFrame(LOADED);
+
+			if (method.equals("main")) {
+				m.invoke(null, (Object) new String[0]);
+			} else {
+				m.invoke(null);
+			}
+			return 0;
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			trimStackTrace(cause, mainClass, method);
+			System.err.print("Exception in thread \"main\" ");
+			cause.printStackTrace();
+		} catch (Exception e) {
+			e.printStackTrace();
+		} catch (LinkageError e) {
+			e.printStackTrace();
+		} finally {
+			current.setContextClassLoader(previous);
+			System.out.flush();
+			System.err.flush();
+		}
+
+		return EXCEPTION_STATUS;
+	}
+
+	/**
+	 * Run the code on its own "main" thread, while watching for cancel requests and the CPU time limit. Cancelling
+	 * interrupts the code, the REPL kills us if it doesn't stop. Code over its CPU time gets a moment to stop on its
+	 * own, then the worker exits.
+	 *
+	 * @param in
+	 *            request stream
+	 * @param loader
+	 *            loader holding the compiled classes
+	 * @param classNames
+	 *            binary names of the classes sent with the request
+	 * @param mainClass
+	 *            binary name of class to run
+	 * @param method
+	 *            name of method to run, "main" or a snippet's run method
+	 * @return status code
+	 * @throws IOException
+	 *             if the REPL went away
+	 */
+	private int runWatched(final DataInputStream in, final SnippetLoader loader, final Iterable<String> classNames,
+			final String mainClass, final String method) throws IOException {
+		final int[] status = new int[] { EXCEPTION_STATUS };
+		Thread code = new Thread("main") {
+			@Override
+			public void run() {
+				status[0] = ReplWorker.this.run(loader, classNames, mainClass, method);
+			}
+		};
+		code.start();
+
+		ThreadMXBean threads = cpuMillis > 0 ? ManagementFactory.getThreadMXBean() : null;
+		long cpuLimitHit = -1;
+
+		while (code.isAlive()) {
+			try {
+				code.join(POLL_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return EXCEPTION_STATUS;
+			}
+
+			while (in.available() > 0) {
+				if (in.readByte() == CANCEL) {
+					code.interrupt();
+				}
+			}
+
+			if (threads != null && cpuLimitHit < 0 && threads.getThreadCpuTime(code.getId()) > cpuMillis * 1000000L) {
+				System.err.println("CPU time limit of " + cpuMillis + " ms exceeded");
+				code.interrupt();
+				cpuLimitHit = System.currentTimeMillis();
+			}
+
+			boolean graceOver = System.currentTimeMillis() - cpuLimitHit > CPU_LIMIT_GRACE_MILLIS;
+			if (cpuLimitHit >= 0 && code.isAlive() && graceOver) {
+				System.out.flush();
+				System.err.flush();
+				Runtime.getRuntime().halt(CPU_LIMIT_STATUS);
+			}
+		}
+
+		return cpuLimitHit >= 0 ? EXCEPTION_STATUS : status[0];
+	}
+
+	/**
+	 * Cut off the worker's reflection frames below the snippet's main method.
+	 *
+	 * @param t
+	 *            exception thrown by main
+	 * @param mainClass
+	 *            binary name of class that was run
+	 * @param method
+	 *            name of method that was run
+	 */
+	private static void trimStackTrace(final Throwable t, final String mainClass, final String method) {
+		StackTraceElement[] trace = t.getStackTrace();
+		for (int i = trace.length - 1; i >= 0; i--) {
+			if (trace[i].getClassName().equals(mainClass) && trace[i].getMethodName().equals(method)) {
+				t.setStackTrace(Arrays.copyOf(trace, i + 1));
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Write a frame without payload.
+	 *
+	 * @param frame
+	 *            frame type
+	 * @throws IOException
+	 *             if the REPL went away
+	 */
+	private void writeFrame(final byte frame) throws IOException {
+		synchronized (protocolOut) {
+			protocolOut.writeByte(frame);
+			protocolOut.flush();
+		}
+	}
+
+	/**
+	 * Write the EXIT frame for a finished run.
+	 *
+	 * @param status
+	 *            status code of the run
+	 * @throws IOException
+	 *             if the REPL went away
+	 */
+	private void writeExit(final int status) throws IOException {
+		synchronized (protocolOut) {
+			protocolOut.writeByte(EXIT);
+			protocolOut.writeInt(status);
+			protocolOut.flush();
+		}
+	}
+
+	/**
+	 * Read the classes of a run request.
+	 *
+	 * @param in
+	 *            request stream
+	 * @return binary class name to bytecode
+	 * @throws IOException
+	 *             if the REPL went away
+	 */
+	private static Map<String, byte[]> readClasses(final DataInputStream in) throws IOException {
+		int count = in.readInt();
+		Map<String, byte[]> classes = new HashMap<String, byte[]>();
+		for (int i = 0; i < count; i++) {
+			String name = in.readUTF();
+			byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			classes.put(name, bytes);
+		}
+
+		return classes;
+	}
+
+	/**
+	 * Read requests until the REPL closes our stdin.
+	 *
+	 * @param in
+	 *            request stream
+	 * @throws IOException
+	 *             if the REPL went away
+	 */
+	private void serve(final DataInputStream in) throws IOException {
+		while (true) {
+			byte request;
+			try {
+				request = in.readByte();
+			} catch (EOFException e) {
+				return;
+			}
+
+			if (request == ADD_CLASSPATH) {
+				addClassPath(in.readUTF());
+			} else if (request == RUN) {
+				String mainClass = in.readUTF();
+				SnippetLoader loader = new SnippetLoader(this);
+				Map<String, byte[]> classes = readClasses(in);
+				loader.addClasses(classes);
+				writeExit(runWatched(in, loader, classes.keySet(), mainClass, "main"));
+			} else if (request == SESSION_RUN) {
+				String snippetClass = in.readUTF();
+				Map<String, byte[]> classes = readClasses(in);
+				sessionLoader.addClasses(classes);
+				writeExit(runWatched(in, sessionLoader, classes.keySet(), snippetClass,
+						Snippet.runMethod(snippetClass)));
+			} else if (request == SESSION_RESET) {
+				sessionLoader = new SnippetLoader(this);
+			} else if (request == LIMITS) {
+				cpuMillis = in.readLong();
+			} else if (request == CANCEL) {
+				// arrived after the code it was meant for finished
+				continue;
+			} else {
+				throw new IOException("Unknown worker request: " + request);
+			}
+		}
+	}
+
+	/**
+	 * Start the worker.
+	 *
+	 * @param args
+	 *            unused
+	 * @throws IOException
+	 *             if the REPL went away
+	 */
+	public static void main(final String[] args) throws IOException {
+		final DataOutputStream protocolOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+				FileDescriptor.out)));
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(FileDescriptor.in)));
+
+		System.setOut(new PrintStream(new BufferedOutputStream(new FrameOutputStream(protocolOut, OUT)), true,
+				"UTF-8"));
+		System.setErr(new PrintStream(new BufferedOutputStream(new FrameOutputStream(protocolOut, ERR)), true,
+				"UTF-8"));
+		System.setIn(new ByteArrayInputStream(new byte[0]));
+
+		// Ctrl-C at the REPL reaches our process group too, the REPL cancels the code instead
+		if (!Interrupts.ignore()) {
+			System.err.println("can't ignore SIGINT");
+		}
+
+		// snippet calling System.exit() takes us down, make sure its output gets out first
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				System.out.flush();
+				System.err.flush();
+			}
+		});
+
+		new ReplWorker(protocolOut).serve(in);
+	}
+
+	/**
+	 * Root of the library loader: the JDK's classes, and of the REPL's own class path only the bench harness compiled
+	 * code links against. Jars added to the session never see the REPL's dependencies (e.g. its Guava) in place of
+	 * their own, as with the java forked by the javac fallback.
+	 */
+	private static final class HarnessLoader extends ClassLoader {
+
+		/** Binary name of the REPL class compiled code may use, its nested classes too. */
+		private static final String HARNESS_CLASS = ReplBench.class.getName();
+
+		/**
+		 * Loader constructor, the parent is the platform (extension) loader.
+		 */
+		HarnessLoader() {
+			super(ClassLoader.getSystemClassLoader().getParent());
+		}
+
+		@Override
+		protected Class<?> findClass(final String name) throws ClassNotFoundException {
+			if (name.equals(HARNESS_CLASS) || name.startsWith(HARNESS_CLASS + "$")) {
+				return ReplWorker.class.getClassLoader().loadClass(name);
+			}
+
+			throw new ClassNotFoundException(name);
+		}
+	}
+
+	/**
+	 * Loader for compiled REPL classes. A new one is used (and thrown away) for every run, one lives on as the stateful
+	 * session loader. Everything else is looked up in the current library loader, so jars added later are visible.
+	 */
+	private static final class SnippetLoader extends ClassLoader {
+
+		/** Worker owning the library loader. */
+		private final ReplWorker worker;
+
+		/** Binary class name to bytecode of classes not defined yet. */
+		private final Map<String, byte[]> classes = new HashMap<String, byte[]>();
+
+		/**
+		 * Loader constructor.
+		 *
+		 * @param worker
+		 *            worker owning the library loader
+		 */
+		SnippetLoader(final ReplWorker worker) {
+			super(worker.libraryLoader);
+			this.worker = worker;
+		}
+
+		/**
+		 * Make classes available to this loader.
+		 *
+		 * @param newClasses
+		 *            binary class name to bytecode
+		 */
+		synchronized void addClasses(final Map<String, byte[]> newClasses) {
+			classes.putAll(newClasses);
+		}
+
+		@Override
+		protected synchronized Class<?> loadClass(final String name, final boolean resolve)
+				throws ClassNotFoundException {
+			Class<?> c = findLoadedClass(name);
+			if (c == null) {
+				byte[] bytes = classes.remove(name);
+				if (bytes != null) {
+					c = defineClass(name, bytes, 0, bytes.length);
+				} else {
+					c = worker.libraryLoader.loadClass(name);
+				}
+			}
+
+			if (resolve) {
+				resolveClass(c);
+			}
+
+			return c;
+		}
+	}
+
+	/** Output stream that wraps everything written into protocol frames. */
+	private static final class FrameOutputStream extends OutputStream {
+
+		/** Protocol output, shared by stdout and stderr frames. */
+		private final DataOutputStream protocolOut;
+
+		/** Frame type (OUT or ERR). */
+		private final byte type;
+
+		/**
+		 * Frame stream constructor.
+		 *
+		 * @param protocolOut
+		 *            protocol output
+		 * @param type
+		 *            frame type
+		 */
+		FrameOutputStream(final DataOutputStream protocolOut, final byte type) {
+			this.protocolOut = protocolOut;
+			this.type = type;
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			synchronized (protocolOut) {
+				protocolOut.writeByte(type);
+				protocolOut.writeInt(len);
+				protocolOut.write(b, off, len);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			synchronized (protocolOut) {
+				protocolOut.flush();
+			}
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package com.github.jacktasia.javarepl;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RunLimits holds the per-evaluation budgets for running code: wall clock time, CPU time, output size and heap size.
+ * A zero (or null heap) limit means unlimited.
+ */
+public final class RunLimits {
+
+	/** Time a cancelled run gets to stop on its own before the runner is killed. */
+	public static final long CANCEL_GRACE_MILLIS = 2000;
+
+	/** Max wall clock time of a run. */
+	private long timeoutMillis = 0;
+
+	/** Max CPU time of a run's main thread. */
+	private long cpuMillis = 0;
+
+	/** Max bytes a run may print (stdout and stderr). */
+	private long maxOutputBytes = 0;
+
+	/** Max heap of the runner JVM, as a -Xmx value (e.g. 512m), null for the JVM default. */
+	private String heap;
+
+	/**
+	 * Get the max wall clock time of a run.
+	 *
+	 * @return milliseconds, 0 for unlimited
+	 */
+	public long getTimeoutMillis() {
+		return timeoutMillis;
+	}
+
+	/**
+	 * Get the max CPU time of a run.
+	 *
+	 * @return milliseconds, 0 for unlimited
+	 */
+	public long getCpuMillis() {
+		return cpuMillis;
+	}
+
+	/**
+	 * Get the max bytes a run may print.
+	 *
+	 * @return bytes, 0 for unlimited
+	 */
+	public long getMaxOutputBytes() {
+		return maxOutputBytes;
+	}
+
+	/**
+	 * Get the max heap of the runner JVM.
+	 *
+	 * @return -Xmx value, null for the JVM default
+	 */
+	public String getHeap() {
+		return heap;
+	}
+
+	/**
+	 * Change a limit from a "set" command value.
+	 *
+	 * @param name
+	 *            timeout, cputime, maxoutput or heap
+	 * @param value
+	 *            seconds (timeout, cputime), size like 10m (maxoutput, heap) or "off"
+	 * @return true if the limit exists and the value is valid
+	 */
+	public boolean set(final String name, final String value) {
+		boolean off = value.equals("off") || value.equals("0");
+
+		try {
+			if (name.equals("timeout")) {
+				timeoutMillis = off ? 0 : parseSeconds(value);
+			} else if (name.equals("cputime")) {
+				cpuMillis = off ? 0 : parseSeconds(value);
+			} else if (name.equals("maxoutput")) {
+				maxOutputBytes = off ? 0 : parseSize(value);
+			} else if (name.equals("heap")) {
+				if (!off) {
+					parseSize(value);
+				}
+				heap = off ? null : value.toLowerCase();
+			} else {
+				return false;
+			}
+		} catch (NumberFormatException e) {
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Parse a positive number of seconds (fractions allowed).
+	 *
+	 * @param value
+	 *            e.g. 10 or 0.5
+	 * @return milliseconds
+	 */
+	static long parseSeconds(final String value) {
+		double seconds = Double.parseDouble(value);
+		if (seconds <= 0 || Double.isInfinite(seconds) || Double.isNaN(seconds)) {
+			throw new NumberFormatException("not a positive number of seconds: " + value);
+		}
+
+		return Math.max(1, (long) (seconds * TimeUnit.SECONDS.toMillis(1)));
+	}
+
+	/**
+	 * Parse a positive size with an optional k, m or g suffix.
+	 *
+	 * @param value
+	 *            e.g. 4096, 512k, 10m
+	 * @return bytes
+	 */
+	static long parseSize(final String value) {
+		String v = value.toLowerCase();
+		long unit = 1;
+		if (v.endsWith("k")) {
+			unit = 1024;
+		} else if (v.endsWith("m")) {
+			unit = 1024 * 1024;
+		} else if (v.endsWith("g")) {
+			unit = 1024 * 1024 * 1024;
+		}
+
+		long size = Long.parseLong(unit == 1 ? v : v.substring(0, v.length() - 1));
+		if (size <= 0) {
+			throw new NumberFormatException("not a positive size: " + value);
+		}
+
+		return size * unit;
+	}
+}
@@ -0,0 +1,334 @@
+package com.github.jacktasia.javarepl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * ScriptTestRunner runs a directory of .repl files as regression checks. Each file runs as a --script in its own JVM,
+ * as many at a time as there are cores, and its output is compared with the file's golden .expected output. The JVMs
+ * share a class data sharing archive of the REPL's classes when the JVM supports it.
+ */
+public final class ScriptTestRunner {
+
+	/** Extension of the scripts. */
+	static final String SCRIPT_EXTENSION = ".repl";
+
+	/** Extension of the golden output files. */
+	static final String EXPECTED_EXTENSION = ".expected";
+
+	/** Exit status when every script passed. */
+	public static final int PASS_STATUS = 0;
+
+	/** Exit status when a script failed. */
+	public static final int FAIL_STATUS = 1;
+
+	/** Exit status when there is nothing to run. */
+	public static final int NO_SCRIPTS_STATUS = 2;
+
+	/** Outcome of one script. */
+	static final class Outcome {
+
+		/** The script. */
+		private final File script;
+
+		/** True if its output matched. */
+		private final boolean passed;
+
+		/** Why it failed, or what was done. */
+		private final String detail;
+
+		/** Milliseconds it ran. */
+		private final double millis;
+
+		/**
+		 * Outcome constructor.
+		 *
+		 * @param script
+		 *            the script
+		 * @param passed
+		 *            true if its output matched
+		 * @param detail
+		 *            why it failed, or what was done, empty for none
+		 * @param millis
+		 *            milliseconds it ran
+		 */
+		Outcome(final File script, final boolean passed, final String detail, final double millis) {
+			this.script = script;
+			this.passed = passed;
+			this.detail = detail;
+			this.millis = millis;
+		}
+
+		/**
+		 * Did the output match.
+		 *
+		 * @return true if passed
+		 */
+		boolean isPassed() {
+			return passed;
+		}
+
+		/**
+		 * Format the result line of the script.
+		 *
+		 * @return e.g. "PASS  joiner.repl  812 ms"
+		 */
+		String format() {
+			String line = String.format(Locale.US, "%s  %s  %.0f ms", passed ? "PASS" : "FAIL", script.getName(),
+					millis);
+			return detail.length() == 0 ? line : line + "\n" + detail;
+		}
+	}
+
+	/** Scripts directory. */
+	private final File dir;
+
+	/** Write the outputs as the new .expected files instead of comparing. */
+	private final boolean update;
+
+	/** Class data sharing archives of the script JVMs. */
+	private final ClassDataSharing sharing = ClassDataSharing.open(new File(System.getProperty("user.home"),
+			".javarepl_cache" + File.separator + "cds"));
+
+	/**
+	 * ScriptTestRunner constructor.
+	 *
+	 * @param dir
+	 *            directory of .repl files
+	 * @param update
+	 *            true to write the outputs as the new .expected files instead of comparing
+	 */
+	public ScriptTestRunner(final File dir, final boolean update) {
+		this.dir = dir;
+		this.update = update;
+	}
+
+	/**
+	 * Run the scripts and print a result line per script as they finish, then a summary.
+	 *
+	 * @return PASS_STATUS if all passed, FAIL_STATUS if any failed, NO_SCRIPTS_STATUS if there were none
+	 */
+	public int run() {
+		File[] scripts = dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(final File d, final String name) {
+				return name.endsWith(SCRIPT_EXTENSION);
+			}
+		});
+		if (scripts == null || scripts.length == 0) {
+			System.err.println("No " + SCRIPT_EXTENSION + " files in " + dir);
+			return NO_SCRIPTS_STATUS;
+		}
+		Arrays.sort(scripts);
+
+		int threads = Math.min(scripts.length, Runtime.getRuntime().availableProcessors());
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		CompletionService<Outcome> outcomes = new ExecutorCompletionService<Outcome>(pool);
+		long start = System.nanoTime();
+		for (final File script : scripts) {
+			outcomes.submit(new Callable<Outcome>() {
+				@Override
+				public Outcome call() {
+					return check(script);
+				}
+			});
+		}
+
+		int failed = 0;
+		try {
+			for (int i = 0; i < scripts.length; i++) {
+				Outcome outcome = outcomes.take().get();
+				if (!outcome.isPassed()) {
+					failed++;
+				}
+				System.out.println(outcome.format());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return FAIL_STATUS;
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+
+		Command.outputBar();
+		System.out.println(String.format(Locale.US, "%d passed, %d failed in %.0f ms (%d at a time)", scripts.length
+				- failed, failed, (System.nanoTime() - start) / 1e6, threads));
+		return failed == 0 ? PASS_STATUS : FAIL_STATUS;
+	}
+
+	/**
+	 * Run a script and compare its output with its .expected file (or write it when updating).
+	 *
+	 * @param script
+	 *            the .repl file
+	 * @return outcome
+	 */
+	Outcome check(final File script) {
+		String baseName = script.getName().substring(0, script.getName().length() - SCRIPT_EXTENSION.length());
+		File expectedFile = new File(script.getParentFile(), baseName + EXPECTED_EXTENSION);
+
+		long start = System.nanoTime();
+		TailBuffer errorOutput = new TailBuffer();
+		int exitStatus;
+		String actual;
+		File outputFile = null;
+		try {
+			// stdout goes to a file, compared and written in full however large
+			outputFile = File.createTempFile("javarepl-" + baseName, ".out");
+			OutputStream output = new FileOutputStream(outputFile);
+			try {
+				exitStatus = runScript(script, output, errorOutput);
+			} finally {
+				output.close();
+			}
+			actual = normalize(Files.toString(outputFile, Charsets.UTF_8));
+		} catch (IOException e) {
+			return new Outcome(script, false, "      " + e, (System.nanoTime() - start) / 1e6);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return new Outcome(script, false, "      interrupted", (System.nanoTime() - start) / 1e6);
+		} finally {
+			if (outputFile != null) {
+				outputFile.delete();
+			}
+		}
+
+		double millis = (System.nanoTime() - start) / 1e6;
+		String status = exitStatus == 0 ? "" : "      exit status " + exitStatus + "\n";
+		String errors = errorOutput.toString().trim().length() == 0 ? "" : "      stderr: "
+				+ errorOutput.toString().trim() + "\n";
+
+		try {
+			if (update) {
+				Files.write(actual, expectedFile, Charsets.UTF_8);
+				return new Outcome(script, true, "      wrote " + expectedFile.getName(), millis);
+			}
+
+			if (!expectedFile.isFile()) {
+				return new Outcome(script, false, "      no " + expectedFile.getName() + " (run with --update)",
+						millis);
+			}
+
+			String expected = normalize(Files.toString(expectedFile, Charsets.UTF_8));
+			if (expected.equals(actual)) {
+				return new Outcome(script, true, "", millis);
+			}
+
+			return new Outcome(script, false, (difference(expected, actual) + status + errors).replaceAll("\n$", ""),
+					millis);
+		} catch (IOException e) {
+			return new Outcome(script, false, "      " + e, millis);
+		}
+	}
+
+	/**
+	 * Run a script in a JVM like ours and wait for it. The JVM is registered with its class data sharing launch as
+	 * soon as it starts, so other launches see a recording in progress.
+	 *
+	 * @param script
+	 *            the .repl file
+	 * @param output
+	 *            gets all of the script's stdout
+	 * @param errorOutput
+	 *            gets the script's stderr
+	 * @return exit status of the script
+	 * @throws IOException
+	 *             if the JVM can't be started
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	private int runScript(final File script, final OutputStream output, final TailBuffer errorOutput)
+			throws IOException, InterruptedException {
+		String classPath = System.getProperty("java.class.path");
+		ClassDataSharing.Launch launch = sharing.launch(Repl.class.getName(), classPath,
+				Collections.<String> emptyList());
+		Process process = new ProcessBuilder(scriptCommand(script, classPath, launch.getOptions())).start();
+		launch.started(process);
+		try {
+			process.getOutputStream().close();
+			StreamPump outPump = StreamPump.start("script-stdout", process.getInputStream(), output,
+					new TailBuffer());
+			StreamPump errPump = StreamPump.start("script-stderr", process.getErrorStream(), null, errorOutput);
+			int exitStatus = process.waitFor();
+			outPump.await();
+			errPump.await();
+			return exitStatus;
+		} catch (InterruptedException e) {
+			process.destroy();
+			throw e;
+		} finally {
+			launch.exited();
+		}
+	}
+
+	/**
+	 * Get the command running a script in a JVM like ours.
+	 *
+	 * @param script
+	 *            the .repl file
+	 * @param classPath
+	 *            class path of the REPL
+	 * @param options
+	 *            JVM options
+	 * @return command line
+	 */
+	private static String[] scriptCommand(final File script, final String classPath, final List<String> options) {
+		List<String> cmd = new ArrayList<String>();
+		cmd.add(WorkerClient.javaLauncher());
+		cmd.addAll(options);
+		cmd.addAll(Arrays.asList("-cp", classPath, Repl.class.getName(), "--script", script.getPath()));
+		return cmd.toArray(new String[cmd.size()]);
+	}
+
+	/**
+	 * Make output comparable across platforms: \n line ends.
+	 *
+	 * @param output
+	 *            output
+	 * @return normalized output
+	 */
+	static String normalize(final String output) {
+		return output.replace("\r\n", "\n");
+	}
+
+	/**
+	 * Describe the first line that differs.
+	 *
+	 * @param expected
+	 *            golden output
+	 * @param actual
+	 *            output of the run
+	 * @return description, ending in a line break
+	 */
+	static String difference(final String expected, final String actual) {
+		String[] expectedLines = expected.split("\n", -1);
+		String[] actualLines = actual.split("\n", -1);
+		int i = 0;
+		while (i < expectedLines.length && i < actualLines.length && expectedLines[i].equals(actualLines[i])) {
+			i++;
+		}
+
+		return "      line " + (i + 1) + "\n" + "      expected: "
+				+ (i < expectedLines.length ? expectedLines[i] : "<end of output>") + "\n" + "      actual:   "
+				+ (i < actualLines.length ? actualLines[i] : "<end of output>") + "\n";
+	}
+}
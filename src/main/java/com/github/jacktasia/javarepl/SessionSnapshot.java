@@ -0,0 +1,287 @@
+package com.github.jacktasia.javarepl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SessionSnapshot is a saved session: the class path entries, imports and code lines, and the compiled bytecode of
+ * the code. Restoring it while the class path is unchanged reuses that bytecode, so nothing is compiled again.
+ */
+public final class SessionSnapshot {
+
+	/** Version of the file format, files of other versions aren't read. */
+	private static final int FORMAT_VERSION = 1;
+
+	/** Extension of saved session files. */
+	public static final String EXTENSION = ".session";
+
+	/** Class path entries added to the session. */
+	private final List<String> classPaths;
+
+	/** Valid import lines. */
+	private final List<String> imports;
+
+	/** Valid code lines. */
+	private final List<String> code;
+
+	/** Was the session in stateful mode. */
+	private final boolean stateful;
+
+	/** Fingerprint of the class path the bytecode was compiled against, empty if there is no bytecode. */
+	private final String classPathFingerprint;
+
+	/** The committed snippet chain as written by {@link SnippetChain#write(DataOutputStream)}, empty for none. */
+	private final byte[] chain;
+
+	/** Snippet classes the runner class calls, empty for none. */
+	private final List<String> runnerClasses;
+
+	/** Bytecode of the runner class. */
+	private final Map<String, byte[]> runnerBytecode;
+
+	/** Snippets of the stateful session, in run order. */
+	private final List<Snippet> sessionSnippets;
+
+	/** Id for the next stateful snippet class. */
+	private final int nextSnippetId;
+
+	/**
+	 * SessionSnapshot constructor.
+	 *
+	 * @param classPaths
+	 *            class path entries added to the session
+	 * @param imports
+	 *            valid import lines
+	 * @param code
+	 *            valid code lines
+	 * @param stateful
+	 *            true if the session is in stateful mode
+	 * @param classPathFingerprint
+	 *            fingerprint of the class path the bytecode was compiled against, empty if there is no bytecode
+	 * @param chain
+	 *            written snippet chain, empty for none
+	 * @param runnerClasses
+	 *            snippet classes the runner class calls
+	 * @param runnerBytecode
+	 *            bytecode of the runner class
+	 * @param sessionSnippets
+	 *            snippets of the stateful session
+	 * @param nextSnippetId
+	 *            id for the next stateful snippet class
+	 */
+	public SessionSnapshot(final List<String> classPaths, final List<String> imports, final List<String> code,
+			final boolean stateful, final String classPathFingerprint, final byte[] chain,
+			final List<String> runnerClasses, final Map<String, byte[]> runnerBytecode,
+			final List<Snippet> sessionSnippets, final int nextSnippetId) {
+		this.classPaths = new ArrayList<String>(classPaths);
+		this.imports = new ArrayList<String>(imports);
+		this.code = new ArrayList<String>(code);
+		this.stateful = stateful;
+		this.classPathFingerprint = classPathFingerprint;
+		this.chain = chain;
+		this.runnerClasses = new ArrayList<String>(runnerClasses);
+		this.runnerBytecode = runnerBytecode;
+		this.sessionSnippets = new ArrayList<Snippet>(sessionSnippets);
+		this.nextSnippetId = nextSnippetId;
+	}
+
+	/**
+	 * Get the file of a saved session: a name in ~/.javarepl_sessions, or a path.
+	 *
+	 * @param name
+	 *            e.g. parser, or ./parser.session
+	 * @return session file
+	 */
+	public static File fileOf(final String name) {
+		if (name.indexOf('/') >= 0 || name.indexOf(File.separatorChar) >= 0) {
+			return new File(name);
+		}
+
+		return new File(System.getProperty("user.home") + File.separator + ".javarepl_sessions", name + EXTENSION);
+	}
+
+	/**
+	 * Write the snapshot, replacing the file only once it's complete.
+	 *
+	 * @param file
+	 *            session file
+	 * @throws IOException
+	 *             if the file can't be written
+	 */
+	public void write(final File file) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("could not create " + dir);
+		}
+
+		File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(FORMAT_VERSION);
+			BytecodeCache.writeStrings(out, classPaths);
+			BytecodeCache.writeStrings(out, imports);
+			BytecodeCache.writeStrings(out, code);
+			out.writeBoolean(stateful);
+			BytecodeCache.writeLongUTF(out, classPathFingerprint);
+			out.writeInt(chain.length);
+			out.write(chain);
+			BytecodeCache.writeStrings(out, runnerClasses);
+			BytecodeCache.writeClasses(out, runnerBytecode);
+			out.writeInt(sessionSnippets.size());
+			for (final Snippet snippet : sessionSnippets) {
+				snippet.write(out);
+			}
+			out.writeInt(nextSnippetId);
+		} finally {
+			out.close();
+		}
+
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+				throw new IOException("could not replace " + file);
+			}
+		}
+	}
+
+	/**
+	 * Read a snapshot written by {@link #write(File)}.
+	 *
+	 * @param file
+	 *            session file
+	 * @return the snapshot
+	 * @throws IOException
+	 *             if the file can't be read, is corrupt or of another version
+	 */
+	public static SessionSnapshot read(final File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != FORMAT_VERSION) {
+				throw new IOException(file + " was saved by another version");
+			}
+
+			List<String> classPaths = BytecodeCache.readStrings(in);
+			List<String> imports = BytecodeCache.readStrings(in);
+			List<String> code = BytecodeCache.readStrings(in);
+			boolean stateful = in.readBoolean();
+			String fingerprint = BytecodeCache.readLongUTF(in);
+			byte[] chain = new byte[in.readInt()];
+			in.readFully(chain);
+			List<String> runnerClasses = BytecodeCache.readStrings(in);
+			Map<String, byte[]> runnerBytecode = BytecodeCache.readClasses(in);
+			int count = in.readInt();
+			List<Snippet> sessionSnippets = new ArrayList<Snippet>(count);
+			for (int i = 0; i < count; i++) {
+				sessionSnippets.add(Snippet.read(in));
+			}
+
+			return new SessionSnapshot(classPaths, imports, code, stateful, fingerprint, chain, runnerClasses,
+					runnerBytecode, sessionSnippets, in.readInt());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Get the class path entries added to the session.
+	 *
+	 * @return jars and directories
+	 */
+	public List<String> getClassPaths() {
+		return classPaths;
+	}
+
+	/**
+	 * Get the valid import lines.
+	 *
+	 * @return import lines
+	 */
+	public List<String> getImports() {
+		return imports;
+	}
+
+	/**
+	 * Get the valid code lines.
+	 *
+	 * @return code lines
+	 */
+	public List<String> getCode() {
+		return code;
+	}
+
+	/**
+	 * Was the session in stateful mode.
+	 *
+	 * @return true if stateful
+	 */
+	public boolean isStateful() {
+		return stateful;
+	}
+
+	/**
+	 * Can the saved bytecode be used with a class path: same entries, unchanged since, same JVM version.
+	 *
+	 * @param paths
+	 *            class path entries of the restored session
+	 * @return true if the bytecode is still valid
+	 */
+	public boolean isBytecodeValid(final List<String> paths) {
+		return classPathFingerprint.length() > 0
+				&& classPathFingerprint.equals(BytecodeCache.classPathFingerprint(paths));
+	}
+
+	/**
+	 * Get the written snippet chain.
+	 *
+	 * @return chain bytes, empty for none
+	 */
+	public byte[] getChain() {
+		return chain;
+	}
+
+	/**
+	 * Get the snippet classes the runner class calls.
+	 *
+	 * @return snippet class names, empty for none
+	 */
+	public List<String> getRunnerClasses() {
+		return runnerClasses;
+	}
+
+	/**
+	 * Get the bytecode of the runner class.
+	 *
+	 * @return binary class name to bytecode
+	 */
+	public Map<String, byte[]> getRunnerBytecode() {
+		return runnerBytecode;
+	}
+
+	/**
+	 * Get the snippets of the stateful session.
+	 *
+	 * @return snippets in run order
+	 */
+	public List<Snippet> getSessionSnippets() {
+		return sessionSnippets;
+	}
+
+	/**
+	 * Get the id for the next stateful snippet class.
+	 *
+	 * @return snippet id
+	 */
+	public int getNextSnippetId() {
+		return nextSnippetId;
+	}
+}
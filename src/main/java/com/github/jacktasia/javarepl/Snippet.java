@@ -0,0 +1,277 @@
+package com.github.jacktasia.javarepl;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Snippet is one evaluated chunk of session code compiled to its own class. Top level declarations become static
+ * fields and each snippet class extends the one before it, so later snippets see earlier variables by name.
+ */
+public final class Snippet {
+
+	/** Prefix of generated snippet class names. */
+	public static final String CLASS_PREFIX = "ReplSnippet";
+
+	/** Session unique snippet id. */
+	private final int id;
+
+	/** Code lines of the snippet, as entered. */
+	private final List<String> lines;
+
+	/** Generated java source (the parse wrapper when parsing failed). */
+	private final String source;
+
+	/** Compile result, null while the generated source isn't compiled yet. */
+	private final InMemoryCompiler.Result result;
+
+	/** Declared variable name to type, in declaration order. */
+	private final Map<String, String> declarations;
+
+	/** Declared member class name to its source. */
+	private final Map<String, String> memberClasses;
+
+	/** Simple names the snippet code refers to (variables, types, methods, packages). */
+	private final Set<String> references;
+
+	/**
+	 * Snippet constructor.
+	 *
+	 * @param id
+	 *            session unique snippet id
+	 * @param lines
+	 *            code lines of the snippet
+	 * @param source
+	 *            generated java source
+	 * @param result
+	 *            compile result
+	 * @param declarations
+	 *            declared variable name to type
+	 * @param memberClasses
+	 *            declared member class name to source
+	 * @param references
+	 *            simple names the code refers to
+	 */
+	Snippet(final int id, final List<String> lines, final String source, final InMemoryCompiler.Result result,
+			final Map<String, String> declarations, final Map<String, String> memberClasses,
+			final Set<String> references) {
+		this.id = id;
+		this.lines = lines;
+		this.source = source;
+		this.result = result;
+		this.declarations = declarations;
+		this.memberClasses = memberClasses;
+		this.references = references;
+	}
+
+	/**
+	 * Copy the snippet with its compile result.
+	 *
+	 * @param compileResult
+	 *            compile result of the source
+	 * @return the snippet, compiled (or failed)
+	 */
+	Snippet withResult(final InMemoryCompiler.Result compileResult) {
+		return new Snippet(id, lines, source, compileResult, declarations, memberClasses, references);
+	}
+
+	/**
+	 * Get the generated class name for a snippet id.
+	 *
+	 * @param id
+	 *            snippet id
+	 * @return binary class name
+	 */
+	public static String className(final int id) {
+		return CLASS_PREFIX + id;
+	}
+
+	/**
+	 * Get the name of a snippet class's run method. Each snippet has its own: with a run() in every class of the
+	 * chain javac checks each one against all those it hides, which grows with the cube of the chain length.
+	 *
+	 * @param className
+	 *            snippet class name
+	 * @return method name, e.g. run12
+	 */
+	public static String runMethod(final String className) {
+		return "run" + className.substring(CLASS_PREFIX.length());
+	}
+
+	/**
+	 * Get the snippet id.
+	 *
+	 * @return snippet id
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Get the generated class name.
+	 *
+	 * @return binary class name
+	 */
+	public String getClassName() {
+		return className(id);
+	}
+
+	/**
+	 * Get the code lines of the snippet.
+	 *
+	 * @return code lines
+	 */
+	public List<String> getLines() {
+		return lines;
+	}
+
+	/**
+	 * Get the generated java source.
+	 *
+	 * @return java source
+	 */
+	public String getSource() {
+		return source;
+	}
+
+	/**
+	 * Did the snippet compile.
+	 *
+	 * @return true if compiled without errors
+	 */
+	public boolean isCompiled() {
+		return result.isSuccess();
+	}
+
+	/**
+	 * Get the compile result (diagnostics and classes).
+	 *
+	 * @return compile result
+	 */
+	public InMemoryCompiler.Result getResult() {
+		return result;
+	}
+
+	/**
+	 * Get the compiled classes of the snippet.
+	 *
+	 * @return binary class name to bytecode
+	 */
+	public Map<String, byte[]> getClasses() {
+		return result.getClasses();
+	}
+
+	/**
+	 * Get the variables declared by the snippet.
+	 *
+	 * @return declared variable name to type
+	 */
+	public Map<String, String> getDeclarations() {
+		return Collections.unmodifiableMap(declarations);
+	}
+
+	/**
+	 * Get the member classes declared by the snippet.
+	 *
+	 * @return declared class name to source
+	 */
+	public Map<String, String> getMemberClasses() {
+		return Collections.unmodifiableMap(memberClasses);
+	}
+
+	/**
+	 * Get the simple names the snippet code refers to. A later change to a declaration with one of these names means
+	 * the snippet must be recompiled.
+	 *
+	 * @return referenced names
+	 */
+	public Set<String> getReferences() {
+		return Collections.unmodifiableSet(references);
+	}
+
+	/**
+	 * Write a compiled snippet (without diagnostics), e.g. for the bytecode cache.
+	 *
+	 * @param out
+	 *            stream to write to
+	 * @throws IOException
+	 *             if the stream fails
+	 */
+	public void write(final DataOutputStream out) throws IOException {
+		out.writeInt(id);
+		BytecodeCache.writeStrings(out, lines);
+		BytecodeCache.writeLongUTF(out, source);
+		writeMap(out, declarations);
+		writeMap(out, memberClasses);
+		BytecodeCache.writeStrings(out, references);
+		BytecodeCache.writeClasses(out, getClasses());
+	}
+
+	/**
+	 * Read a snippet written by {@link #write(DataOutputStream)}.
+	 *
+	 * @param in
+	 *            stream to read from
+	 * @return compiled snippet
+	 * @throws IOException
+	 *             if the stream is corrupt
+	 */
+	public static Snippet read(final DataInputStream in) throws IOException {
+		int id = in.readInt();
+		List<String> lines = BytecodeCache.readStrings(in);
+		String source = BytecodeCache.readLongUTF(in);
+		Map<String, String> declarations = readMap(in);
+		Map<String, String> memberClasses = readMap(in);
+		Set<String> references = new HashSet<String>(BytecodeCache.readStrings(in));
+		InMemoryCompiler.Result result = new InMemoryCompiler.Result(true,
+				Collections.<Diagnostic<? extends JavaFileObject>> emptyList(), BytecodeCache.readClasses(in));
+
+		return new Snippet(id, lines, source, result, declarations, memberClasses, references);
+	}
+
+	/**
+	 * Write a string map as alternating keys and values.
+	 *
+	 * @param out
+	 *            stream to write to
+	 * @param map
+	 *            map to write
+	 * @throws IOException
+	 *             if the stream fails
+	 */
+	private static void writeMap(final DataOutputStream out, final Map<String, String> map) throws IOException {
+		out.writeInt(map.size());
+		for (final Map.Entry<String, String> e : map.entrySet()) {
+			BytecodeCache.writeLongUTF(out, e.getKey());
+			BytecodeCache.writeLongUTF(out, e.getValue());
+		}
+	}
+
+	/**
+	 * Read a string map written by writeMap.
+	 *
+	 * @param in
+	 *            stream to read from
+	 * @return the map, in written order
+	 * @throws IOException
+	 *             if the stream is corrupt
+	 */
+	private static Map<String, String> readMap(final DataInputStream in) throws IOException {
+		int count = in.readInt();
+		Map<String, String> map = new LinkedHashMap<String, String>();
+		for (int i = 0; i < count; i++) {
+			map.put(BytecodeCache.readLongUTF(in), BytecodeCache.readLongUTF(in));
+		}
+
+		return map;
+	}
+}
@@ -0,0 +1,654 @@
+package com.github.jacktasia.javarepl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.base.Objects;
+
+/**
+ * SnippetChain compiles the session code to a chain of snippet classes, one per code line, each extending the one
+ * before it. Bytecode of the last committed chain is reused for the lines up to the first one whose code, parent class,
+ * a declaration it refers to or an import of a name it refers to changed, so a new line (or import) only costs
+ * compiling that line. The lines from there on are compiled together in one javac task.
+ */
+public final class SnippetChain {
+
+	private final static Logger logger = Logger.getLogger(SnippetChain.class.getName());
+
+	/** Version of the generated snippet code, part of the cache keys so entries of an older version are never hit. */
+	private static final int CODE_VERSION = 3;
+
+	/** Compiler for the snippet classes. */
+	private final SnippetCompiler compiler;
+
+	/** Cache of compiled snippets from earlier builds and sessions, null for none. */
+	private BytecodeCache cache;
+
+	/** Links of the last committed chain, in code line order. */
+	private List<Link> links = new ArrayList<Link>();
+
+	/** Class path the committed chain was compiled against. */
+	private List<String> classPath = Collections.emptyList();
+
+	/** Id for the next new snippet class. */
+	private int nextId = 1;
+
+	/**
+	 * SnippetChain constructor.
+	 *
+	 * @param compiler
+	 *            snippet compiler
+	 */
+	public SnippetChain(final SnippetCompiler compiler) {
+		this.compiler = compiler;
+	}
+
+	/**
+	 * Use a bytecode cache for lines that aren't in the committed chain (e.g. a line put back after a replace, or a
+	 * replayed .repl file).
+	 *
+	 * @param cache
+	 *            bytecode cache, null for none
+	 */
+	public void setCache(final BytecodeCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Compile code lines on top of the committed chain. Nothing changes until the build is committed.
+	 *
+	 * @param lines
+	 *            code lines, one snippet each
+	 * @param tailLines
+	 *            code lines compiled as one extra snippet that is never reused (run once code), may be empty
+	 * @param imports
+	 *            import lines
+	 * @param paths
+	 *            class path the code is compiled against
+	 * @return the build, check {@link Build#isSuccess()}
+	 * @throws IOException
+	 *             when template file isn't found
+	 */
+	public Build build(final List<String> lines, final List<String> tailLines, final List<String> imports,
+			final List<String> paths) throws IOException {
+		List<Link> reusable = paths.equals(classPath) ? links : Collections.<Link> emptyList();
+		Build build = new Build(BytecodeCache.classPathFingerprint(paths));
+
+		int head = 0;
+		while (head < lines.size() && head < reusable.size() && build.reuse(lines.get(head), imports,
+				reusable.get(head))) {
+			head++;
+		}
+
+		// a line keeps the class name of the line it replaced, a replayed session gets the same names (and cache keys)
+		List<Integer> ids = new ArrayList<Integer>();
+		for (int i = head; i < lines.size(); i++) {
+			ids.add(i < reusable.size() ? reusable.get(i).snippet.getId() : nextId++);
+		}
+
+		build.compileRest(lines.subList(head, lines.size()), ids, tailLines, imports);
+		return build;
+	}
+
+	/**
+	 * Make a successful build the chain later builds reuse.
+	 *
+	 * @param build
+	 *            successful build
+	 * @param paths
+	 *            class path the build was compiled against
+	 */
+	public void commit(final Build build, final List<String> paths) {
+		links = build.links;
+		classPath = new ArrayList<String>(paths);
+	}
+
+	/**
+	 * Forget the committed chain, the next build compiles every line.
+	 */
+	public void clear() {
+		links = new ArrayList<Link>();
+	}
+
+	/**
+	 * Write the committed chain, e.g. for a saved session.
+	 *
+	 * @param out
+	 *            stream to write to
+	 * @throws IOException
+	 *             if the stream fails
+	 */
+	public void write(final DataOutputStream out) throws IOException {
+		out.writeInt(nextId);
+		BytecodeCache.writeStrings(out, classPath);
+		out.writeInt(links.size());
+		for (final Link link : links) {
+			BytecodeCache.writeLongUTF(out, link.line);
+			BytecodeCache.writeStrings(out, link.imports);
+			writeNullable(out, link.parentClass);
+			out.writeInt(link.dependencies.size());
+			for (final Map.Entry<String, String> dep : link.dependencies.entrySet()) {
+				BytecodeCache.writeLongUTF(out, dep.getKey());
+				writeNullable(out, dep.getValue());
+			}
+			link.snippet.write(out);
+		}
+	}
+
+	/**
+	 * Replace the committed chain with one written by {@link #write(DataOutputStream)}, later builds reuse its
+	 * bytecode as if it had been compiled here.
+	 *
+	 * @param in
+	 *            stream to read from
+	 * @throws IOException
+	 *             if the stream is corrupt
+	 */
+	public void read(final DataInputStream in) throws IOException {
+		int id = in.readInt();
+		List<String> paths = BytecodeCache.readStrings(in);
+		int count = in.readInt();
+		List<Link> read = new ArrayList<Link>(count);
+		for (int i = 0; i < count; i++) {
+			String line = BytecodeCache.readLongUTF(in);
+			List<String> imports = BytecodeCache.readStrings(in);
+			String parentClass = readNullable(in);
+			int depCount = in.readInt();
+			Map<String, String> dependencies = new HashMap<String, String>();
+			for (int d = 0; d < depCount; d++) {
+				dependencies.put(BytecodeCache.readLongUTF(in), readNullable(in));
+			}
+			read.add(new Link(line, Snippet.read(in), imports, parentClass, dependencies));
+		}
+
+		nextId = id;
+		classPath = paths;
+		links = read;
+	}
+
+	/**
+	 * Write a string that may be null.
+	 *
+	 * @param out
+	 *            stream to write to
+	 * @param s
+	 *            string or null
+	 * @throws IOException
+	 *             if the stream fails
+	 */
+	private static void writeNullable(final DataOutputStream out, final String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null) {
+			BytecodeCache.writeLongUTF(out, s);
+		}
+	}
+
+	/**
+	 * Read a string written by writeNullable.
+	 *
+	 * @param in
+	 *            stream to read from
+	 * @return string or null
+	 * @throws IOException
+	 *             if the stream is corrupt
+	 */
+	private static String readNullable(final DataInputStream in) throws IOException {
+		return in.readBoolean() ? BytecodeCache.readLongUTF(in) : null;
+	}
+
+	/**
+	 * Get the signature of everything named name in the visible declarations.
+	 *
+	 * @param visible
+	 *            declared name to signature, for variables and classes ("class " prefix)
+	 * @param name
+	 *            simple name
+	 * @return signature, null if nothing by that name is declared
+	 */
+	private static String signature(final Map<String, String> visible, final String name) {
+		String var = visible.get(name);
+		String cls = visible.get("class " + name);
+		if (var == null && cls == null) {
+			return null;
+		}
+
+		return var + "|" + cls;
+	}
+
+	/**
+	 * Does a change of imports affect a compiled snippet. It does if an import added or removed imports a name the
+	 * snippet refers to, or an on demand import it may have resolved a name with was removed. An added on demand
+	 * import affects it too if it refers to a name that isn't pinned by a session declaration or a single type import:
+	 * a name it got from another on demand import (java.lang included) may be ambiguous now (JLS 6.4.1, 7.5.2).
+	 *
+	 * @param before
+	 *            import lines the snippet was compiled with
+	 * @param after
+	 *            current import lines
+	 * @param references
+	 *            simple names the snippet refers to
+	 * @param visible
+	 *            declarations visible to the snippet, as kept by the build
+	 * @return true if the snippet must be recompiled
+	 */
+	static boolean importsAffect(final List<String> before, final List<String> after, final Set<String> references,
+			final Map<String, String> visible) {
+		if (before.equals(after)) {
+			return false;
+		}
+
+		for (final String line : before) {
+			String name = importedName(line);
+			if (!after.contains(line) && (name.equals("*") || references.contains(name))) {
+				return true;
+			}
+		}
+
+		boolean addedOnDemand = false;
+		Set<String> pinned = new HashSet<String>();
+		for (final String line : after) {
+			String name = importedName(line);
+			if (name.equals("*")) {
+				addedOnDemand |= !before.contains(line);
+			} else if (!before.contains(line) && references.contains(name)) {
+				return true;
+			} else {
+				pinned.add(name);
+			}
+		}
+		if (!addedOnDemand) {
+			return false;
+		}
+
+		for (final String name : references) {
+			if (!pinned.contains(name) && signature(visible, name) == null) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Get the simple name an import line imports.
+	 *
+	 * @param line
+	 *            import line, e.g. "import static java.lang.Math.max;"
+	 * @return e.g. "max", "*" for an on demand import
+	 */
+	private static String importedName(final String line) {
+		String imported = line.replace(";", "").trim();
+		return imported.substring(imported.lastIndexOf('.') + 1).trim();
+	}
+
+	/** One compiled code line and what it was compiled against. */
+	private static final class Link {
+
+		/** The code line. */
+		private final String line;
+
+		/** Compiled snippet. */
+		private final Snippet snippet;
+
+		/** Imports it was compiled with. */
+		private final List<String> imports;
+
+		/** Parent class name, null for the first snippet. */
+		private final String parentClass;
+
+		/** Signatures of the referenced names at compile time. */
+		private final Map<String, String> dependencies;
+
+		/**
+		 * Link constructor.
+		 *
+		 * @param line
+		 *            code line
+		 * @param snippet
+		 *            compiled snippet
+		 * @param imports
+		 *            imports it was compiled with
+		 * @param parentClass
+		 *            parent class name
+		 * @param dependencies
+		 *            signatures of the referenced names at compile time
+		 */
+		Link(final String line, final Snippet snippet, final List<String> imports, final String parentClass,
+				final Map<String, String> dependencies) {
+			this.line = line;
+			this.snippet = snippet;
+			this.imports = new ArrayList<String>(imports);
+			this.parentClass = parentClass;
+			this.dependencies = dependencies;
+		}
+
+		/**
+		 * Get the signatures of the names a snippet refers to.
+		 *
+		 * @param snippet
+		 *            compiled snippet
+		 * @param visible
+		 *            declarations visible to the snippet
+		 * @return referenced name to signature
+		 */
+		static Map<String, String> dependencies(final Snippet snippet, final Map<String, String> visible) {
+			Map<String, String> dependencies = new HashMap<String, String>();
+			for (final String name : snippet.getReferences()) {
+				dependencies.put(name, signature(visible, name));
+			}
+
+			return dependencies;
+		}
+
+		/**
+		 * Can the compiled snippet be used as is in a new chain.
+		 *
+		 * @param newLine
+		 *            code line at this position
+		 * @param newImports
+		 *            current imports
+		 * @param newParent
+		 *            parent class name at this position
+		 * @param visible
+		 *            declarations visible at this position
+		 * @return true if the bytecode is still valid
+		 */
+		boolean isReusable(final String newLine, final List<String> newImports, final String newParent,
+				final Map<String, String> visible) {
+			if (!line.equals(newLine) || !Objects.equal(parentClass, newParent)
+					|| importsAffect(imports, newImports, snippet.getReferences(), visible)) {
+				return false;
+			}
+
+			for (final Map.Entry<String, String> dep : dependencies.entrySet()) {
+				if (!Objects.equal(dep.getValue(), signature(visible, dep.getKey()))) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+	}
+
+	/** Result of compiling code lines to a chain. */
+	public final class Build {
+
+		/** Links of the chain, in code line order. */
+		private final List<Link> links = new ArrayList<Link>();
+
+		/** Bytecode of every class in the build. */
+		private final Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+
+		/** Declarations visible to the next snippet. */
+		private final Map<String, String> visible = new HashMap<String, String>();
+
+		/** Snippet classes to run, in order. */
+		private final List<String> runClasses = new ArrayList<String>();
+
+		/** Snippet that failed to compile, null if none did. */
+		private Snippet failed;
+
+		/** Number of snippets compiled (not reused). */
+		private int compiled;
+
+		/** Fingerprint of the class path, part of the cache keys. */
+		private final String classPathFingerprint;
+
+		/**
+		 * Build constructor.
+		 *
+		 * @param classPathFingerprint
+		 *            fingerprint of the class path compiled against
+		 */
+		private Build(final String classPathFingerprint) {
+			this.classPathFingerprint = classPathFingerprint;
+		}
+
+		/**
+		 * Add a code line of the unchanged head of the code, reusing the committed link if it's still valid.
+		 *
+		 * @param line
+		 *            code line
+		 * @param imports
+		 *            import lines
+		 * @param candidate
+		 *            committed link at this position
+		 * @return false if the link can't be reused
+		 */
+		private boolean reuse(final String line, final List<String> imports, final Link candidate) {
+			if (!candidate.isReusable(line, imports, getLastClass(), visible)) {
+				return false;
+			}
+
+			addLink(candidate);
+			return true;
+		}
+
+		/**
+		 * Add the code lines after the reused head, from the cache while each line is there, the rest compiled in
+		 * one javac task with the run once lines as a last snippet.
+		 *
+		 * @param lines
+		 *            code lines, one snippet each
+		 * @param ids
+		 *            snippet id of each line
+		 * @param tailLines
+		 *            code lines of the run once snippet, may be empty
+		 * @param imports
+		 *            import lines
+		 * @throws IOException
+		 *             when template file isn't found
+		 */
+		private void compileRest(final List<String> lines, final List<Integer> ids, final List<String> tailLines,
+				final List<String> imports) throws IOException {
+			int hits = 0;
+			while (hits < lines.size() && addCached(ids.get(hits), lines.get(hits), imports)) {
+				hits++;
+			}
+
+			List<Integer> unitIds = new ArrayList<Integer>(ids.subList(hits, ids.size()));
+			List<List<String>> units = new ArrayList<List<String>>();
+			for (final String line : lines.subList(hits, lines.size())) {
+				units.add(Collections.singletonList(line));
+			}
+			if (!tailLines.isEmpty()) {
+				unitIds.add(nextId++);
+				units.add(tailLines);
+			}
+			if (units.isEmpty()) {
+				return;
+			}
+
+			List<Snippet> snippets = compiler.compileAll(unitIds, units, imports, getLastClass(), classes);
+			compiled += snippets.size();
+			for (int i = 0; i < snippets.size(); i++) {
+				Snippet snippet = snippets.get(i);
+				if (!snippet.isCompiled()) {
+					failed = snippet;
+					return;
+				}
+
+				if (hits + i < lines.size()) {
+					Link link = new Link(lines.get(hits + i), snippet, imports, getLastClass(), Link.dependencies(
+							snippet, visible));
+					putCached(link);
+					addLink(link);
+				} else {
+					append(snippet);
+				}
+			}
+		}
+
+		/**
+		 * Add a link to the chain, its declarations are visible to the lines after it.
+		 *
+		 * @param link
+		 *            compiled line
+		 */
+		private void addLink(final Link link) {
+			links.add(link);
+			append(link.snippet);
+			for (final Map.Entry<String, String> d : link.snippet.getDeclarations().entrySet()) {
+				visible.put(d.getKey(), d.getValue());
+			}
+			for (final Map.Entry<String, String> c : link.snippet.getMemberClasses().entrySet()) {
+				visible.put("class " + c.getKey(), c.getValue());
+			}
+		}
+
+		/**
+		 * Get the cache key of a line's snippet. The key covers what the generated source and bytecode depend on
+		 * besides the imports: the code, class names, visible declarations and class path. The imports are kept in
+		 * the entry, most of them don't matter to a given line.
+		 *
+		 * @param id
+		 *            snippet id
+		 * @param line
+		 *            code line
+		 * @return cache key
+		 */
+		private String cacheKey(final int id, final String line) {
+			return BytecodeCache.key("snippet", CODE_VERSION, id, getLastClass(), Collections.singletonList(line),
+					new TreeMap<String, String>(visible), classPathFingerprint);
+		}
+
+		/**
+		 * Add a line from the cache, if the imports its entry was compiled with don't differ from the current ones in a
+		 * way that matters to it.
+		 *
+		 * @param id
+		 *            snippet id
+		 * @param line
+		 *            code line
+		 * @param imports
+		 *            import lines
+		 * @return false if it isn't cached
+		 */
+		private boolean addCached(final int id, final String line, final List<String> imports) {
+			if (cache == null) {
+				return false;
+			}
+
+			byte[] value = cache.get(cacheKey(id, line));
+			if (value == null) {
+				return false;
+			}
+
+			Snippet snippet;
+			try {
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+				List<String> cachedImports = BytecodeCache.readStrings(in);
+				snippet = Snippet.read(in);
+				if (importsAffect(cachedImports, imports, snippet.getReferences(), visible)) {
+					return false;
+				}
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "corrupt cache entry", e);
+				return false;
+			}
+
+			addLink(new Link(line, snippet, imports, getLastClass(), Link.dependencies(snippet, visible)));
+			return true;
+		}
+
+		/**
+		 * Cache the snippet of a line compiled at the end of the build.
+		 *
+		 * @param link
+		 *            compiled line, not added yet
+		 * @throws IOException
+		 *             never, writes to memory
+		 */
+		private void putCached(final Link link) throws IOException {
+			if (cache == null) {
+				return;
+			}
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			BytecodeCache.writeStrings(out, link.imports);
+			link.snippet.write(out);
+			out.flush();
+			cache.put(cacheKey(link.snippet.getId(), link.line), bytes.toByteArray());
+		}
+
+		/**
+		 * Add a compiled snippet to the classes and run order.
+		 *
+		 * @param snippet
+		 *            compiled snippet
+		 */
+		private void append(final Snippet snippet) {
+			classes.putAll(snippet.getClasses());
+			runClasses.add(snippet.getClassName());
+		}
+
+		/**
+		 * Get the class name of the last snippet.
+		 *
+		 * @return class name, null if the build is empty
+		 */
+		private String getLastClass() {
+			return runClasses.isEmpty() ? null : runClasses.get(runClasses.size() - 1);
+		}
+
+		/**
+		 * Did every snippet compile.
+		 *
+		 * @return true if no compile errors
+		 */
+		public boolean isSuccess() {
+			return failed == null;
+		}
+
+		/**
+		 * Get the snippet that failed to compile.
+		 *
+		 * @return failed snippet, null if the build succeeded
+		 */
+		public Snippet getFailed() {
+			return failed;
+		}
+
+		/**
+		 * Get the bytecode of every class in the build.
+		 *
+		 * @return binary class name to bytecode
+		 */
+		public Map<String, byte[]> getClasses() {
+			return classes;
+		}
+
+		/**
+		 * Get the snippet classes in the order they must run.
+		 *
+		 * @return snippet class names
+		 */
+		public List<String> getRunClasses() {
+			return runClasses;
+		}
+
+		/**
+		 * Get the number of snippets that had to be compiled.
+		 *
+		 * @return compiled snippet count
+		 */
+		public int getCompiledCount() {
+			return compiled;
+		}
+	}
+}
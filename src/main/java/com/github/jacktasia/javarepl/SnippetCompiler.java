@@ -0,0 +1,621 @@
+package com.github.jacktasia.javarepl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaFileObject;
+
+import com.google.common.base.Joiner;
+import com.sun.source.tree.ClassTree;
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.IdentifierTree;
+import com.sun.source.tree.MethodTree;
+import com.sun.source.tree.NewArrayTree;
+import com.sun.source.tree.StatementTree;
+import com.sun.source.tree.Tree;
+import com.sun.source.tree.VariableTree;
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.SourcePositions;
+import com.sun.source.util.TreePath;
+import com.sun.source.util.TreeScanner;
+import com.sun.source.util.Trees;
+
+/**
+ * SnippetCompiler turns code lines into a snippet class. Top level variable declarations are hoisted to static fields
+ * (assigned where they were declared) and top level local classes to static member classes.
+ */
+public final class SnippetCompiler {
+
+	/** Compiler used for parsing, analyzing and compiling. */
+	private final InMemoryCompiler compiler;
+
+	/**
+	 * SnippetCompiler constructor.
+	 *
+	 * @param compiler
+	 *            in-process compiler
+	 */
+	public SnippetCompiler(final InMemoryCompiler compiler) {
+		this.compiler = compiler;
+	}
+
+	/**
+	 * Build and compile a snippet class.
+	 *
+	 * @param id
+	 *            session unique snippet id
+	 * @param lines
+	 *            code lines of the snippet
+	 * @param imports
+	 *            import lines
+	 * @param parentClass
+	 *            class name of the previous snippet, or null for the first one
+	 * @param sessionClasses
+	 *            bytecode of the earlier session snippets
+	 * @return compiled (or failed) snippet
+	 * @throws IOException
+	 *             when template file isn't found
+	 */
+	public Snippet compile(final int id, final List<String> lines, final List<String> imports,
+			final String parentClass, final Map<String, byte[]> sessionClasses) throws IOException {
+		return compileAll(Collections.singletonList(id), Collections.singletonList(lines), imports, parentClass,
+				sessionClasses).get(0);
+	}
+
+	/**
+	 * Build and compile a run of snippet classes, each extending the one before it. Every snippet is parsed in one
+	 * javac task and compiled in another, however many there are. A snippet declaring a var needs the classes before
+	 * it to infer the type, so the ones before it are compiled first and it is analyzed on its own.
+	 *
+	 * @param ids
+	 *            session unique snippet ids
+	 * @param lines
+	 *            code lines of each snippet
+	 * @param imports
+	 *            import lines
+	 * @param parentClass
+	 *            class name of the snippet before the first one, or null for none
+	 * @param sessionClasses
+	 *            bytecode of the earlier session snippets
+	 * @return the snippets in order, up to and including the first one that failed
+	 * @throws IOException
+	 *             when template file isn't found
+	 */
+	public List<Snippet> compileAll(final List<Integer> ids, final List<List<String>> lines,
+			final List<String> imports, final String parentClass, final Map<String, byte[]> sessionClasses)
+			throws IOException {
+		Map<String, String> wrappers = wrappers(ids, lines, imports, parentClass);
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+		JavacTask parser = compiler.newTask(wrappers, sessionClasses, diagnostics);
+		Iterator<? extends CompilationUnitTree> units = parser.parse().iterator();
+		SourcePositions parsedPositions = Trees.instance(parser).getSourcePositions();
+
+		List<Snippet> snippets = new ArrayList<Snippet>();
+		List<Snippet> pending = new ArrayList<Snippet>();
+		Map<String, byte[]> classes = new HashMap<String, byte[]>(sessionClasses);
+		String parent = parentClass;
+		for (int i = 0; i < ids.size(); i++) {
+			int id = ids.get(i);
+			String className = Snippet.className(id);
+			String wrapper = wrappers.get(className);
+			CompilationUnitTree unit = units.next();
+			List<Diagnostic<? extends JavaFileObject>> parseErrors = diagnosticsOf(diagnostics, className);
+			if (hasErrors(parseErrors)) {
+				if (compilePending(pending, classes, snippets)) {
+					snippets.add(failed(id, lines.get(i), wrapper, parseErrors));
+				}
+				return snippets;
+			}
+
+			SourcePositions positions = parsedPositions;
+			List<? extends StatementTree> statements = runStatements(unit);
+			List<VariableTree> untyped = untypedDeclarations(statements);
+			Map<String, TypeMirror> inferred = Collections.emptyMap();
+			Types types = null;
+			if (!untyped.isEmpty()) {
+				if (!compilePending(pending, classes, snippets)) {
+					return snippets;
+				}
+
+				DiagnosticCollector<JavaFileObject> analyzed = new DiagnosticCollector<JavaFileObject>();
+				JavacTask task = compiler.newTask(className, wrapper, classes, analyzed);
+				unit = task.parse().iterator().next();
+				// taken before analyze() adds the default constructor and fills in the var types
+				statements = runStatements(unit);
+				untyped = untypedDeclarations(statements);
+				task.analyze();
+				if (hasErrors(analyzed.getDiagnostics())) {
+					snippets.add(failed(id, lines.get(i), wrapper, analyzed.getDiagnostics()));
+					return snippets;
+				}
+				inferred = inferTypes(task, unit, untyped);
+				positions = Trees.instance(task).getSourcePositions();
+				types = task.getTypes();
+			}
+
+			pending.add(generate(id, lines.get(i), imports, parent, wrapper, unit, statements, positions, untyped,
+					types, inferred));
+			parent = className;
+		}
+
+		compilePending(pending, classes, snippets);
+		return snippets;
+	}
+
+	/**
+	 * Generate the sources of a run of snippets without compiling them: the parse and render half of compileAll, in
+	 * one javac parse task. The lines must parse and declare no var, inferring its type takes a compile.
+	 *
+	 * @param ids
+	 *            session unique snippet ids
+	 * @param lines
+	 *            code lines of each snippet
+	 * @param imports
+	 *            import lines
+	 * @param parentClass
+	 *            class name of the snippet before the first one, or null for none
+	 * @return the snippets with their sources, not compiled
+	 * @throws IOException
+	 *             when template file isn't found
+	 */
+	List<Snippet> generateAll(final List<Integer> ids, final List<List<String>> lines, final List<String> imports,
+			final String parentClass) throws IOException {
+		Map<String, String> wrappers = wrappers(ids, lines, imports, parentClass);
+		JavacTask parser = compiler.newTask(wrappers, Collections.<String, byte[]> emptyMap(),
+				new DiagnosticCollector<JavaFileObject>());
+		Iterator<? extends CompilationUnitTree> units = parser.parse().iterator();
+		SourcePositions positions = Trees.instance(parser).getSourcePositions();
+
+		List<Snippet> snippets = new ArrayList<Snippet>();
+		String parent = parentClass;
+		for (int i = 0; i < ids.size(); i++) {
+			String className = Snippet.className(ids.get(i));
+			CompilationUnitTree unit = units.next();
+			snippets.add(generate(ids.get(i), lines.get(i), imports, parent, wrappers.get(className), unit,
+					runStatements(unit), positions, Collections.<VariableTree> emptyList(), null, Collections
+							.<String, TypeMirror> emptyMap()));
+			parent = className;
+		}
+
+		return snippets;
+	}
+
+	/**
+	 * Make the parse wrappers of a run of snippets, each extending the one before it.
+	 *
+	 * @param ids
+	 *            session unique snippet ids
+	 * @param lines
+	 *            code lines of each snippet
+	 * @param imports
+	 *            import lines
+	 * @param parentClass
+	 *            class name of the snippet before the first one, or null for none
+	 * @return snippet class name to wrapper source, in order
+	 */
+	private static Map<String, String> wrappers(final List<Integer> ids, final List<List<String>> lines,
+			final List<String> imports, final String parentClass) {
+		Map<String, String> wrappers = new LinkedHashMap<String, String>();
+		String parent = parentClass;
+		for (int i = 0; i < ids.size(); i++) {
+			String className = Snippet.className(ids.get(i));
+			wrappers.put(className, wrapper(className, parent, imports, lines.get(i)));
+			parent = className;
+		}
+
+		return wrappers;
+	}
+
+	/**
+	 * Make the parse wrapper of a snippet: its code as the body of the run method.
+	 *
+	 * @param className
+	 *            snippet class name
+	 * @param parentClass
+	 *            class name of the previous snippet, or null for the first one
+	 * @param imports
+	 *            import lines
+	 * @param lines
+	 *            code lines of the snippet
+	 * @return wrapper source
+	 */
+	private static String wrapper(final String className, final String parentClass, final List<String> imports,
+			final List<String> lines) {
+		String header = Joiner.on("\n").join(imports) + "\nclass " + className
+				+ (parentClass == null ? "" : " extends " + parentClass) + " { public static void run() {\n";
+		return header + Joiner.on("\n").join(lines) + "\n} }\n";
+	}
+
+	/**
+	 * Generate the source of a parsed snippet, hoisting its declarations.
+	 *
+	 * @param id
+	 *            snippet id
+	 * @param lines
+	 *            code lines of the snippet
+	 * @param imports
+	 *            import lines
+	 * @param parentClass
+	 *            class name of the previous snippet, or null for the first one
+	 * @param wrapper
+	 *            parsed wrapper source
+	 * @param unit
+	 *            parsed wrapper
+	 * @param statements
+	 *            statements of the run method, as parsed
+	 * @param positions
+	 *            tree positions of the unit
+	 * @param untyped
+	 *            declarations of the unit without a type (var)
+	 * @param types
+	 *            javac type utilities, null if nothing was inferred
+	 * @param inferred
+	 *            inferred types of the var declarations
+	 * @return snippet with its source, not compiled yet
+	 * @throws IOException
+	 *             when template file isn't found
+	 */
+	private static Snippet generate(final int id, final List<String> lines, final List<String> imports,
+			final String parentClass, final String wrapper, final CompilationUnitTree unit,
+			final List<? extends StatementTree> statements, final SourcePositions positions,
+			final List<VariableTree> untyped, final Types types, final Map<String, TypeMirror> inferred)
+			throws IOException {
+		Map<String, String> declarations = new LinkedHashMap<String, String>();
+		Map<String, String> classDeclarations = new LinkedHashMap<String, String>();
+		List<String> fields = new LinkedList<String>();
+		List<String> memberClasses = new LinkedList<String>();
+		List<String> codeLines = new LinkedList<String>();
+
+		for (final StatementTree st : statements) {
+			if (st.getKind() == Tree.Kind.VARIABLE) {
+				VariableTree vt = (VariableTree) st;
+				String name = vt.getName().toString();
+				// analyze() fills in the type of var declarations, it can't be used as written
+				String type = untyped.contains(vt) ? denotableType(inferred.get(name), types) : vt.getType()
+						.toString();
+				declarations.put(name, type);
+				fields.add(type + " " + name);
+
+				if (vt.getInitializer() != null) {
+					String init = sourceOf(wrapper, unit, positions, vt.getInitializer());
+					if (vt.getInitializer().getKind() == Tree.Kind.NEW_ARRAY
+							&& ((NewArrayTree) vt.getInitializer()).getType() == null) {
+						init = "new " + type + " " + init;
+					}
+					codeLines.add(name + " = " + init + ";");
+				}
+			} else if (st instanceof ClassTree) {
+				String classSource = sourceOf(wrapper, unit, positions, st);
+				classDeclarations.put(((ClassTree) st).getSimpleName().toString(), classSource);
+				memberClasses.add("static " + classSource);
+			} else {
+				codeLines.add(sourceOf(wrapper, unit, positions, st));
+			}
+		}
+
+		String className = Snippet.className(id);
+		Map<String, Object> context = new HashMap<String, Object>();
+		context.put("importLines", imports);
+		context.put("className", className);
+		context.put("runMethod", Snippet.runMethod(className));
+		context.put("parentClass", parentClass);
+		context.put("fields", fields);
+		context.put("memberClasses", memberClasses);
+		context.put("codeLines", codeLines);
+		String source = CodeFile.renderTemplate("snippet.vm", context);
+
+		return new Snippet(id, lines, source, null, declarations, classDeclarations, referencedNames(statements));
+	}
+
+	/**
+	 * Compile the generated snippets in one javac task. Each compiled snippet is added to the snippets, or the first
+	 * one with errors if the compile failed.
+	 *
+	 * @param pending
+	 *            generated snippets, cleared
+	 * @param classes
+	 *            classes the snippets may use, the compiled classes are added
+	 * @param snippets
+	 *            compiled snippets
+	 * @return false if the compile failed
+	 */
+	private boolean compilePending(final List<Snippet> pending, final Map<String, byte[]> classes,
+			final List<Snippet> snippets) {
+		if (pending.isEmpty()) {
+			return true;
+		}
+
+		Map<String, String> sources = new LinkedHashMap<String, String>();
+		for (final Snippet snippet : pending) {
+			sources.put(snippet.getClassName(), snippet.getSource());
+		}
+		InMemoryCompiler.Result result = compiler.compile(sources, classes);
+
+		for (final Snippet snippet : pending) {
+			List<Diagnostic<? extends JavaFileObject>> own = diagnosticsOf(result.getDiagnostics(),
+					snippet.getClassName());
+			if (!result.isSuccess() && (hasErrors(own) || snippet == pending.get(pending.size() - 1))) {
+				// an error javac didn't tie to a source goes to the last snippet
+				List<Diagnostic<? extends JavaFileObject>> errors = hasErrors(own) ? own : result.getDiagnostics();
+				snippets.add(snippet.withResult(new InMemoryCompiler.Result(false, errors, Collections
+						.<String, byte[]> emptyMap())));
+				pending.clear();
+				return false;
+			}
+
+			if (result.isSuccess()) {
+				Map<String, byte[]> ownClasses = classesOf(result.getClasses(), snippet.getClassName());
+				snippets.add(snippet.withResult(new InMemoryCompiler.Result(true, own, ownClasses)));
+			}
+		}
+
+		classes.putAll(result.getClasses());
+		pending.clear();
+		return true;
+	}
+
+	/**
+	 * Snippet for code that failed before it could be compiled.
+	 *
+	 * @param id
+	 *            snippet id
+	 * @param lines
+	 *            code lines
+	 * @param wrapper
+	 *            source that was parsed/analyzed
+	 * @param diagnostics
+	 *            the errors
+	 * @return failed snippet
+	 */
+	private static Snippet failed(final int id, final List<String> lines, final String wrapper,
+			final List<Diagnostic<? extends JavaFileObject>> diagnostics) {
+		InMemoryCompiler.Result result = new InMemoryCompiler.Result(false, diagnostics,
+				Collections.<String, byte[]> emptyMap());
+		return new Snippet(id, lines, wrapper, result, Collections.<String, String> emptyMap(),
+				Collections.<String, String> emptyMap(), Collections.<String> emptySet());
+	}
+
+	/**
+	 * Get the diagnostics about one snippet's source.
+	 *
+	 * @param diagnostics
+	 *            compiler diagnostics
+	 * @param className
+	 *            snippet class name
+	 * @return its diagnostics
+	 */
+	private static List<Diagnostic<? extends JavaFileObject>> diagnosticsOf(
+			final DiagnosticCollector<JavaFileObject> diagnostics, final String className) {
+		return diagnosticsOf(diagnostics.getDiagnostics(), className);
+	}
+
+	/**
+	 * Get the diagnostics about one snippet's source.
+	 *
+	 * @param diagnostics
+	 *            compiler diagnostics
+	 * @param className
+	 *            snippet class name
+	 * @return its diagnostics
+	 */
+	private static List<Diagnostic<? extends JavaFileObject>> diagnosticsOf(
+			final List<Diagnostic<? extends JavaFileObject>> diagnostics, final String className) {
+		List<Diagnostic<? extends JavaFileObject>> own = new ArrayList<Diagnostic<? extends JavaFileObject>>();
+		for (final Diagnostic<? extends JavaFileObject> d : diagnostics) {
+			if (className.equals(InMemoryCompiler.sourceClass(d))) {
+				own.add(d);
+			}
+		}
+
+		return own;
+	}
+
+	/**
+	 * Get the classes of one snippet: its class and the classes nested in it.
+	 *
+	 * @param classes
+	 *            compiled classes
+	 * @param className
+	 *            snippet class name
+	 * @return binary class name to bytecode
+	 */
+	private static Map<String, byte[]> classesOf(final Map<String, byte[]> classes, final String className) {
+		Map<String, byte[]> own = new LinkedHashMap<String, byte[]>();
+		for (final Map.Entry<String, byte[]> c : classes.entrySet()) {
+			if (c.getKey().equals(className) || c.getKey().startsWith(className + "$")) {
+				own.put(c.getKey(), c.getValue());
+			}
+		}
+
+		return own;
+	}
+
+	/**
+	 * Check diagnostics for errors.
+	 *
+	 * @param diagnostics
+	 *            compiler diagnostics
+	 * @return true if any is an error
+	 */
+	private static boolean hasErrors(final List<Diagnostic<? extends JavaFileObject>> diagnostics) {
+		for (final Diagnostic<? extends JavaFileObject> d : diagnostics) {
+			if (d.getKind() == Diagnostic.Kind.ERROR) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Get the top level statements of the wrapper's run method.
+	 *
+	 * @param unit
+	 *            parsed wrapper
+	 * @return statements of the snippet
+	 */
+	private static List<? extends StatementTree> runStatements(final CompilationUnitTree unit) {
+		ClassTree wrapperClass = (ClassTree) unit.getTypeDecls().get(0);
+		for (final Tree member : wrapperClass.getMembers()) {
+			if (member.getKind() == Tree.Kind.METHOD) {
+				return ((MethodTree) member).getBody().getStatements();
+			}
+		}
+
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Get every simple name used in the statements.
+	 *
+	 * @param statements
+	 *            snippet statements
+	 * @return referenced names
+	 */
+	private static Set<String> referencedNames(final List<? extends StatementTree> statements) {
+		final Set<String> names = new HashSet<String>();
+		TreeScanner<Void, Void> scanner = new TreeScanner<Void, Void>() {
+			@Override
+			public Void visitIdentifier(final IdentifierTree node, final Void p) {
+				names.add(node.getName().toString());
+				return null;
+			}
+		};
+
+		for (final StatementTree st : statements) {
+			scanner.scan(st, null);
+		}
+
+		return names;
+	}
+
+	/**
+	 * Get the declarations that leave out their type (var). Must be called before the task is analyzed.
+	 *
+	 * @param statements
+	 *            snippet statements
+	 * @return declarations whose types must be inferred by javac
+	 */
+	private static List<VariableTree> untypedDeclarations(final List<? extends StatementTree> statements) {
+		List<VariableTree> untyped = new LinkedList<VariableTree>();
+		for (final StatementTree st : statements) {
+			if (st.getKind() == Tree.Kind.VARIABLE && ((VariableTree) st).getType() == null) {
+				untyped.add((VariableTree) st);
+			}
+		}
+
+		return untyped;
+	}
+
+	/**
+	 * Get the javac inferred types of declarations without an explicit type.
+	 *
+	 * @param task
+	 *            analyzed javac task
+	 * @param unit
+	 *            analyzed wrapper
+	 * @param untyped
+	 *            declarations without a type
+	 * @return variable name to type
+	 */
+	private static Map<String, TypeMirror> inferTypes(final JavacTask task, final CompilationUnitTree unit,
+			final List<VariableTree> untyped) {
+		Trees trees = Trees.instance(task);
+		Map<String, TypeMirror> inferred = new LinkedHashMap<String, TypeMirror>();
+
+		for (final VariableTree vt : untyped) {
+			Element e = trees.getElement(TreePath.getPath(unit, vt));
+			if (e != null) {
+				inferred.put(vt.getName().toString(), e.asType());
+			}
+		}
+
+		return inferred;
+	}
+
+	/**
+	 * Turn an inferred type into one that can be written in a field declaration (no captures, anonymous classes or
+	 * intersections).
+	 *
+	 * @param type
+	 *            inferred type (may be null)
+	 * @param types
+	 *            javac type utilities
+	 * @return type as java source
+	 */
+	private static String denotableType(final TypeMirror type, final Types types) {
+		if (type == null) {
+			return "Object";
+		}
+
+		Element element = types.asElement(type);
+		if (element instanceof TypeElement && ((TypeElement) element).getNestingKind() == NestingKind.ANONYMOUS) {
+			String result = "Object";
+			for (final TypeMirror supertype : types.directSupertypes(type)) {
+				String name = denotableType(supertype, types);
+				if (!name.equals("java.lang.Object")) {
+					result = name;
+				}
+			}
+			return result;
+		}
+
+		if (isDenotable(type.toString())) {
+			return type.toString();
+		}
+
+		TypeMirror erased = types.erasure(type);
+		if (isDenotable(erased.toString())) {
+			return erased.toString();
+		}
+
+		return "Object";
+	}
+
+	/**
+	 * Can this type name be written in source.
+	 *
+	 * @param typeName
+	 *            type as printed by javac
+	 * @return true if usable in a declaration
+	 */
+	private static boolean isDenotable(final String typeName) {
+		return !typeName.contains("capture#") && !typeName.contains("<anonymous") && !typeName.contains("&")
+				&& !typeName.contains("<nulltype>");
+	}
+
+	/**
+	 * Get the original source text of a tree.
+	 *
+	 * @param source
+	 *            parsed source
+	 * @param unit
+	 *            parsed compilation unit
+	 * @param positions
+	 *            tree positions
+	 * @param tree
+	 *            tree to get the text of
+	 * @return source text
+	 */
+	private static String sourceOf(final String source, final CompilationUnitTree unit,
+			final SourcePositions positions, final Tree tree) {
+		return source.substring((int) positions.getStartPosition(unit, tree),
+				(int) positions.getEndPosition(unit, tree));
+	}
+}
@@ -0,0 +1,469 @@
+package com.github.jacktasia.javarepl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+/**
+ * SourceTemplate is a code template (the .vm files) parsed once into text, variable, #foreach and #if parts, then
+ * rendered by walking them straight into a reusable buffer, so generating source costs little more than copying the
+ * code lines. It reads the subset of Velocity the templates use: $var, ${var}, $foreach.count, #foreach( $x in $list ),
+ * #if( $x ), #if( !$x ) and #end. A line holding only a directive is left out of the output.
+ */
+public final class SourceTemplate {
+
+	/** Parsed templates by resource name. */
+	private static final Map<String, SourceTemplate> TEMPLATES = new HashMap<String, SourceTemplate>();
+
+	/** Render buffer of each thread, reused. */
+	private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(4096);
+		}
+	};
+
+	/** Largest buffer kept for the next render, a bigger one (a huge session) is dropped. */
+	private static final int MAX_KEPT_BUFFER = 1024 * 1024;
+
+	/** A line holding only a directive: the directive (group 1). */
+	private static final Pattern DIRECTIVE_LINE = Pattern.compile("[ \\t]*(#(?:foreach|if)\\s*\\([^\\n]*\\)|#end)"
+			+ "[ \\t]*(?:\\r?\\n|$)");
+
+	/** Directive: foreach variable and list (groups 1, 2), if negation and variable (3, 4), or end. */
+	private static final Pattern DIRECTIVE = Pattern.compile("#(?:foreach\\s*\\(\\s*\\$(\\w+)\\s+in\\s+\\$(\\w+)\\s*\\)"
+			+ "|if\\s*\\(\\s*(!?)\\s*\\$(\\w+)\\s*\\)|end)");
+
+	/** Variable: name and property braced (groups 1, 2), the foreach count (3, 4), or a name (5). */
+	private static final Pattern VARIABLE = Pattern.compile("\\$(?:\\{(\\w+)(?:\\.(\\w+))?\\}"
+			+ "|(foreach)\\.(count)\\b|(\\w+))");
+
+	/** Loop variable of the count of the innermost #foreach. */
+	private static final String FOREACH = "foreach";
+
+	/** A part of a template. */
+	private abstract static class Part {
+
+		/**
+		 * Render the part.
+		 *
+		 * @param out
+		 *            output
+		 * @param context
+		 *            variables
+		 * @param loop
+		 *            innermost #foreach being rendered, null for none
+		 */
+		abstract void render(StringBuilder out, Map<String, ?> context, Loop loop);
+	}
+
+	/** Literal text. */
+	private static final class Text extends Part {
+
+		/** The text. */
+		private final String text;
+
+		/**
+		 * Text constructor.
+		 *
+		 * @param text
+		 *            the text
+		 */
+		Text(final String text) {
+			this.text = text;
+		}
+
+		@Override
+		void render(final StringBuilder out, final Map<String, ?> context, final Loop loop) {
+			out.append(text);
+		}
+	}
+
+	/** A variable, rendered as its value, or as written if it isn't set (as Velocity does). */
+	private static final class Variable extends Part {
+
+		/** Variable name. */
+		private final String name;
+
+		/** Property, only count of foreach is known, null for none. */
+		private final String property;
+
+		/** The variable as written in the template. */
+		private final String source;
+
+		/**
+		 * Variable constructor.
+		 *
+		 * @param name
+		 *            variable name
+		 * @param property
+		 *            property, null for none
+		 * @param source
+		 *            the variable as written
+		 */
+		Variable(final String name, final String property, final String source) {
+			this.name = name;
+			this.property = property;
+			this.source = source;
+		}
+
+		@Override
+		void render(final StringBuilder out, final Map<String, ?> context, final Loop loop) {
+			if (property != null) {
+				if (name.equals(FOREACH) && property.equals("count") && loop != null) {
+					out.append(loop.count);
+				} else {
+					out.append(source);
+				}
+				return;
+			}
+
+			Object value = lookup(name, context, loop);
+			if (value == null) {
+				out.append(source);
+			} else {
+				out.append(value);
+			}
+		}
+	}
+
+	/** A #foreach block. */
+	private static final class Foreach extends Part {
+
+		/** Loop variable. */
+		private final String var;
+
+		/** Variable holding the list. */
+		private final String list;
+
+		/** Parts of the body. */
+		private final List<Part> body = new ArrayList<Part>();
+
+		/**
+		 * Foreach constructor.
+		 *
+		 * @param var
+		 *            loop variable
+		 * @param list
+		 *            variable holding the list
+		 */
+		Foreach(final String var, final String list) {
+			this.var = var;
+			this.list = list;
+		}
+
+		@Override
+		void render(final StringBuilder out, final Map<String, ?> context, final Loop loop) {
+			Object items = lookup(list, context, loop);
+			if (!(items instanceof Iterable)) {
+				return;
+			}
+
+			Loop inner = new Loop(var, loop);
+			for (final Object item : (Iterable<?>) items) {
+				inner.value = item;
+				inner.count++;
+				renderAll(body, out, context, inner);
+			}
+		}
+	}
+
+	/** An #if block, its body is rendered if the variable is set (and not false), or isn't when negated. */
+	private static final class If extends Part {
+
+		/** Variable tested. */
+		private final String var;
+
+		/** Render if the variable isn't set. */
+		private final boolean negate;
+
+		/** Parts of the body. */
+		private final List<Part> body = new ArrayList<Part>();
+
+		/**
+		 * If constructor.
+		 *
+		 * @param var
+		 *            variable tested
+		 * @param negate
+		 *            true to render if it isn't set
+		 */
+		If(final String var, final boolean negate) {
+			this.var = var;
+			this.negate = negate;
+		}
+
+		@Override
+		void render(final StringBuilder out, final Map<String, ?> context, final Loop loop) {
+			Object value = lookup(var, context, loop);
+			boolean set = value != null && !Boolean.FALSE.equals(value);
+			if (set != negate) {
+				renderAll(body, out, context, loop);
+			}
+		}
+	}
+
+	/** State of a #foreach being rendered. */
+	private static final class Loop {
+
+		/** Loop variable. */
+		private final String var;
+
+		/** Enclosing loop, null for none. */
+		private final Loop outer;
+
+		/** Current item. */
+		private Object value;
+
+		/** 1-based index of the current item. */
+		private int count = 0;
+
+		/**
+		 * Loop constructor.
+		 *
+		 * @param var
+		 *            loop variable
+		 * @param outer
+		 *            enclosing loop, null for none
+		 */
+		Loop(final String var, final Loop outer) {
+			this.var = var;
+			this.outer = outer;
+		}
+	}
+
+	/** Resource name, for errors. */
+	private final String name;
+
+	/** Top level parts. */
+	private final List<Part> parts;
+
+	/**
+	 * SourceTemplate constructor.
+	 *
+	 * @param name
+	 *            resource name
+	 * @param parts
+	 *            top level parts
+	 */
+	private SourceTemplate(final String name, final List<Part> parts) {
+		this.name = name;
+		this.parts = parts;
+	}
+
+	/**
+	 * Get a template from the class path, parsed on first use.
+	 *
+	 * @param name
+	 *            resource name, e.g. repl.vm
+	 * @return the template
+	 * @throws IOException
+	 *             if the template doesn't exist or can't be parsed
+	 */
+	public static SourceTemplate get(final String name) throws IOException {
+		synchronized (TEMPLATES) {
+			SourceTemplate template = TEMPLATES.get(name);
+			if (template == null) {
+				InputStream in = SourceTemplate.class.getClassLoader().getResourceAsStream(name);
+				if (in == null) {
+					throw new IOException("Template file doesn't exist: " + name);
+				}
+
+				try {
+					template = parse(name, new String(ByteStreams.toByteArray(in), Charsets.UTF_8));
+				} finally {
+					in.close();
+				}
+				TEMPLATES.put(name, template);
+			}
+
+			return template;
+		}
+	}
+
+	/**
+	 * Parse a template.
+	 *
+	 * @param name
+	 *            template name, for errors
+	 * @param source
+	 *            template text
+	 * @return the template
+	 * @throws IOException
+	 *             if a directive isn't known or a block isn't closed
+	 */
+	static SourceTemplate parse(final String name, final String source) throws IOException {
+		List<Part> top = new ArrayList<Part>();
+		List<List<Part>> open = new ArrayList<List<Part>>();
+		open.add(top);
+		StringBuilder text = new StringBuilder();
+		Matcher directiveLine = DIRECTIVE_LINE.matcher(source);
+		Matcher directive = DIRECTIVE.matcher(source);
+		Matcher variable = VARIABLE.matcher(source);
+		boolean lineStart = true;
+		int i = 0;
+		while (i < source.length()) {
+			char c = source.charAt(i);
+			if (lineStart && directiveLine.region(i, source.length()).lookingAt()) {
+				flush(text, open);
+				open(directiveLine.group(1), open, name);
+				i = directiveLine.end();
+				continue;
+			}
+
+			if (c == '#' && directive.region(i, source.length()).lookingAt()) {
+				flush(text, open);
+				open(directive.group(), open, name);
+				i = directive.end();
+				lineStart = false;
+				continue;
+			}
+
+			if (c == '$' && variable.region(i, source.length()).lookingAt()) {
+				flush(text, open);
+				if (variable.group(5) != null) {
+					open.get(open.size() - 1).add(new Variable(variable.group(5), null, variable.group()));
+				} else {
+					String var = variable.group(1) != null ? variable.group(1) : variable.group(3);
+					String property = variable.group(1) != null ? variable.group(2) : variable.group(4);
+					open.get(open.size() - 1).add(new Variable(var, property, variable.group()));
+				}
+				i = variable.end();
+				lineStart = false;
+				continue;
+			}
+
+			text.append(c);
+			lineStart = c == '\n';
+			i++;
+		}
+
+		flush(text, open);
+		if (open.size() > 1) {
+			throw new IOException(name + ": #foreach or #if without #end");
+		}
+
+		return new SourceTemplate(name, top);
+	}
+
+	/**
+	 * Open or close a block for a directive.
+	 *
+	 * @param directive
+	 *            the directive
+	 * @param open
+	 *            part lists of the open blocks, innermost last
+	 * @param name
+	 *            template name, for errors
+	 * @throws IOException
+	 *             if the directive isn't known or #end closes nothing
+	 */
+	private static void open(final String directive, final List<List<Part>> open, final String name)
+			throws IOException {
+		Matcher m = DIRECTIVE.matcher(directive);
+		if (!m.matches()) {
+			throw new IOException(name + ": unknown directive " + directive);
+		}
+		List<Part> current = open.get(open.size() - 1);
+		if (m.group(1) != null) {
+			Foreach foreach = new Foreach(m.group(1), m.group(2));
+			current.add(foreach);
+			open.add(foreach.body);
+		} else if (m.group(4) != null) {
+			If block = new If(m.group(4), m.group(3).length() > 0);
+			current.add(block);
+			open.add(block.body);
+		} else if (open.size() > 1) {
+			open.remove(open.size() - 1);
+		} else {
+			throw new IOException(name + ": #end without #foreach or #if");
+		}
+	}
+
+	/**
+	 * Add the pending text as a part.
+	 *
+	 * @param text
+	 *            pending text, cleared
+	 * @param open
+	 *            part lists of the open blocks, innermost last
+	 */
+	private static void flush(final StringBuilder text, final List<List<Part>> open) {
+		if (text.length() > 0) {
+			open.get(open.size() - 1).add(new Text(text.toString()));
+			text.setLength(0);
+		}
+	}
+
+	/**
+	 * Render the template.
+	 *
+	 * @param context
+	 *            variables
+	 * @return the source
+	 */
+	public String render(final Map<String, ?> context) {
+		StringBuilder out = BUFFER.get();
+		out.setLength(0);
+		renderAll(parts, out, context, null);
+		String source = out.toString();
+		if (out.capacity() > MAX_KEPT_BUFFER) {
+			BUFFER.remove();
+		}
+
+		return source;
+	}
+
+	/**
+	 * Render parts.
+	 *
+	 * @param parts
+	 *            the parts
+	 * @param out
+	 *            output
+	 * @param context
+	 *            variables
+	 * @param loop
+	 *            innermost #foreach being rendered, null for none
+	 */
+	private static void renderAll(final List<Part> parts, final StringBuilder out, final Map<String, ?> context,
+			final Loop loop) {
+		for (int i = 0; i < parts.size(); i++) {
+			parts.get(i).render(out, context, loop);
+		}
+	}
+
+	/**
+	 * Look a variable up: loop variables, innermost first, then the context.
+	 *
+	 * @param var
+	 *            variable name
+	 * @param context
+	 *            variables
+	 * @param loop
+	 *            innermost #foreach being rendered, null for none
+	 * @return value, null if not set
+	 */
+	private static Object lookup(final String var, final Map<String, ?> context, final Loop loop) {
+		for (Loop l = loop; l != null; l = l.outer) {
+			if (l.var.equals(var)) {
+				return l.value;
+			}
+		}
+
+		return context.get(var);
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
@@ -0,0 +1,101 @@
+package com.github.jacktasia.javarepl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * StreamPump drains a process output stream on its own thread as it is produced, forwarding it to an optional sink
+ * (e.g. the terminal) and keeping its tail. A process filling its pipe can never block waiting on us.
+ */
+public final class StreamPump extends Thread {
+
+	private final static Logger logger = Logger.getLogger(StreamPump.class.getName());
+
+	/** Size of reads from the stream. */
+	private static final int CHUNK_SIZE = 8192;
+
+	/** Stream to drain. */
+	private final InputStream in;
+
+	/** Where output goes as it arrives, null to only keep the tail. */
+	private final OutputStream sink;
+
+	/** Tail of the output. */
+	private final TailBuffer tail;
+
+	/**
+	 * Create and start a pump.
+	 *
+	 * @param name
+	 *            thread name
+	 * @param in
+	 *            stream to drain
+	 * @param sink
+	 *            where output goes as it arrives, null to only keep the tail
+	 * @param tail
+	 *            buffer keeping the tail of the output
+	 * @return the running pump
+	 */
+	public static StreamPump start(final String name, final InputStream in, final OutputStream sink,
+			final TailBuffer tail) {
+		StreamPump pump = new StreamPump(name, in, sink, tail);
+		pump.start();
+		return pump;
+	}
+
+	/**
+	 * StreamPump constructor.
+	 *
+	 * @param name
+	 *            thread name
+	 * @param in
+	 *            stream to drain
+	 * @param sink
+	 *            where output goes as it arrives, null to only keep the tail
+	 * @param tail
+	 *            buffer keeping the tail of the output
+	 */
+	private StreamPump(final String name, final InputStream in, final OutputStream sink, final TailBuffer tail) {
+		super(name);
+		this.in = in;
+		this.sink = sink;
+		this.tail = tail;
+		setDaemon(true);
+	}
+
+	@Override
+	public void run() {
+		byte[] chunk = new byte[CHUNK_SIZE];
+		try {
+			int n;
+			while ((n = in.read(chunk)) != -1) {
+				tail.write(chunk, 0, n);
+				if (sink != null) {
+					sink.write(chunk, 0, n);
+					sink.flush();
+				}
+			}
+		} catch (IOException e) {
+			logger.log(Level.FINE, "stream closed", e);
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) {
+				logger.log(Level.FINE, "stream close error", e);
+			}
+		}
+	}
+
+	/**
+	 * Wait until the stream is drained (the process closed it).
+	 *
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public void await() throws InterruptedException {
+		join();
+	}
+}
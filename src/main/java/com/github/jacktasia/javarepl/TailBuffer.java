@@ -0,0 +1,130 @@
+package com.github.jacktasia.javarepl;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import com.google.common.base.Charsets;
+
+/**
+ * TailBuffer is a ring buffer keeping only the last bytes written to it, so the output of code printing millions of
+ * lines can still be reported without holding all of it in memory.
+ */
+public final class TailBuffer extends OutputStream {
+
+	/** Default capacity, plenty for an error message or stack trace. */
+	public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+	/** The ring. */
+	private final byte[] ring;
+
+	/** Total bytes ever written. */
+	private long written = 0;
+
+	/**
+	 * Create a buffer with the default capacity.
+	 */
+	public TailBuffer() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Create a buffer.
+	 *
+	 * @param capacity
+	 *            number of bytes kept
+	 */
+	public TailBuffer(final int capacity) {
+		ring = new byte[capacity];
+	}
+
+	@Override
+	public synchronized void write(final int b) {
+		ring[(int) (written % ring.length)] = (byte) b;
+		written++;
+	}
+
+	@Override
+	public synchronized void write(final byte[] b, final int off, final int len) {
+		int start = off;
+		int count = len;
+		if (count > ring.length) {
+			// only the end of a huge write is kept anyway
+			written += count - ring.length;
+			start += count - ring.length;
+			count = ring.length;
+		}
+
+		int pos = (int) (written % ring.length);
+		int first = Math.min(count, ring.length - pos);
+		System.arraycopy(b, start, ring, pos, first);
+		System.arraycopy(b, start + first, ring, 0, count - first);
+		written += count;
+	}
+
+	/**
+	 * Get the number of bytes that didn't fit and were dropped.
+	 *
+	 * @return dropped byte count
+	 */
+	public synchronized long getDropped() {
+		return Math.max(0, written - ring.length);
+	}
+
+	/**
+	 * Was nothing written.
+	 *
+	 * @return true if empty
+	 */
+	public synchronized boolean isEmpty() {
+		return written == 0;
+	}
+
+	/**
+	 * Does the output end with a line break.
+	 *
+	 * @return true if the last byte written was a new line
+	 */
+	public synchronized boolean endsWithNewLine() {
+		return written > 0 && ring[(int) ((written - 1) % ring.length)] == '\n';
+	}
+
+	/**
+	 * Get the kept bytes, oldest first.
+	 *
+	 * @return kept bytes
+	 */
+	public synchronized byte[] toByteArray() {
+		if (written <= ring.length) {
+			return Arrays.copyOf(ring, (int) written);
+		}
+
+		int pos = (int) (written % ring.length);
+		byte[] bytes = new byte[ring.length];
+		System.arraycopy(ring, pos, bytes, 0, ring.length - pos);
+		System.arraycopy(ring, 0, bytes, ring.length - pos, pos);
+		return bytes;
+	}
+
+	/**
+	 * Get the kept output as UTF-8 text, noting how much was dropped.
+	 *
+	 * @return output text
+	 */
+	@Override
+	public synchronized String toString() {
+		byte[] bytes = toByteArray();
+		long dropped = getDropped();
+		if (dropped == 0) {
+			return new String(bytes, Charsets.UTF_8);
+		}
+
+		// don't start in the middle of a multi-byte character
+		int start = 0;
+		while (start < bytes.length && (bytes[start] & 0xC0) == 0x80) {
+			start++;
+		}
+
+		return "[" + dropped + " bytes of output dropped]\n"
+				+ new String(bytes, start, bytes.length - start, Charsets.UTF_8);
+	}
+}
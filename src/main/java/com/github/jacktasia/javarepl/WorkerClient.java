@@ -0,0 +1,937 @@
+package com.github.jacktasia.javarepl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.base.Objects;
+import com.google.common.io.ByteStreams;
+
+/**
+ * WorkerClient starts and talks to the long-lived ReplWorker JVM, so running code does not pay for a new java
+ * launch on every evaluation. It also enforces the run limits: a run over its time or output budget is cancelled, and
+ * the worker is killed if the code doesn't stop. Spare workers are booted in the background between runs, so a worker
+ * that died, was killed or is replaced for an isolated run is taken over by one already up.
+ */
+public final class WorkerClient {
+
+	private final static Logger logger = Logger.getLogger(WorkerClient.class.getName());
+
+	/** Spare workers kept booted by default. */
+	public static final int DEFAULT_SPARES = 1;
+
+	/** Most spare workers that can be kept booted. */
+	public static final int MAX_SPARES = 4;
+
+	/** Running worker process, null until first run or after it died. */
+	private Process process;
+
+	/** Requests to the worker (its stdin). */
+	private DataOutputStream toWorker;
+
+	/** Frames from the worker (its stdout). */
+	private DataInputStream fromWorker;
+
+	/** Class paths already loaded by the running worker. */
+	private final List<String> sentClassPaths = new ArrayList<String>();
+
+	/** Number of worker JVMs started, changes whenever session state held by the worker is lost. */
+	private int starts = 0;
+
+	/** Limits of the runs. */
+	private RunLimits limits = new RunLimits();
+
+	/** Heap limit the running worker was started with. */
+	private String startedHeap;
+
+	/** CPU time limit the running worker was sent. */
+	private long sentCpuMillis = 0;
+
+	/** Fires run timeouts and kills of runs that ignore being cancelled. */
+	private final Timer watchdog = new Timer("repl-watchdog", true);
+
+	/** Guards the running run's state, cancel comes from other threads. */
+	private final Object cancelLock = new Object();
+
+	/** Id of the current (or last) run. */
+	private int runId = 0;
+
+	/** Is code running in the worker. */
+	private boolean running = false;
+
+	/** Why the current run was cancelled, null if it wasn't. */
+	private String cancelReason;
+
+	/** Booted idle workers, oldest first. Guards the spare fields. */
+	private final LinkedList<Spare> spares = new LinkedList<Spare>();
+
+	/** Number of spare workers to keep booted. */
+	private int spareCount = DEFAULT_SPARES;
+
+	/** Heap limit spares are started with. */
+	private String spareHeap;
+
+	/** Class paths spares are sent while idle. */
+	private List<String> spareClassPaths = Collections.emptyList();
+
+	/** Is a spare being booted. */
+	private boolean booting = false;
+
+	/** Shut down, no spares are booted any more. */
+	private boolean closed = false;
+
+	/** Boots the spares, one at a time. */
+	private final ExecutorService spareBooter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(final Runnable r) {
+			Thread t = new Thread(r, "repl-worker-spares");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/** Each run gets a worker of its own, nothing a run leaves in the JVM is seen by the next. */
+	private boolean isolated = false;
+
+	/** Longest wait on exit for a worker recording a class data sharing archive to write it. */
+	private static final long RECORDING_WAIT_MILLIS = 5000;
+
+	/** Class data sharing archives of the workers, off until set. */
+	private ClassDataSharing sharing = new ClassDataSharing(null);
+
+	/** Worker JVMs booted (active and spare). */
+	private int boots = 0;
+
+	/** Worker JVMs booted with a class data sharing archive. */
+	private int sharedBoots = 0;
+
+	/**
+	 * Get path of the java launcher of the JVM we are running on. The worker must match the in-process compiler's
+	 * class file version.
+	 *
+	 * @return path to java executable
+	 */
+	public static String javaLauncher() {
+		return System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+	}
+
+	/**
+	 * Boot a worker JVM, with the class data sharing archive of its class path if there is one.
+	 *
+	 * @param heap
+	 *            -Xmx value, null for the JVM default
+	 * @param classPaths
+	 *            class paths to send it
+	 * @return the worker
+	 * @throws IOException
+	 *             if the process can't be started
+	 */
+	private Spare launch(final String heap, final List<String> classPaths) throws IOException {
+		String workerClassPath = System.getProperty("java.class.path");
+		ClassDataSharing.Launch launch = sharing.launch(ReplWorker.class.getName(), workerClassPath, classPaths);
+		List<String> cmd = new ArrayList<String>();
+		cmd.add(javaLauncher());
+		if (heap != null) {
+			cmd.add("-Xmx" + heap);
+		}
+		cmd.addAll(launch.getOptions());
+		cmd.add("-cp");
+		cmd.add(workerClassPath);
+		cmd.add(ReplWorker.class.getName());
+
+		Spare worker = new Spare(new ProcessBuilder(cmd).start(), heap);
+		launch.started(worker.process);
+		synchronized (spares) {
+			boots++;
+			if (launch.isSharing()) {
+				sharedBoots++;
+			}
+		}
+		pipeStderr(worker.process.getErrorStream());
+		for (final String path : classPaths) {
+			worker.toWorker.writeByte(ReplWorker.ADD_CLASSPATH);
+			worker.toWorker.writeUTF(path);
+			worker.sentClassPaths.add(path);
+		}
+		worker.toWorker.flush();
+
+		return worker;
+	}
+
+	/**
+	 * Make a spare the worker, or boot a new one if there is no spare.
+	 *
+	 * @throws IOException
+	 *             if the process can't be started
+	 */
+	private void start() throws IOException {
+		Spare worker = takeSpare(limits.getHeap());
+		if (worker == null) {
+			worker = launch(limits.getHeap(), Collections.<String> emptyList());
+		}
+
+		process = worker.process;
+		toWorker = worker.toWorker;
+		fromWorker = worker.fromWorker;
+		sentClassPaths.clear();
+		sentClassPaths.addAll(worker.sentClassPaths);
+		startedHeap = worker.heap;
+		sentCpuMillis = 0;
+		starts++;
+	}
+
+	/**
+	 * Take the oldest live spare started with a heap limit, dropping spares that can't be used.
+	 *
+	 * @param heap
+	 *            -Xmx value, null for the JVM default
+	 * @return the spare, null if there is none
+	 */
+	private Spare takeSpare(final String heap) {
+		synchronized (spares) {
+			while (!spares.isEmpty()) {
+				Spare spare = spares.removeFirst();
+				if (Objects.equal(spare.heap, heap) && spare.isAlive()) {
+					return spare;
+				}
+				spare.process.destroy();
+			}
+
+			return null;
+		}
+	}
+
+	/**
+	 * Boot spares in the background until there are enough.
+	 */
+	private void bootSpares() {
+		synchronized (spares) {
+			if (closed || booting || spares.size() >= spareCount) {
+				return;
+			}
+			booting = true;
+		}
+
+		spareBooter.execute(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					String heap;
+					List<String> classPaths;
+					synchronized (spares) {
+						if (closed || spares.size() >= spareCount) {
+							booting = false;
+							return;
+						}
+						heap = spareHeap;
+						classPaths = spareClassPaths;
+					}
+
+					try {
+						Spare spare = launch(heap, classPaths);
+						synchronized (spares) {
+							if (closed || !Objects.equal(heap, spareHeap)) {
+								spare.process.destroy();
+							} else {
+								spares.add(spare);
+							}
+						}
+					} catch (IOException e) {
+						logger.log(Level.WARNING, "could not boot a spare worker", e);
+						synchronized (spares) {
+							booting = false;
+						}
+						return;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Set how many spare workers are kept booted, 0 for none (a worker is booted when needed).
+	 *
+	 * @param count
+	 *            0 to MAX_SPARES
+	 * @return false if the count is out of range
+	 */
+	public boolean setSpares(final int count) {
+		if (count < 0 || count > MAX_SPARES) {
+			return false;
+		}
+
+		synchronized (spares) {
+			spareCount = count;
+			while (spares.size() > count) {
+				spares.removeLast().process.destroy();
+			}
+		}
+		if (process != null) {
+			bootSpares();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Give each run (not stateful session runs) a worker of its own, a spare, which is stopped after the run.
+	 *
+	 * @param on
+	 *            true to isolate runs
+	 */
+	public void setIsolated(final boolean on) {
+		isolated = on;
+	}
+
+	/**
+	 * Boot the workers with class data sharing archives.
+	 *
+	 * @param sharing
+	 *            the archives
+	 */
+	public void setClassDataSharing(final ClassDataSharing sharing) {
+		this.sharing = sharing;
+	}
+
+	/**
+	 * Describe the worker JVMs booted, for the stats.
+	 *
+	 * @return e.g. "3 worker JVMs booted, 2 with a class data sharing archive"
+	 */
+	public String describeBoots() {
+		synchronized (spares) {
+			return boots + " worker JVMs booted, "
+					+ (sharing.isEnabled() ? sharedBoots + " with a class data sharing archive"
+							: "class data sharing off");
+		}
+	}
+
+	/**
+	 * Start the worker if it isn't running, or restart it if its heap limit changed.
+	 *
+	 * @throws IOException
+	 *             if the process can't be started
+	 */
+	private void ensureStarted() throws IOException {
+		if (process != null && !Objects.equal(startedHeap, limits.getHeap())) {
+			stop();
+		}
+
+		if (process == null) {
+			start();
+		}
+	}
+
+	/**
+	 * Use new run limits, they apply from the next run. A changed heap limit restarts the worker.
+	 *
+	 * @param limits
+	 *            run limits
+	 */
+	public void setLimits(final RunLimits limits) {
+		this.limits = limits;
+		synchronized (spares) {
+			spareHeap = limits.getHeap();
+		}
+	}
+
+	/**
+	 * Start the worker (and send it the class path) ahead of the next run, so the JVM boots while code is being
+	 * generated and compiled.
+	 *
+	 * @param classPaths
+	 *            session class paths (jars and directories)
+	 */
+	public void prestart(final List<String> classPaths) {
+		synchronized (spares) {
+			spareClassPaths = new ArrayList<String>(classPaths);
+		}
+
+		try {
+			ensureStarted();
+			syncClassPath(classPaths);
+			syncLimits();
+			toWorker.flush();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "could not start worker", e);
+			if (process != null) {
+				workerDied();
+			}
+		}
+	}
+
+	/**
+	 * Is a worker JVM running (it is started on demand).
+	 *
+	 * @return true if running
+	 */
+	public boolean isRunning() {
+		return process != null;
+	}
+
+	/**
+	 * Get the number of worker JVMs started so far. If it changed, stateful session state was lost.
+	 *
+	 * @return worker start count
+	 */
+	public int getStarts() {
+		return starts;
+	}
+
+	/**
+	 * Pass the worker JVM's own stderr (e.g. VM warnings) through to ours.
+	 *
+	 * @param err
+	 *            worker process stderr
+	 */
+	private static void pipeStderr(final InputStream err) {
+		Thread t = new Thread("repl-worker-stderr") {
+			@Override
+			public void run() {
+				try {
+					ByteStreams.copy(err, System.err);
+				} catch (IOException e) {
+					logger.log(Level.FINE, "worker stderr closed", e);
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Send class path entries the worker doesn't have yet. Entries are only ever appended.
+	 *
+	 * @param classPaths
+	 *            session class paths (jars and directories)
+	 * @throws IOException
+	 *             if the worker went away
+	 */
+	private void syncClassPath(final List<String> classPaths) throws IOException {
+		for (final String path : classPaths) {
+			if (!sentClassPaths.contains(path)) {
+				toWorker.writeByte(ReplWorker.ADD_CLASSPATH);
+				toWorker.writeUTF(path);
+				sentClassPaths.add(path);
+			}
+		}
+	}
+
+	/**
+	 * Send the CPU time limit if the worker doesn't have it yet.
+	 *
+	 * @throws IOException
+	 *             if the worker went away
+	 */
+	private void syncLimits() throws IOException {
+		if (limits.getCpuMillis() != sentCpuMillis) {
+			toWorker.writeByte(ReplWorker.LIMITS);
+			toWorker.writeLong(limits.getCpuMillis());
+			sentCpuMillis = limits.getCpuMillis();
+		}
+	}
+
+	/**
+	 * Cancel the running code: the worker interrupts it, and is killed if the code is still running after a grace
+	 * period. Safe to call from any thread (e.g. a signal handler).
+	 *
+	 * @param reason
+	 *            why, shown to the user
+	 * @return false if no code was running or it was already cancelled
+	 */
+	public boolean cancel(final String reason) {
+		synchronized (cancelLock) {
+			if (!running || cancelReason != null) {
+				return false;
+			}
+			cancelReason = reason;
+
+			final int cancelledRun = runId;
+			final Process cancelledProcess = process;
+			watchdog.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					synchronized (cancelLock) {
+						if (running && runId == cancelledRun) {
+							logger.fine("run ignored cancel, killing worker");
+							cancelledProcess.destroy();
+						}
+					}
+				}
+			}, RunLimits.CANCEL_GRACE_MILLIS);
+
+			try {
+				toWorker.writeByte(ReplWorker.CANCEL);
+				toWorker.flush();
+			} catch (IOException e) {
+				logger.log(Level.FINE, "could not send cancel", e);
+			}
+
+			return true;
+		}
+	}
+
+	/**
+	 * Run compiled classes in the worker and wait for the result.
+	 *
+	 * @param mainClass
+	 *            binary name of class with main method
+	 * @param classes
+	 *            binary class name to bytecode
+	 * @param classPaths
+	 *            session class paths (jars and directories)
+	 * @param sink
+	 *            where the code's stdout goes as it is produced, null to only keep its tail in the result
+	 * @return result of the run
+	 * @throws IOException
+	 *             if the worker can't be started
+	 */
+	public Result run(final String mainClass, final Map<String, byte[]> classes, final List<String> classPaths,
+			final OutputStream sink) throws IOException {
+		try {
+			return send(ReplWorker.RUN, mainClass, classes, classPaths, sink);
+		} finally {
+			if (isolated) {
+				stop();
+			}
+			bootSpares();
+		}
+	}
+
+	/**
+	 * Add a snippet's classes to the worker's stateful session and run it.
+	 *
+	 * @param snippetClass
+	 *            binary name of snippet class with static run method
+	 * @param classes
+	 *            binary class name to bytecode of classes new to the session
+	 * @param classPaths
+	 *            session class paths (jars and directories)
+	 * @param sink
+	 *            where the code's stdout goes as it is produced, null to only keep its tail in the result
+	 * @return result of the run
+	 * @throws IOException
+	 *             if the worker can't be started
+	 */
+	public Result runSession(final String snippetClass, final Map<String, byte[]> classes,
+			final List<String> classPaths, final OutputStream sink) throws IOException {
+		try {
+			return send(ReplWorker.SESSION_RUN, snippetClass, classes, classPaths, sink);
+		} finally {
+			bootSpares();
+		}
+	}
+
+	/**
+	 * Drop the stateful session held by the worker (if one is running).
+	 */
+	public void resetSession() {
+		if (process == null) {
+			return;
+		}
+
+		try {
+			toWorker.writeByte(ReplWorker.SESSION_RESET);
+			toWorker.flush();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "lost connection to worker", e);
+			workerDied();
+		}
+	}
+
+	/**
+	 * Send a run request and wait for the result.
+	 *
+	 * @param request
+	 *            RUN or SESSION_RUN
+	 * @param className
+	 *            binary name of class to run
+	 * @param classes
+	 *            binary class name to bytecode
+	 * @param classPaths
+	 *            session class paths (jars and directories)
+	 * @param sink
+	 *            where the code's stdout goes as it is produced, null to only keep its tail
+	 * @return result of the run
+	 * @throws IOException
+	 *             if the worker can't be started
+	 */
+	private Result send(final byte request, final String className, final Map<String, byte[]> classes,
+			final List<String> classPaths, final OutputStream sink) throws IOException {
+		ensureStarted();
+
+		TailBuffer output = new TailBuffer();
+		TailBuffer errorOutput = new TailBuffer();
+		byte[] chunk = new byte[0];
+		long sent = 0;
+		long loadNanos = -1;
+		long outputBytes = 0;
+		TimerTask timeout = null;
+
+		try {
+			syncClassPath(classPaths);
+			syncLimits();
+			toWorker.writeByte(request);
+			toWorker.writeUTF(className);
+			toWorker.writeInt(classes.size());
+			for (final Map.Entry<String, byte[]> entry : classes.entrySet()) {
+				toWorker.writeUTF(entry.getKey());
+				toWorker.writeInt(entry.getValue().length);
+				toWorker.write(entry.getValue());
+			}
+			toWorker.flush();
+			sent = System.nanoTime();
+			timeout = startRun();
+
+			while (true) {
+				byte frame = fromWorker.readByte();
+				if (frame == ReplWorker.EXIT) {
+					int status = fromWorker.readInt();
+					return new Result(status, output, errorOutput, loadNanos, endRun(timeout));
+				}
+				if (frame == ReplWorker.LOADED) {
+					loadNanos = System.nanoTime() - sent;
+					continue;
+				}
+
+				int length = fromWorker.readInt();
+				if (chunk.length < length) {
+					chunk = new byte[length];
+				}
+				fromWorker.readFully(chunk, 0, length);
+
+				// over the output limit the rest is read and dropped until the code stops
+				outputBytes += length;
+				long maxOutput = limits.getMaxOutputBytes();
+				if (maxOutput > 0 && outputBytes > maxOutput) {
+					cancel("output limit of " + maxOutput + " bytes exceeded");
+					if (outputBytes - length >= maxOutput) {
+						continue;
+					}
+					length = (int) (maxOutput - (outputBytes - length));
+				}
+
+				if (frame == ReplWorker.OUT) {
+					output.write(chunk, 0, length);
+					if (sink != null) {
+						sink.write(chunk, 0, length);
+						sink.flush();
+					}
+				} else {
+					errorOutput.write(chunk, 0, length);
+				}
+			}
+		} catch (EOFException e) {
+			return new Result(workerDied(), output, errorOutput, loadNanos, endRun(timeout));
+		} catch (IOException e) {
+			// a worker killed after a cancel has its streams closed under us, that is the end of the run like EOF
+			logger.log(isCancelled() ? Level.FINE : Level.WARNING, "lost connection to worker", e);
+			return new Result(workerDied(), output, errorOutput, loadNanos, endRun(timeout));
+		}
+	}
+
+	/**
+	 * Was the running code cancelled (and its worker possibly killed).
+	 *
+	 * @return true if the run was cancelled
+	 */
+	private boolean isCancelled() {
+		synchronized (cancelLock) {
+			return cancelReason != null;
+		}
+	}
+
+	/**
+	 * Mark code as running, cancellable from now on, and start its timeout.
+	 *
+	 * @return the timeout task, null if runs have no timeout
+	 */
+	private TimerTask startRun() {
+		synchronized (cancelLock) {
+			runId++;
+			running = true;
+			cancelReason = null;
+		}
+
+		final long timeoutMillis = limits.getTimeoutMillis();
+		if (timeoutMillis == 0) {
+			return null;
+		}
+
+		TimerTask timeout = new TimerTask() {
+			@Override
+			public void run() {
+				WorkerClient.this.cancel("timed out after " + timeoutMillis + " ms");
+			}
+		};
+		watchdog.schedule(timeout, timeoutMillis);
+		return timeout;
+	}
+
+	/**
+	 * Mark the code as done.
+	 *
+	 * @param timeout
+	 *            the run's timeout task, may be null
+	 * @return why the run was cancelled, null if it wasn't
+	 */
+	private String endRun(final TimerTask timeout) {
+		if (timeout != null) {
+			timeout.cancel();
+		}
+
+		synchronized (cancelLock) {
+			running = false;
+			return cancelReason;
+		}
+	}
+
+	/**
+	 * Clean up after the worker exited (e.g. code called System.exit), next run starts a new one.
+	 *
+	 * @return exit status of the worker process
+	 */
+	private int workerDied() {
+		int status;
+		try {
+			status = process.waitFor();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			status = ReplWorker.EXCEPTION_STATUS;
+		}
+
+		process = null;
+		return status;
+	}
+
+	/**
+	 * Stop the worker JVM if running.
+	 */
+	private void stop() {
+		if (process != null) {
+			process.destroy();
+			process = null;
+		}
+	}
+
+	/**
+	 * Stop the worker and spare JVMs.
+	 */
+	public void shutdown() {
+		synchronized (spares) {
+			closed = true;
+			for (final Spare spare : spares) {
+				spare.process.destroy();
+			}
+			spares.clear();
+		}
+		spareBooter.shutdownNow();
+		stop();
+		sharing.awaitRecordings(RECORDING_WAIT_MILLIS);
+	}
+
+	/** A booted worker JVM and its streams. */
+	private static final class Spare {
+
+		/** Worker process. */
+		private final Process process;
+
+		/** Requests to the worker (its stdin). */
+		private final DataOutputStream toWorker;
+
+		/** Frames from the worker (its stdout). */
+		private final DataInputStream fromWorker;
+
+		/** Heap limit it was started with. */
+		private final String heap;
+
+		/** Class paths it was sent. */
+		private final List<String> sentClassPaths = new ArrayList<String>();
+
+		/**
+		 * Spare constructor.
+		 *
+		 * @param process
+		 *            started worker process
+		 * @param heap
+		 *            heap limit it was started with
+		 */
+		Spare(final Process process, final String heap) {
+			this.process = process;
+			this.toWorker = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+			this.fromWorker = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+			this.heap = heap;
+		}
+
+		/**
+		 * Is the process still running.
+		 *
+		 * @return true if it hasn't exited
+		 */
+		boolean isAlive() {
+			try {
+				process.exitValue();
+				return false;
+			} catch (IllegalThreadStateException e) {
+				return true;
+			}
+		}
+	}
+
+	/** Result of running code in the worker. */
+	public static final class Result {
+
+		/** Exit/status code of the run, (!=0) is error. */
+		private final int exitVal;
+
+		/** Tail of the run's stdout. */
+		private final String output;
+
+		/** Tail of the run's stderr. */
+		private final String errorOutput;
+
+		/** Did stdout end with a line break (or was empty). */
+		private final boolean outputEndsLine;
+
+		/** Nanoseconds until the classes were loaded and the code started, -1 if unknown. */
+		private final long loadNanos;
+
+		/** Why the run was cancelled, null if it wasn't. */
+		private final String cancelReason;
+
+		/**
+		 * Result constructor.
+		 *
+		 * @param exitVal
+		 *            status code
+		 * @param output
+		 *            stdout
+		 * @param errorOutput
+		 *            stderr
+		 * @param cancelReason
+		 *            why the run was cancelled, null if it wasn't
+		 */
+		Result(final int exitVal, final String output, final String errorOutput, final String cancelReason) {
+			this.exitVal = exitVal;
+			this.output = output;
+			this.errorOutput = errorOutput;
+			this.outputEndsLine = output.length() == 0 || output.endsWith("\n");
+			this.loadNanos = -1;
+			this.cancelReason = cancelReason;
+		}
+
+		/**
+		 * Result constructor.
+		 *
+		 * @param exitVal
+		 *            status code
+		 * @param output
+		 *            tail of stdout
+		 * @param errorOutput
+		 *            tail of stderr
+		 * @param loadNanos
+		 *            nanoseconds spent loading, -1 if unknown
+		 * @param cancelReason
+		 *            why the run was cancelled, null if it wasn't
+		 */
+		Result(final int exitVal, final TailBuffer output, final TailBuffer errorOutput, final long loadNanos,
+				final String cancelReason) {
+			this.exitVal = exitVal;
+			this.output = output.toString();
+			this.errorOutput = errorOutput.toString();
+			this.outputEndsLine = output.isEmpty() || output.endsWithNewLine();
+			this.loadNanos = loadNanos;
+			this.cancelReason = cancelReason;
+		}
+
+		/**
+		 * Get the result of the run. What the code sent to stdout/stderr
+		 *
+		 * @return output of the run
+		 */
+		public String getResult() {
+			return (output + errorOutput).trim();
+		}
+
+		/**
+		 * Get the tail of what the code sent to stdout.
+		 *
+		 * @return stdout (untrimmed)
+		 */
+		public String getOutput() {
+			return output;
+		}
+
+		/**
+		 * Get the tail of what the code sent to stderr.
+		 *
+		 * @return stderr (untrimmed)
+		 */
+		public String getErrorOutput() {
+			return errorOutput;
+		}
+
+		/**
+		 * Did stdout end with a line break, if not the next prompt needs one.
+		 *
+		 * @return true if stdout was empty or ended with a new line
+		 */
+		public boolean outputEndsLine() {
+			return outputEndsLine;
+		}
+
+		/**
+		 * Get status code of the run.
+		 *
+		 * @return status code
+		 */
+		public int statusCode() {
+			return exitVal;
+		}
+
+		/**
+		 * Did the code run without an error code (and wasn't cancelled).
+		 *
+		 * @return true if succesful run
+		 */
+		public boolean isSuccess() {
+			return exitVal == 0 && cancelReason == null;
+		}
+
+		/**
+		 * Get why the run was cancelled (timeout, output limit, Ctrl-C).
+		 *
+		 * @return reason, null if the run wasn't cancelled
+		 */
+		public String getCancelReason() {
+			return cancelReason;
+		}
+
+		/**
+		 * Get the time it took to load the classes, the rest of the run was spent running the code.
+		 *
+		 * @return nanoseconds, -1 if the code didn't get to run or it wasn't measured
+		 */
+		public long getLoadNanos() {
+			return loadNanos;
+		}
+	}
+}
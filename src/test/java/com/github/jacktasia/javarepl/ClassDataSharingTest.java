@@ -0,0 +1,64 @@
+package com.github.jacktasia.javarepl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.google.common.io.Files;
+
+/**
+ * Unit tests for the class data sharing archives.
+ */
+public class ClassDataSharingTest extends TestCase {
+
+	/** No session class paths. */
+	private static final List<String> NONE = Collections.emptyList();
+
+	/**
+	 * Only a class path of jars can use an archive.
+	 *
+	 * @throws IOException
+	 *             if the test files can't be written
+	 */
+	public void testShareable() throws IOException {
+		File tmp = Files.createTempDir();
+		File jar = new File(tmp, "lib.jar");
+		Files.touch(jar);
+
+		assertTrue(ClassDataSharing.isShareable(jar.getPath()));
+		assertFalse(ClassDataSharing.isShareable(jar.getPath() + File.pathSeparator + tmp.getPath()));
+		assertFalse(ClassDataSharing.isShareable(""));
+
+		Command.deletePath(tmp);
+	}
+
+	/**
+	 * The first launch records the archive, launches after it exited use it.
+	 *
+	 * @throws IOException
+	 *             if the test files can't be written
+	 */
+	public void testRecordThenShare() throws IOException {
+		File tmp = Files.createTempDir();
+		File jar = new File(tmp, "lib.jar");
+		Files.touch(jar);
+		ClassDataSharing sharing = new ClassDataSharing(tmp);
+
+		ClassDataSharing.Launch first = sharing.launch("Main", jar.getPath(), NONE);
+		assertFalse(first.isSharing());
+		String option = first.getOptions().get(0);
+		assertTrue(option.startsWith("-XX:ArchiveClassesAtExit="));
+
+		// the JVM writes the archive as it exits
+		Files.write(new byte[] { 1 }, new File(option.substring(option.indexOf('=') + 1)));
+		first.exited();
+
+		assertTrue(sharing.launch("Main", jar.getPath(), NONE).isSharing());
+		assertFalse(sharing.launch("Other", jar.getPath(), NONE).isSharing());
+
+		Command.deletePath(tmp);
+	}
+}
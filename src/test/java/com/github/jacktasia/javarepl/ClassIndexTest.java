@@ -0,0 +1,79 @@
+package com.github.jacktasia.javarepl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+
+import com.google.common.io.Files;
+
+/**
+ * Unit tests for the class path class index.
+ */
+public class ClassIndexTest extends TestCase {
+
+	/**
+	 * Only top level classes are indexed.
+	 */
+	public void testClassName() {
+		assertEquals("com.google.common.base.Joiner", ClassIndex.className("com/google/common/base/Joiner.class"));
+		assertNull(ClassIndex.className("com/google/common/base/Joiner$MapJoiner.class"));
+		assertNull(ClassIndex.className("com/google/common/base/package-info.class"));
+		assertNull(ClassIndex.className("META-INF/MANIFEST.MF"));
+	}
+
+	/**
+	 * Jar classes are found by simple name, and read back from the persisted list while the jar is unchanged.
+	 *
+	 * @throws IOException
+	 *             if the test files can't be written
+	 */
+	public void testJarPersisted() throws IOException {
+		File tmp = Files.createTempDir();
+		File jar = new File(tmp, "lib.jar");
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+		out.putNextEntry(new ZipEntry("a/b/Joiner.class"));
+		out.putNextEntry(new ZipEntry("a/b/Joiner$1.class"));
+		out.putNextEntry(new ZipEntry("c/Joiner.class"));
+		out.close();
+
+		File dir = new File(tmp, "index");
+		ClassIndex index = ClassIndex.open(dir);
+		index.add(jar.getPath());
+		List<String[]> found = index.which("Joiner");
+		assertEquals(2, found.size());
+		assertEquals("a.b.Joiner", found.get(0)[0]);
+		assertEquals(jar.getPath(), found.get(0)[1]);
+		assertEquals(1, dir.list().length);
+
+		// a touched jar is rescanned instead of read from its stale list
+		assertTrue(jar.setLastModified(jar.lastModified() - 60000));
+		assertEquals(2, new ClassIndex(dir).classesOf(jar).size());
+
+		Command.deletePath(tmp);
+	}
+
+	/**
+	 * Directories are walked.
+	 *
+	 * @throws IOException
+	 *             if the test files can't be written
+	 */
+	public void testDirectory() throws IOException {
+		File tmp = Files.createTempDir();
+		File pkg = new File(tmp, "x" + File.separator + "y");
+		assertTrue(pkg.mkdirs());
+		Files.touch(new File(pkg, "Thing.class"));
+
+		ClassIndex index = new ClassIndex(null);
+		index.add(tmp.getPath());
+		assertEquals("x.y.Thing", index.which("Thing").get(0)[0]);
+		assertTrue(index.which("Other").isEmpty());
+
+		Command.deletePath(tmp);
+	}
+}
@@ -0,0 +1,44 @@
+package com.github.jacktasia.javarepl;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for evaluating code in a stateful session.
+ */
+public class CodeFileTest extends TestCase {
+
+	/**
+	 * Evaluate a code line.
+	 *
+	 * @param code
+	 *            code file
+	 * @param line
+	 *            code line
+	 * @return status of the evaluation
+	 */
+	private static int eval(final CodeFile code, final String line) {
+		code.addTrialCode(line);
+		code.generateCompileAndRun();
+		return code.getLastStatus();
+	}
+
+	/**
+	 * Tests a failed rebuild leaves the session stale: later evaluations rebuild it again instead of running against
+	 * the lines that did run.
+	 */
+	public void testFailedRebuildStaysStale() {
+		CodeFile code = new CodeFile();
+		code.clearFileOnExit(false);
+		assertTrue(code.setStateful(true));
+		assertEquals(0, eval(code, "int x = 1;"));
+		assertEquals(0, eval(code, "x = 2;"));
+
+		// x = 2; is left without its declaration
+		assertTrue(code.removeValidCodeLine(0));
+		assertEquals(CodeFile.COMPILE_ERROR_STATUS, eval(code, "p(\"a\");"));
+		assertEquals(CodeFile.COMPILE_ERROR_STATUS, eval(code, "p(\"b\");"));
+
+		assertTrue(code.undo());
+		assertEquals(0, eval(code, "p(\"\" + x);"));
+	}
+}
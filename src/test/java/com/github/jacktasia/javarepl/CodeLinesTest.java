@@ -0,0 +1,66 @@
+package com.github.jacktasia.javarepl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the persistent code line sequence.
+ */
+public class CodeLinesTest extends TestCase {
+
+	/**
+	 * Tests random edits against a plain list, and that earlier versions are unchanged.
+	 */
+	public void testEditsMatchList() {
+		Random random = new Random(42);
+		List<String> expected = new ArrayList<String>();
+		CodeLines lines = CodeLines.EMPTY;
+		for (int i = 0; i < 2000; i++) {
+			CodeLines before = lines;
+			List<String> beforeExpected = new ArrayList<String>(expected);
+			int op = expected.isEmpty() ? 0 : random.nextInt(4);
+			String text = "line" + i;
+			if (op == 0) {
+				int index = random.nextInt(expected.size() + 1);
+				expected.add(index, text);
+				lines = lines.insert(index, text);
+			} else if (op == 1) {
+				expected.add(text);
+				lines = lines.append(text);
+			} else if (op == 2) {
+				int index = random.nextInt(expected.size());
+				expected.set(index, text);
+				lines = lines.set(index, text);
+			} else {
+				int index = random.nextInt(expected.size());
+				expected.remove(index);
+				lines = lines.remove(index);
+			}
+
+			assertEquals(expected, lines.asList());
+			assertEquals(beforeExpected, before.asList());
+		}
+
+		assertEquals(expected, CodeLines.of(expected).asList());
+		assertEquals(expected.get(expected.size() / 2), lines.get(expected.size() / 2));
+	}
+
+	/**
+	 * Tests line ids stay with their lines and edited lines get new ones.
+	 */
+	public void testStableIds() {
+		CodeLines lines = CodeLines.of(Arrays.asList("a", "b", "c"));
+		long b = lines.line(1).getId();
+		long c = lines.line(2).getId();
+
+		CodeLines edited = lines.insert(0, "z").remove(1).set(2, "d");
+		assertEquals(Arrays.asList("z", "b", "d"), edited.asList());
+		assertEquals(b, edited.line(1).getId());
+		assertFalse(c == edited.line(2).getId());
+		assertSame(lines, lines.appendAll(new ArrayList<String>()));
+	}
+}
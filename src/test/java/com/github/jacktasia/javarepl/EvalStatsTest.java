@@ -0,0 +1,52 @@
+package com.github.jacktasia.javarepl;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the session's evaluation timing stats.
+ */
+public class EvalStatsTest extends TestCase {
+
+	/**
+	 * Buckets double from 1 ms.
+	 */
+	public void testBucket() {
+		assertEquals(0, EvalStats.bucket(999999));
+		assertEquals(1, EvalStats.bucket(1000000));
+		assertEquals(2, EvalStats.bucket(2000000));
+		assertEquals(2, EvalStats.bucket(3999999));
+		assertEquals(3, EvalStats.bucket(4000000));
+	}
+
+	/**
+	 * Each evaluation is a CSV row with the milliseconds of each stage.
+	 */
+	public void testCsv() {
+		EvalStats stats = new EvalStats();
+		EvalTimings timings = new EvalTimings();
+		timings.add(EvalTimings.Stage.COMPILE, 2500000);
+		timings.add(EvalTimings.Stage.RUN, 500000);
+		stats.record("String s = \"x\";", timings);
+
+		String[] rows = stats.toCsv().split("\n");
+		assertEquals("eval,code,parse_ms,generate_ms,write_ms,compile_ms,load_ms,run_ms,total_ms", rows[0]);
+		assertEquals("1,\"String s = \"\"x\"\";\",0.000,0.000,0.000,2.500,0.000,0.500,3.000", rows[1]);
+	}
+
+	/**
+	 * Percentiles over the kept evaluations.
+	 */
+	public void testPercentiles() {
+		EvalStats stats = new EvalStats();
+		for (int i = 1; i <= 10; i++) {
+			EvalTimings timings = new EvalTimings();
+			timings.add(EvalTimings.Stage.RUN, i);
+			stats.record("run", timings);
+		}
+
+		long[] sorted = stats.sortedNanos(EvalTimings.Stage.RUN);
+		assertEquals(5, EvalStats.percentile(sorted, 50));
+		assertEquals(10, EvalStats.percentile(sorted, 99));
+		assertTrue(stats.report().startsWith("10 evaluations"));
+	}
+}
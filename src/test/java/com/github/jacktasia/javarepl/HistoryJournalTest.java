@@ -0,0 +1,64 @@
+package com.github.jacktasia.javarepl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * Unit tests for the history journal.
+ */
+public class HistoryJournalTest extends TestCase {
+
+	/**
+	 * Appended entries are written on close, repeats once, and only the newest entries are loaded.
+	 *
+	 * @throws IOException
+	 *             if the test files can't be written
+	 */
+	public void testAppendAndTail() throws IOException {
+		File tmp = Files.createTempDir();
+		File file = new File(tmp, "history");
+
+		HistoryJournal journal = new HistoryJournal(file, 2);
+		journal.append("int a = 1;");
+		journal.append("int b = 2;");
+		journal.append("int b = 2;");
+		journal.append("int c = 3;");
+		journal.close();
+
+		assertEquals("int a = 1;\nint b = 2;\nint c = 3;\n", Files.toString(file, Charsets.UTF_8));
+		assertEquals(Arrays.asList("int b = 2;", "int c = 3;"), new HistoryJournal(file, 2).loadTail());
+
+		new HistoryJournal(file, 2).compact();
+		assertEquals("int b = 2;\nint c = 3;\n", Files.toString(file, Charsets.UTF_8));
+
+		Command.deletePath(tmp);
+	}
+
+	/**
+	 * A history file written whole (without a last line break) is appended to on a new line.
+	 *
+	 * @throws IOException
+	 *             if the test files can't be written
+	 */
+	public void testOldFile() throws IOException {
+		File tmp = Files.createTempDir();
+		File file = new File(tmp, "history");
+		Files.write("int a = 1;\nint b = 2;", file, Charsets.UTF_8);
+
+		HistoryJournal journal = new HistoryJournal(file, HistoryJournal.MAX_ENTRIES);
+		assertEquals(Arrays.asList("int a = 1;", "int b = 2;"), journal.loadTail());
+		journal.append("int b = 2;");
+		journal.append("int c = 3;");
+		journal.close();
+
+		assertEquals("int a = 1;\nint b = 2;\nint c = 3;\n", Files.toString(file, Charsets.UTF_8));
+
+		Command.deletePath(tmp);
+	}
+}
@@ -0,0 +1,88 @@
+package com.github.jacktasia.javarepl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for splitting long sessions into chunk methods.
+ */
+public class MethodSplitterTest extends TestCase {
+
+	/**
+	 * Tests top level declarations become field assignments, nested ones and other statements are kept.
+	 */
+	public void testHoist() {
+		Map<String, String> fields = new LinkedHashMap<String, String>();
+		StringBuilder code = new StringBuilder();
+		for (final String statement : MethodSplitter.statements("final int a = 1, b[] = {2}, c; "
+				+ "java.util.Map<String, Integer> m = new java.util.HashMap<String, Integer>(); "
+				+ "for (int i = 0; i < a; i++) { String s = \"x;y\"; } p(\"int z = 3;\");")) {
+			assertTrue(MethodSplitter.hoist(statement, fields, code));
+		}
+
+		assertEquals("{a=int, b=int[], c=int, m=java.util.Map<String, Integer>}", fields.toString());
+		assertEquals("a = 1; b = new int[] {2}; m = new java.util.HashMap<String, Integer>(); "
+				+ "for (int i = 0; i < a; i++) { String s = \"x;y\"; } p(\"int z = 3;\");", code.toString());
+		assertFalse(MethodSplitter.hoist("var v = 1;", fields, new StringBuilder()));
+	}
+
+	/**
+	 * Tests a session too large for one method compiles once split, with its variables and classes seen by every
+	 * chunk.
+	 */
+	public void testLongSessionCompiles() throws IOException {
+		List<String> lines = new ArrayList<String>();
+		lines.add("class Row { int[] cells; Row(int... cells) { this.cells = cells; } }");
+		lines.add("java.util.List<Row> rows = new java.util.ArrayList<Row>();");
+		for (int i = 0; i < 3000; i++) {
+			lines.add("rows.add(new Row(" + i + ", " + (i * 2) + ", " + (i * 3) + "));");
+		}
+		lines.add("long sum = 0;");
+		lines.add("for (Row r : rows) { sum += r.cells[1]; }");
+
+		assertNull(MethodSplitter.split(lines.subList(0, 3), MethodSplitter.MAX_CHUNK_CHARS));
+		MethodSplitter.Split split = MethodSplitter.split(lines, MethodSplitter.MAX_CHUNK_CHARS);
+		assertTrue(split.getChunks().size() > 10);
+		assertEquals(Arrays.asList("java.util.List<Row> rows", "long sum"), split.getFields());
+
+		Map<String, Object> context = new HashMap<String, Object>();
+		context.put("importLines", Collections.emptyList());
+		context.put("fields", split.getFields());
+		context.put("memberClasses", split.getMemberClasses());
+		context.put("chunks", split.getChunks());
+		InMemoryCompiler.Result result = InMemoryCompiler.create().compile("ReplTmpInstance",
+				CodeFile.renderTemplate("repl.vm", context), new HashMap<String, byte[]>());
+
+		assertTrue(result.getDiagnostics().toString(), result.isSuccess());
+		assertTrue(result.getClasses().containsKey("ReplTmpInstance$Row"));
+	}
+
+	/**
+	 * Tests a runner calling thousands of snippets is split into chunks of calls.
+	 */
+	public void testRunnerChunks() throws IOException {
+		InMemoryCompiler compiler = InMemoryCompiler.create();
+		InMemoryCompiler.Result snippet = compiler.compile("ReplSnippet1",
+				"class ReplSnippet1 { static void run1() {} }");
+		List<String> calls = Collections.nCopies(2500, "ReplSnippet1.run1");
+		List<List<String>> chunks = MethodSplitter.chunkCalls(calls);
+		assertEquals(3, chunks.size());
+		assertEquals(MethodSplitter.MAX_CHUNK_CALLS, chunks.get(0).size());
+		assertEquals(500, chunks.get(2).size());
+
+		Map<String, Object> context = new HashMap<String, Object>();
+		context.put("className", "ReplRunner");
+		context.put("runChunks", chunks);
+		String source = CodeFile.renderTemplate("runner.vm", context);
+		assertTrue(source.contains("chunk3();"));
+		assertTrue(compiler.compile("ReplRunner", source, snippet.getClasses()).isSuccess());
+	}
+}
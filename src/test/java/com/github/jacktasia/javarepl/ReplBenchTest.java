@@ -0,0 +1,64 @@
+package com.github.jacktasia.javarepl;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the bench command's harness and statistics.
+ */
+public class ReplBenchTest extends TestCase {
+
+	/**
+	 * Mean, percentiles and confidence interval of known samples.
+	 */
+	public void testStats() {
+		double[] samples = new double[100];
+		for (int i = 0; i < samples.length; i++) {
+			samples[i] = 100 - i;
+		}
+		ReplBench.Stats stats = new ReplBench.Stats(samples);
+
+		assertEquals(50.5, stats.getMean(), 1e-9);
+		assertEquals(50.0, stats.percentile(50), 1e-9);
+		assertEquals(99.0, stats.percentile(99), 1e-9);
+		// 2.576 * stddev(1..100) / sqrt(100)
+		assertEquals(2.576 * Math.sqrt(841.6666666) / 10, stats.getError(), 1e-3);
+	}
+
+	/**
+	 * One sample has no confidence interval.
+	 */
+	public void testStatsSingleSample() {
+		ReplBench.Stats stats = new ReplBench.Stats(new double[] { 7 });
+
+		assertEquals(7.0, stats.percentile(99), 1e-9);
+		assertTrue(Double.isNaN(stats.getError()));
+		assertFalse(stats.format("x", 0, 1).contains("CI"));
+	}
+
+	/**
+	 * Calibration grows the ops until an iteration reaches the target time.
+	 */
+	public void testCalibrate() throws Exception {
+		ReplBench.Task task = new ReplBench.Task() {
+			@Override
+			public long run(final int ops, final ReplBench.Blackhole bh) {
+				return ops * 1000L;
+			}
+		};
+
+		int ops = ReplBench.calibrate(task, new ReplBench.Blackhole());
+		assertTrue(ops * 1000L >= ReplBench.TARGET_ITERATION_NANOS);
+		assertTrue(ops * 1000L < ReplBench.TARGET_ITERATION_NANOS * 16);
+		assertEquals(ops, ReplBench.rescale(ops, ops * 1000L));
+	}
+
+	/**
+	 * Expressions are consumed by the blackhole, statements (ending with ;) run as is.
+	 */
+	public void testBenchCode() {
+		assertTrue(CodeFile.benchCode("Math.sqrt(x)", 1, 2).contains("{ benchHole.consume(Math.sqrt(x)); }"));
+		assertTrue(CodeFile.benchCode("list.clear();", 1, 2).contains("{ list.clear(); }"));
+		assertTrue(CodeFile.benchCode("\"a\".length()", 1, 2).startsWith(
+				ReplBench.class.getName() + ".run(\"\\\"a\\\".length()\", 1, 2,"));
+	}
+}
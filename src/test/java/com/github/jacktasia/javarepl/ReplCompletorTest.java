@@ -0,0 +1,73 @@
+package com.github.jacktasia.javarepl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for tab completion.
+ */
+public class ReplCompletorTest extends TestCase {
+
+	/** Code file holding the session. */
+	private CodeFile code;
+
+	/** Completor under test. */
+	private ReplCompletor completor;
+
+	@Override
+	protected void setUp() {
+		code = new CodeFile();
+		code.clearFileOnExit();
+		completor = new ReplCompletor(code);
+		code.getClassIndex().which("String"); // wait for the JDK scan
+	}
+
+	/**
+	 * Complete the end of a line.
+	 *
+	 * @param line
+	 *            text before the cursor
+	 * @param start
+	 *            expected start of the completions
+	 * @return completions
+	 */
+	private List<String> complete(final String line, final int start) {
+		List<String> candidates = new ArrayList<String>();
+		assertEquals(start, completor.complete(line, line.length(), candidates));
+		return candidates;
+	}
+
+	/**
+	 * Simple class names complete from the JDK.
+	 */
+	public void testClassName() {
+		List<String> candidates = complete("StringBuil", 0);
+		assertTrue(candidates.contains("StringBuilder"));
+		assertFalse(candidates.contains("String"));
+		assertEquals(-1, completor.complete("NoSuchClassName", 15, new ArrayList<String>()));
+	}
+
+	/**
+	 * Qualified names complete a package level at a time.
+	 */
+	public void testQualifiedName() {
+		assertTrue(complete("import java.ut", 12).contains("util."));
+		assertTrue(complete("new java.util.HashM", 14).contains("HashMap"));
+	}
+
+	/**
+	 * Static members of a class, instance members of a declared variable.
+	 */
+	public void testMembers() {
+		assertTrue(complete("Math.sq", 5).contains("sqrt("));
+
+		code.addTrialCode("String s = \"abc\";");
+		code.generateCompileAndRun();
+		assertEquals("String", completor.variables().get("s"));
+		List<String> candidates = complete("s.len", 2);
+		assertEquals(1, candidates.size());
+		assertEquals("length(", candidates.get(0));
+	}
+}
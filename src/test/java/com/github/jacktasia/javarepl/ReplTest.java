@@ -69,4 +69,24 @@ public class ReplTest extends TestCase {
 		assertTrue(lpSpaceArgs[0].equals(path));
 	}
 
+	/**
+	 * Tests input spanning lines is complete once its brackets, comments and text blocks are closed.
+	 */
+	public void testInputComplete() {
+		InputLexer lexer = new InputLexer();
+		assertFalse(lexer.feed("foo(").feed("  a,").isComplete());
+		assertTrue(lexer.feed("  b[0]);").isComplete());
+
+		lexer.reset();
+		assertFalse(lexer.feed("String s = \"\"\"").feed("  ) } \\\"\"\" \"").isComplete());
+		assertTrue(lexer.feed("  \"\"\";").isComplete());
+
+		lexer.reset();
+		assertFalse(lexer.feed("int x = 1; /* (").isComplete());
+		assertTrue(lexer.feed("*/ String s = \"{\" + '(';").isComplete());
+
+		lexer.reset();
+		assertTrue(lexer.feed("foo(}").isComplete());
+	}
+
 }
@@ -0,0 +1,26 @@
+package com.github.jacktasia.javarepl;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for comparing script output with golden output.
+ */
+public class ScriptTestRunnerTest extends TestCase {
+
+	/**
+	 * The first differing line is reported, running out of lines counts.
+	 */
+	public void testDifference() {
+		assertEquals("      line 2\n      expected: b\n      actual:   c\n",
+				ScriptTestRunner.difference("a\nb\n", "a\nc\n"));
+		assertEquals("      line 2\n      expected: b\n      actual:   <end of output>\n",
+				ScriptTestRunner.difference("a\nb", "a"));
+	}
+
+	/**
+	 * Windows line ends match.
+	 */
+	public void testNormalize() {
+		assertEquals("a\nb\n", ScriptTestRunner.normalize("a\r\nb\r\n"));
+	}
+}
@@ -0,0 +1,134 @@
+package com.github.jacktasia.javarepl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for reusing snippet bytecode between builds.
+ */
+public class SnippetChainTest extends TestCase {
+
+	/** No lines/imports/class path. */
+	private static final List<String> NONE = Collections.emptyList();
+
+	/** Chain under test. */
+	private SnippetChain chain;
+
+	@Override
+	protected void setUp() {
+		chain = new SnippetChain(new SnippetCompiler(InMemoryCompiler.create()));
+	}
+
+	/**
+	 * Build and commit code lines.
+	 *
+	 * @param lines
+	 *            code lines
+	 * @return the build
+	 */
+	private SnippetChain.Build commit(final String... lines) throws IOException {
+		SnippetChain.Build build = chain.build(Arrays.asList(lines), NONE, NONE, NONE);
+		assertTrue(build.isSuccess());
+		chain.commit(build, NONE);
+		return build;
+	}
+
+	/**
+	 * Tests only a new line is compiled.
+	 */
+	public void testAppendCompilesNewLine() throws IOException {
+		assertEquals(2, commit("int x = 1;", "String s = \"a\";").getCompiledCount());
+		assertEquals(1, commit("int x = 1;", "String s = \"a\";", "p(s + x);").getCompiledCount());
+	}
+
+	/**
+	 * Tests a replaced line recompiles the lines from it on and keeps the lines before it.
+	 */
+	public void testReplaceRecompilesRest() throws IOException {
+		commit("int x = 1;", "String s = \"a\";", "p(s);", "p(\"\" + x);");
+		SnippetChain.Build build = commit("int x = 1;", "String s = \"b\";", "p(s);", "p(\"\" + x);");
+
+		assertEquals(3, build.getCompiledCount());
+	}
+
+	/**
+	 * Tests an insert recompiles the lines from it on, a var declaration among them included.
+	 */
+	public void testInsertRecompilesRest() throws IOException {
+		commit("int x = 1;", "var y = x + 1L;", "p(\"\" + y);");
+		SnippetChain.Build build = commit("int x = 1;", "p(\"a\");", "var y = x + 1L;", "p(\"\" + y);");
+
+		assertEquals(3, build.getCompiledCount());
+		assertEquals(4, build.getRunClasses().size());
+	}
+
+	/**
+	 * Tests an import only recompiles the lines from the first one referring to a name it imports or drops.
+	 */
+	public void testImportRecompilesReferringLines() throws IOException {
+		List<String> lines = Arrays.asList("int x = 1;", "Object o = x;", "p(\"\" + o);");
+		chain.commit(chain.build(lines, NONE, NONE, NONE), NONE);
+
+		List<String> imports = Arrays.asList("import java.util.Map;");
+		SnippetChain.Build build = chain.build(lines, NONE, imports, NONE);
+		assertEquals(0, build.getCompiledCount());
+		chain.commit(build, NONE);
+
+		imports = Arrays.asList("import java.util.Map;", "import java.lang.Object;");
+		assertEquals(2, chain.build(lines, NONE, imports, NONE).getCompiledCount());
+	}
+
+	/**
+	 * Tests an added on demand import recompiles the lines using a name it could make ambiguous.
+	 */
+	public void testOnDemandImportRecompiles() throws IOException {
+		List<String> lines = Arrays.asList("List<String> l = new ArrayList<String>();", "p(\"\" + l.size());");
+		List<String> imports = Arrays.asList("import java.util.*;");
+		SnippetChain.Build build = chain.build(lines, NONE, imports, NONE);
+		assertTrue(build.isSuccess());
+		chain.commit(build, NONE);
+
+		imports = Arrays.asList("import java.util.*;", "import java.awt.*;");
+		assertFalse(chain.build(lines, NONE, imports, NONE).isSuccess());
+
+		imports = Arrays.asList("import java.util.*;", "import java.awt.*;", "import java.util.List;");
+		assertTrue(chain.build(lines, NONE, imports, NONE).isSuccess());
+	}
+
+	/**
+	 * Tests a failed line stops the build.
+	 */
+	public void testCompileFailure() throws IOException {
+		SnippetChain.Build build = chain.build(Arrays.asList("int x = 1;", "y = 2;", "p(\"a\");"), NONE, NONE, NONE);
+
+		assertFalse(build.isSuccess());
+		assertEquals(Arrays.asList("y = 2;"), build.getFailed().getLines());
+	}
+
+	/**
+	 * Tests a chain read back from a saved session is reused without compiling.
+	 */
+	public void testReadSavedChain() throws IOException {
+		commit("int x = 1;", "String s = \"a\";");
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		chain.write(out);
+		out.flush();
+
+		setUp();
+		chain.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+		assertEquals(0, commit("int x = 1;", "String s = \"a\";").getCompiledCount());
+		SnippetChain.Build build = commit("int x = 1;", "String s = \"a\";", "p(s + x);");
+		assertEquals(1, build.getCompiledCount());
+		assertEquals(3, new HashSet<String>(build.getRunClasses()).size());
+	}
+}
@@ -0,0 +1,80 @@
+package com.github.jacktasia.javarepl;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for snippet class generation.
+ */
+public class SnippetCompilerTest extends TestCase {
+
+	/** No imports. */
+	private static final List<String> NO_IMPORTS = Collections.emptyList();
+
+	/** No earlier snippets. */
+	private static final Map<String, byte[]> NO_CLASSES = Collections.emptyMap();
+
+	/**
+	 * Tests declarations become typed static fields.
+	 */
+	public void testDeclarationsHoisted() throws IOException {
+		SnippetCompiler sc = new SnippetCompiler(InMemoryCompiler.create());
+		Snippet s = sc.compile(1, Arrays.asList("int x = 5;", "var names = new java.util.ArrayList<String>();",
+				"int[] nums = {1, 2};"), NO_IMPORTS, null, NO_CLASSES);
+
+		assertTrue(s.isCompiled());
+		assertEquals("int", s.getDeclarations().get("x"));
+		assertEquals("java.util.ArrayList<java.lang.String>", s.getDeclarations().get("names"));
+		assertEquals("int[]", s.getDeclarations().get("nums"));
+		assertTrue(s.getClasses().containsKey("ReplSnippet1"));
+	}
+
+	/**
+	 * Tests later snippets see earlier snippet vars.
+	 */
+	public void testChainedSnippets() throws IOException {
+		SnippetCompiler sc = new SnippetCompiler(InMemoryCompiler.create());
+		Snippet first = sc.compile(1, Arrays.asList("String s = \"a\";"), NO_IMPORTS, null, NO_CLASSES);
+		Snippet second = sc.compile(2, Arrays.asList("s = s + \"b\";"), NO_IMPORTS, first.getClassName(),
+				first.getClasses());
+		Snippet orphan = sc.compile(3, Arrays.asList("s = s + \"b\";"), NO_IMPORTS, null, NO_CLASSES);
+
+		assertTrue(second.isCompiled());
+		assertFalse(orphan.isCompiled());
+	}
+
+	/**
+	 * Tests generating sources without compiling gives the sources that are compiled.
+	 */
+	public void testGenerateMatchesCompile() throws IOException {
+		SnippetCompiler sc = new SnippetCompiler(InMemoryCompiler.create());
+		List<Integer> ids = Arrays.asList(1, 2);
+		List<List<String>> lines = Arrays.asList(Arrays.asList("int x = 5;", "class A {}"), Arrays
+				.asList("p(\"\" + x + new A());"));
+		List<Snippet> generated = sc.generateAll(ids, lines, NO_IMPORTS, null);
+		List<Snippet> compiled = sc.compileAll(ids, lines, NO_IMPORTS, null, NO_CLASSES);
+
+		assertEquals(2, generated.size());
+		for (int i = 0; i < 2; i++) {
+			assertTrue(compiled.get(i).isCompiled());
+			assertEquals(compiled.get(i).getSource(), generated.get(i).getSource());
+		}
+	}
+
+	/**
+	 * Tests anonymous classes are declared as their super type.
+	 */
+	public void testAnonymousType() throws IOException {
+		SnippetCompiler sc = new SnippetCompiler(InMemoryCompiler.create());
+		Snippet s = sc.compile(1, Arrays.asList("var r = new Runnable() { public void run() {} };"), NO_IMPORTS,
+				null, NO_CLASSES);
+
+		assertTrue(s.isCompiled());
+		assertEquals("java.lang.Runnable", s.getDeclarations().get("r"));
+	}
+}
@@ -0,0 +1,56 @@
+package com.github.jacktasia.javarepl;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the parsed-once code templates.
+ */
+public class SourceTemplateTest extends TestCase {
+
+	/**
+	 * Tests variables, nested loops with their counts, #if blocks and dropped directive lines.
+	 */
+	public void testRender() throws IOException {
+		SourceTemplate template = SourceTemplate.parse("test", "class $name {\n"
+				+ "#foreach( $chunk in $chunks )\n"
+				+ "\tvoid chunk${foreach.count}() {\n"
+				+ "\t\t#foreach( $line in $chunk )$line #end\n"
+				+ "\t}\n"
+				+ "#end\n"
+				+ "#if( $stateful )stateful#end#if( !$stateful )pipeline#end $unset ${name}\n"
+				+ "}");
+
+		Map<String, Object> context = new HashMap<String, Object>();
+		context.put("name", "A");
+		context.put("chunks", Arrays.asList(Arrays.asList("a();", "b();"), Arrays.asList("c();")));
+		assertEquals("class A {\n\tvoid chunk1() {\n\t\ta(); b(); \n\t}\n\tvoid chunk2() {\n\t\tc(); \n\t}\n"
+				+ "pipeline $unset A\n}", template.render(context));
+
+		context.put("stateful", Boolean.TRUE);
+		assertTrue(template.render(context).contains("stateful $unset"));
+	}
+
+	/**
+	 * Tests unbalanced blocks are rejected.
+	 */
+	public void testUnbalanced() {
+		try {
+			SourceTemplate.parse("test", "#foreach( $a in $b )x");
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("without #end"));
+		}
+
+		try {
+			SourceTemplate.parse("test", "x#end");
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("#end without"));
+		}
+	}
+}